@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created with IntelliJ IDEA.
@@ -41,10 +43,26 @@ public class BEDFileReader {
         return (null != buffer);
     }
 
+    /**
+     * Read all records of the BED file
+     * @param in BED file
+     * @return records in file order
+     */
+    public static List<BEDRecord> readAll(File in)
+    {
+        List<BEDRecord> records = new ArrayList<BEDRecord>();
+        BEDFileReader reader = new BEDFileReader(in);
+        while (reader.hasNext())
+            records.add(reader.getBEDRecord());
+        reader.close();
+        return records;
+    }
+
     public void close(){
         Logger logger = Logger.getLogger(this.getClass());
         try {
-            input.close();
+            if(input != null)
+                input.close();
         } catch (IOException e) {
             logger.error("Error closing BED file: " + e.toString());
         }
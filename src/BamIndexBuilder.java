@@ -0,0 +1,400 @@
+import net.sf.samtools.SAMFileReader;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Builds BAM index (.bai) files. BGZF blocks are inflated on a pool of threads while the calling thread
+ * walks the records in file order and parses only the fields the index needs: reference index, position,
+ * bin and the CIGAR operations giving the alignment end.
+ */
+public class BamIndexBuilder {
+
+    /**
+     * @param threads number of threads inflating BGZF blocks
+     */
+    public BamIndexBuilder(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Check that the index belongs to the current version of the BAM file: it should be newer than the BAM,
+     * describe the same number of references and point only inside the BAM file
+     * @param bamFile BAM file
+     * @param indexFile index file
+     * @return false if the index is missing or stale
+     */
+    public static boolean isUpToDate(final File bamFile, final File indexFile) {
+        Logger logger = Logger.getLogger(BamIndexBuilder.class);
+        if(!indexFile.exists())
+            return false;
+        if(indexFile.lastModified() < bamFile.lastModified()){
+            logger.info("BAM index file " + indexFile.getName() + " is older than " + bamFile.getName());
+            return false;
+        }
+        DataInputStream in = null;
+        try{
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, BAI_MAGIC))
+                return false;
+            int nRef = readInt(in);
+            SAMFileReader reader = new SAMFileReader(bamFile);
+            int bamRefs = reader.getFileHeader().getSequenceDictionary().size();
+            reader.close();
+            if(nRef != bamRefs){
+                logger.info("BAM index file " + indexFile.getName() + " describes " + nRef + " references, BAM has " + bamRefs);
+                return false;
+            }
+            long maxOffset = 0;
+            for(int r = 0; r < nRef; ++r){
+                int nBin = readInt(in);
+                for(int b = 0; b < nBin; ++b){
+                    readInt(in); //bin
+                    int nChunk = readInt(in);
+                    for(int c = 0; c < nChunk; ++c){
+                        readLong(in); //chunk start
+                        maxOffset = Math.max(maxOffset, readLong(in) >>> 16);
+                    }
+                }
+                int nIntv = readInt(in);
+                for(int i = 0; i < nIntv; ++i)
+                    maxOffset = Math.max(maxOffset, readLong(in) >>> 16);
+            }
+            if(maxOffset > bamFile.length()){
+                logger.info("BAM index file " + indexFile.getName() + " points past the end of " + bamFile.getName());
+                return false;
+            }
+            return true;
+        } catch (Exception e){
+            logger.info("BAM index file " + indexFile.getName() + " is unreadable: " + e.toString());
+            return false;
+        } finally {
+            if(in != null){
+                try{
+                    in.close();
+                } catch (IOException ignored){
+                }
+            }
+        }
+    }
+
+    /**
+     * Build index of the BAM file
+     * @param bamFile coordinate-sorted BAM file
+     * @param indexFile output index file
+     * @throws Exception if BAM file is malformed or cannot be read
+     */
+    public void build(final File bamFile, final File indexFile) throws Exception {
+        Logger logger = Logger.getLogger(BamIndexBuilder.class);
+        long startTime = System.currentTimeMillis();
+        long startCpuTime = cpuTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        InputStream in = new BufferedInputStream(new FileInputStream(bamFile), 1 << 20);
+        BlockCursor cursor = new BlockCursor(in, executor);
+        BinningIndex[] references;
+        long records = 0, noCoordinate = 0;
+        try{
+            references = readHeader(cursor);
+            byte[] cigar = new byte[1024];
+            int lastRef = -1, lastPos = -1;
+            while(!cursor.atEnd()){
+                long start = cursor.virtualOffset();
+                int blockSize = cursor.readInt();
+                int refIndex = cursor.readInt();
+                int pos = cursor.readInt();
+                int binMqNl = cursor.readInt();
+                int flagNc = cursor.readInt();
+                cursor.skip(12); //l_seq, next refID, next pos
+                cursor.skip(4);  //tlen
+                int nameLength = binMqNl & 0xFF;
+                int cigarOps = flagNc & 0xFFFF;
+                cursor.skip(nameLength);
+                if(cigar.length < cigarOps * 4)
+                    cigar = new byte[cigarOps * 4];
+                cursor.read(cigar, cigarOps * 4);
+                cursor.skip(blockSize - 32 - nameLength - cigarOps * 4);
+                long end = cursor.virtualOffset();
+                records++;
+
+                if(refIndex < 0){
+                    noCoordinate++;
+                    continue;
+                }
+                if(refIndex >= references.length)
+                    throw new Exception("Record references unknown contig " + refIndex);
+                if(refIndex < lastRef || (refIndex == lastRef && pos < lastPos))
+                    throw new Exception("BAM file is not coordinate sorted");
+                lastRef = refIndex;
+                lastPos = pos;
+
+                int referenceLength = 0;
+                for(int i = 0; i < cigarOps; ++i){
+                    int op = (cigar[i * 4] & 0xFF) | (cigar[i * 4 + 1] & 0xFF) << 8 | (cigar[i * 4 + 2] & 0xFF) << 16 |
+                            (cigar[i * 4 + 3] & 0xFF) << 24;
+                    switch (op & 0xF){
+                        case 0: //M
+                        case 2: //D
+                        case 3: //N
+                        case 7: //=
+                        case 8: //X
+                            referenceLength += op >>> 4;
+                    }
+                }
+                boolean unmapped = (flagNc >>> 16 & 0x4) != 0;
+                int alignmentEnd = (unmapped || referenceLength == 0) ? pos + 1 : pos + referenceLength;
+                references[refIndex].add(binMqNl >>> 16, pos, alignmentEnd, start, end, !unmapped);
+            }
+        } finally {
+            executor.shutdownNow();
+            in.close();
+        }
+        long readTime = System.currentTimeMillis() - startTime;
+        long parseTime = (cpuTime() - startCpuTime) / 1000000;
+        writeIndex(indexFile, references, noCoordinate);
+        logger.info("Indexed " + records + " records in " + cursor.getBlocks() + " BGZF blocks (" +
+                bamFile.length() / (1 << 20) + " MB) in " + readTime + " ms on " + threads + " inflating thread(s), " +
+                String.format("%.1f", bamFile.length() / 1048576.0 / Math.max(1, readTime) * 1000) + " MB/s");
+        //one thread would parse the records and inflate every block in turn
+        long inflateTime = cursor.getInflateNanos() / 1000000;
+        logger.info("Parsing took " + parseTime + " ms and inflating " + inflateTime + " ms of CPU time, " +
+                String.format("%.1f", (parseTime + inflateTime) / (double)Math.max(1, readTime)) +
+                "x speedup of the pool over one thread");
+    }
+
+    /**
+     * @return CPU time of the current thread, wall time if the JVM does not measure it: a preempted thread
+     * should not count the time other threads ran
+     */
+    private static long cpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static BinningIndex[] readHeader(final BlockCursor cursor) throws Exception {
+        byte[] magic = new byte[4];
+        cursor.read(magic, 4);
+        if(!Arrays.equals(magic, BAM_MAGIC))
+            throw new Exception("Not a BAM file");
+        cursor.skip(cursor.readInt()); //header text
+        int nRef = cursor.readInt();
+        BinningIndex[] references = new BinningIndex[nRef];
+        for(int i = 0; i < nRef; ++i){
+            cursor.skip(cursor.readInt()); //name
+            cursor.readInt(); //length
+            references[i] = new BinningIndex();
+        }
+        return references;
+    }
+
+    private static void writeIndex(final File indexFile, final BinningIndex[] references, long noCoordinate) throws IOException {
+        File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+        BinningIndex.LittleEndianWriter out =
+                new BinningIndex.LittleEndianWriter(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try{
+            out.write(BAI_MAGIC);
+            out.writeInt(references.length);
+            for(BinningIndex reference : references)
+                reference.write(out);
+            out.writeLong(noCoordinate);
+        } finally {
+            out.close();
+        }
+        if(indexFile.exists() && !indexFile.delete())
+            throw new IOException("Cannot replace " + indexFile.getAbsolutePath());
+        if(!tmp.renameTo(indexFile))
+            throw new IOException("Cannot rename " + tmp.getAbsolutePath());
+    }
+
+    private static int readInt(final DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static long readLong(final DataInputStream in) throws IOException {
+        return Long.reverseBytes(in.readLong());
+    }
+
+    /**
+     * Sequential reader over the inflated content of the BAM file. Compressed blocks are read ahead and
+     * inflated on the executor, the cursor consumes them in file order
+     */
+    private static class BlockCursor {
+        BlockCursor(final InputStream in, final ExecutorService executor) {
+            this.in = in;
+            this.executor = executor;
+        }
+
+        int readInt() throws IOException {
+            read(scratch, 4);
+            return (scratch[0] & 0xFF) | (scratch[1] & 0xFF) << 8 | (scratch[2] & 0xFF) << 16 | (scratch[3] & 0xFF) << 24;
+        }
+
+        void read(final byte[] buffer, int length) throws IOException {
+            int done = 0;
+            while(done < length){
+                if(!ensureData())
+                    throw new EOFException("Unexpected end of BAM file");
+                int n = Math.min(length - done, current.data.length - position);
+                System.arraycopy(current.data, position, buffer, done, n);
+                position += n;
+                done += n;
+            }
+        }
+
+        void skip(int length) throws IOException {
+            while(length > 0){
+                if(!ensureData())
+                    throw new EOFException("Unexpected end of BAM file");
+                int n = Math.min(length, current.data.length - position);
+                position += n;
+                length -= n;
+            }
+        }
+
+        boolean atEnd() throws IOException {
+            return !ensureData();
+        }
+
+        /**
+         * @return virtual file offset of the next unread byte. At the end of a block this is the start of
+         * the next block, the same way samtools reports it
+         */
+        long virtualOffset() throws IOException {
+            if(current != null && position < current.data.length)
+                return current.address << 16 | position;
+            fillQueue();
+            return (queue.isEmpty() ? nextAddress : queue.getFirst().address) << 16;
+        }
+
+        long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return CPU time spent inflating blocks, summed over the threads of the executor
+         */
+        long getInflateNanos() {
+            return inflateNanos.get();
+        }
+
+        /**
+         * Move to the next non-empty block if the current one is exhausted
+         * @return false at the end of the file
+         */
+        private boolean ensureData() throws IOException {
+            while(current == null || position == current.data.length){
+                fillQueue();
+                if(queue.isEmpty())
+                    return false;
+                try{
+                    current = queue.removeFirst().block.get();
+                } catch (Exception e){
+                    throw new IOException("Error inflating BGZF block: " + e.toString());
+                }
+                position = 0;
+                blocks++;
+            }
+            return true;
+        }
+
+        private void fillQueue() throws IOException {
+            while(!eof && queue.size() < READ_AHEAD_BLOCKS){
+                final long address = nextAddress;
+                byte[] header = new byte[BGZF_HEADER];
+                int n = readFully(header);
+                if(n == 0){
+                    eof = true;
+                    break;
+                }
+                if(n < BGZF_HEADER || header[0] != 31 || (header[1] & 0xFF) != 139 || header[12] != 'B' || header[13] != 'C')
+                    throw new IOException("Malformed BGZF block at " + address);
+                int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+                final byte[] compressed = new byte[blockSize - BGZF_HEADER];
+                if(readFully(compressed) != compressed.length)
+                    throw new IOException("Truncated BGZF block at " + address);
+                nextAddress += blockSize;
+                queue.addLast(new PendingBlock(address, executor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws Exception {
+                        return inflate(address, compressed);
+                    }
+                })));
+            }
+        }
+
+        private Block inflate(long address, final byte[] compressed) throws DataFormatException {
+            long start = cpuTime();
+            int length = ByteBuffer.wrap(compressed, compressed.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            byte[] data = new byte[length];
+            Inflater inflater = new Inflater(true);
+            try{
+                inflater.setInput(compressed, 0, compressed.length - 8);
+                if(length > 0 && inflater.inflate(data) != length)
+                    throw new DataFormatException("Block at " + address + " is shorter than declared");
+            } finally {
+                inflater.end();
+            }
+            inflateNanos.addAndGet(cpuTime() - start);
+            return new Block(address, data);
+        }
+
+        private int readFully(final byte[] buffer) throws IOException {
+            int done = 0;
+            while(done < buffer.length){
+                int n = in.read(buffer, done, buffer.length - done);
+                if(n < 0)
+                    break;
+                done += n;
+            }
+            return done;
+        }
+
+        private final InputStream in;
+        private final ExecutorService executor;
+        private final LinkedList<PendingBlock> queue = new LinkedList<PendingBlock>();
+        private final byte[] scratch = new byte[8];
+        private Block current = null;
+        private int position = 0;
+        private long nextAddress = 0;
+        private boolean eof = false;
+        private long blocks = 0;
+        private final AtomicLong inflateNanos = new AtomicLong();
+    }
+
+    private static class Block {
+        Block(long address, final byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+
+        final long address;
+        final byte[] data;
+    }
+
+    private static class PendingBlock {
+        PendingBlock(long address, final Future<Block> block) {
+            this.address = address;
+            this.block = block;
+        }
+
+        final long address;
+        final Future<Block> block;
+    }
+
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    private static final byte[] BAI_MAGIC = {'B', 'A', 'I', 1};
+    private static final int BGZF_HEADER = 18;
+    private static final int READ_AHEAD_BLOCKS = 256;
+
+    private final int threads;
+}
@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * UCSC binning scheme and 16 kb linear index of one reference sequence, the part shared by BAM (.bai) and
+ * tabix (.tbi) index files.
+ */
+public class BinningIndex {
+
+    /**
+     * Add a record
+     * @param bin bin of the record, see reg2bin
+     * @param begin 0-based start of the record
+     * @param end 0-based exclusive end of the record
+     * @param startOffset virtual file offset of the record
+     * @param endOffset virtual file offset right after the record
+     * @param mapped false for unmapped reads placed at their mate's position
+     */
+    public void add(int bin, int begin, int end, long startOffset, long endOffset, boolean mapped) {
+        List<long[]> chunks = bins.get(bin);
+        if(chunks == null){
+            chunks = new ArrayList<long[]>();
+            bins.put(bin, chunks);
+        }
+        long[] last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if(last != null && (last[1] == startOffset || last[1] >>> 16 == startOffset >>> 16))
+            last[1] = Math.max(last[1], endOffset);  //same or adjacent compressed block - extend the chunk
+        else
+            chunks.add(new long[]{startOffset, endOffset});
+
+        int firstWindow = begin >> LINEAR_SHIFT, lastWindow = (Math.max(end, begin + 1) - 1) >> LINEAR_SHIFT;
+        if(lastWindow >= linear.length)
+            linear = Arrays.copyOf(linear, Math.max(lastWindow + 1, linear.length * 2));
+        for(int w = firstWindow; w <= lastWindow; ++w){
+            if(linear[w] == 0 || startOffset < linear[w])
+                linear[w] = startOffset;
+        }
+        linearSize = Math.max(linearSize, lastWindow + 1);
+
+        if(firstOffset < 0 || startOffset < firstOffset)
+            firstOffset = startOffset;
+        lastOffset = Math.max(lastOffset, endOffset);
+        if(mapped)
+            mappedCount++;
+        else
+            unmappedCount++;
+    }
+
+    /**
+     * Write bins, metadata pseudo-bin and linear index
+     */
+    public void write(final LittleEndianWriter out) throws IOException {
+        if(bins.isEmpty()){
+            out.writeInt(0);
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(bins.size() + 1);
+        for(Map.Entry<Integer, List<long[]>> bin : bins.entrySet()){
+            out.writeInt(bin.getKey());
+            out.writeInt(bin.getValue().size());
+            for(long[] chunk : bin.getValue()){
+                out.writeLong(chunk[0]);
+                out.writeLong(chunk[1]);
+            }
+        }
+        //metadata pseudo-bin
+        out.writeInt(METADATA_BIN);
+        out.writeInt(2);
+        out.writeLong(firstOffset);
+        out.writeLong(lastOffset);
+        out.writeLong(mappedCount);
+        out.writeLong(unmappedCount);
+
+        out.writeInt(linearSize);
+        long previous = 0;
+        for(int w = 0; w < linearSize; ++w){
+            if(linear[w] == 0)
+                linear[w] = previous;
+            previous = linear[w];
+            out.writeLong(linear[w]);
+        }
+    }
+
+    /**
+     * @param begin 0-based start
+     * @param end 0-based exclusive end
+     * @return smallest bin containing the interval
+     */
+    public static int reg2bin(int begin, int end) {
+        --end;
+        if(begin >> 14 == end >> 14) return ((1 << 15) - 1) / 7 + (begin >> 14);
+        if(begin >> 17 == end >> 17) return ((1 << 12) - 1) / 7 + (begin >> 17);
+        if(begin >> 20 == end >> 20) return ((1 << 9) - 1) / 7 + (begin >> 20);
+        if(begin >> 23 == end >> 23) return ((1 << 6) - 1) / 7 + (begin >> 23);
+        if(begin >> 26 == end >> 26) return ((1 << 3) - 1) / 7 + (begin >> 26);
+        return 0;
+    }
+
+    /**
+     * Read the linear indexes of all references from a BAM index file
+     * @param baiFile BAM index file
+     * @return per reference, the virtual offset of the first record overlapping every 16 kb window
+     * @throws IOException if the file cannot be read or is not a BAM index
+     */
+    public static long[][] readLinearIndexes(final File baiFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(baiFile, "r");
+        try{
+            ByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[4];
+            in.get(magic);
+            if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1)
+                throw new IOException(baiFile.getName() + " is not a BAM index");
+            long[][] linear = new long[in.getInt()][];
+            for(int ref = 0; ref < linear.length; ++ref){
+                int binCount = in.getInt();
+                for(int b = 0; b < binCount; ++b){
+                    in.getInt();
+                    int chunks = in.getInt();
+                    in.position(in.position() + chunks * 16);
+                }
+                linear[ref] = new long[in.getInt()];
+                for(int w = 0; w < linear[ref].length; ++w)
+                    linear[ref][w] = in.getLong();
+            }
+            return linear;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return 16 kb window of the linear index containing the 0-based position
+     */
+    public static int linearWindow(int position) {
+        return position >> LINEAR_SHIFT;
+    }
+
+    /**
+     * Little-endian writer of index files
+     */
+    public static class LittleEndianWriter {
+        public LittleEndianWriter(final OutputStream out) {
+            this.out = out;
+        }
+
+        public void write(final byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        public void writeInt(int value) throws IOException {
+            buffer.clear();
+            buffer.putInt(value);
+            out.write(buffer.array(), 0, 4);
+        }
+
+        public void writeLong(long value) throws IOException {
+            buffer.clear();
+            buffer.putLong(value);
+            out.write(buffer.array(), 0, 8);
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private final OutputStream out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static final int METADATA_BIN = 37450;
+    private static final int LINEAR_SHIFT = 14;
+
+    private final SortedMap<Integer, List<long[]>> bins = new TreeMap<Integer, List<long[]>>();
+    private long[] linear = new long[1024];
+    private int linearSize = 0;
+    private long firstOffset = -1, lastOffset = 0;
+    private long mappedCount = 0, unmappedCount = 0;
+}
@@ -0,0 +1,264 @@
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Store of finished regions, used to resume a killed run or to update a run after regions were added to the
+ * BED file. Sums and counts of finished regions are appended to a partial file (see PartialResults) and
+ * registered with the fingerprint of the inputs, a rerun restores the regions with the same fingerprint.
+ * Safe to share between threads.
+ */
+public class Checkpoint {
+
+    /**
+     * Open the store, registered regions with a different fingerprint are ignored
+     * @param directory directory of the store, created if missing
+     * @param bam BAM file of the run
+     * @param fingerprint fingerprint of the inputs, see fingerprint
+     * @throws IOException if the store cannot be read or created
+     */
+    public Checkpoint(final File directory, final File bam, String fingerprint) throws IOException {
+        Logger logger = Logger.getLogger(Checkpoint.class);
+        if(!directory.exists() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory.getAbsolutePath());
+        this.directory = directory;
+        this.bam = bam;
+        this.fingerprint = fingerprint;
+
+        File indexFile = new File(directory, INDEX_FILE);
+        boolean newLine = false;
+        if(indexFile.exists()){
+            BufferedReader in = new BufferedReader(new FileReader(indexFile));
+            try{
+                String line;
+                while((line = in.readLine()) != null){
+                    String[] data = line.split("\t");
+                    if(data.length != 8 || !data[7].equals(LINE_END))
+                        continue; //cut short by a killed process
+                    String key = data[0] + "\t" + data[1] + "\t" + data[2];
+                    try{
+                        if(data[3].equals(fingerprint))
+                            done.put(key, new Entry(data[4], Integer.parseInt(data[5]), Long.parseLong(data[6])));
+                        else
+                            done.remove(key);
+                    } catch (NumberFormatException e){
+                        logger.warn("Invalid line in " + indexFile.getName() + ": " + line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+            try{
+                if(file.length() > 0){
+                    file.seek(file.length() - 1);
+                    newLine = file.read() != '\n';
+                }
+            } finally {
+                file.close();
+            }
+        }
+        index = new PrintWriter(new BufferedWriter(new FileWriter(indexFile, true)));
+        if(newLine)
+            index.print('\n');
+        logger.info("Checkpoint " + directory.getPath() + " holds " + done.size() + " finished regions");
+    }
+
+    /**
+     * Fingerprint of everything the accumulated qualities depend on: BAM file, its index, reference genome with
+     * its index, the byte range of the BAM file, the read filter, the depth cap, quality histograms and statistics.
+     * Files are identified by size, modification time and their first and last bytes, so that they are not read in full
+     * @throws IOException if a file cannot be read
+     */
+    public static String fingerprint(final File bam, String refGenome, final ExtractionOptions options) throws IOException {
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e.toString());
+        }
+        digest.update(("v" + VERSION + ":" + options.getBamRangeStart() + "-" + options.getBamRangeEnd() +
+                ":" + options.getReadFilter().describe() + (options.isQualityStats() ? ":stats" : "") +
+                statisticNames(options.getStatistics()) +
+                (options.getMaxDepth() > 0 ? ":depth" + options.getMaxDepth() + "/" + options.getDownsampleSeed() : "")).getBytes());
+        File[] files = {bam, new File(bam.getAbsolutePath() + ".bai"), new File(refGenome), new File(refGenome + ".fai")};
+        for(File file : files){
+            digest.update((file.length() + ":" + file.lastModified()).getBytes());
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try{
+                byte[] sample = new byte[(int)Math.min(in.length(), SAMPLE_BYTES)];
+                in.readFully(sample);
+                digest.update(sample);
+                in.seek(in.length() - sample.length);
+                in.readFully(sample);
+                digest.update(sample);
+            } finally {
+                in.close();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest())
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+
+    /**
+     * @return true if the region was finished with the same inputs
+     */
+    public synchronized boolean isDone(final BEDRecord region) {
+        return done.containsKey(key(region));
+    }
+
+    /**
+     * @return number of reads of a finished region
+     */
+    public synchronized long getReads(final BEDRecord region) {
+        return done.get(key(region)).reads;
+    }
+
+    /**
+     * Add the stored sums and counts of a finished region with reads to the accumulator
+     */
+    public void restore(final BEDRecord region, final QualityAccumulator accumulator) throws IOException {
+        PartialResults.Reader reader;
+        Entry entry;
+        synchronized (this){
+            entry = done.get(key(region));
+            reader = readers.get(entry.file);
+            if(reader == null){
+                reader = new PartialResults.Reader(new File(directory, entry.file));
+                readers.put(entry.file, reader);
+            }
+        }
+        reader.getRecords().get(entry.record).addTo(accumulator);
+    }
+
+    /**
+     * Register a finished region
+     * @param region finished region
+     * @param accumulator accumulated qualities, null if the region has no reads
+     * @param reads number of reads
+     * @throws IOException if the store cannot be written
+     */
+    public synchronized void done(final BEDRecord region, final QualityAccumulator accumulator, long reads) throws IOException {
+        String file = "-";
+        int record = -1;
+        if(accumulator != null){
+            if(partial == null){
+                int n = 1;
+                while(new File(directory, "part-" + n + ".partial").exists())
+                    n++;
+                partialName = "part-" + n + ".partial";
+                partial = new PartialResults.Writer(new File(directory, partialName), bam);
+            }
+            partial.write(-1, accumulator, reads);
+            partial.flush();
+            file = partialName;
+            record = partialRecords++;
+        }
+        //the index is written after the record, so that it never refers to a lost record
+        index.println(key(region) + "\t" + fingerprint + "\t" + file + "\t" + record + "\t" + reads + "\t" + LINE_END);
+        index.flush();
+        done.put(key(region), new Entry(file, record, reads));
+    }
+
+    public synchronized void close() {
+        Logger logger = Logger.getLogger(Checkpoint.class);
+        index.close();
+        try{
+            if(partial != null)
+                partial.close();
+            for(PartialResults.Reader reader : readers.values())
+                reader.close();
+        } catch (IOException e){
+            logger.error("Error closing checkpoint: " + e.toString());
+        }
+        partial = null;
+        readers.clear();
+    }
+
+    /**
+     * Rewrite the index with the regions finished with the current fingerprint only and delete the partial files
+     * none of them refers to, e.g. written by runs with other inputs or superseded by a rerun. Called after close,
+     * once every region of the run is registered
+     * @throws IOException if the index cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        Logger logger = Logger.getLogger(Checkpoint.class);
+        File indexFile = new File(directory, INDEX_FILE);
+        File compacted = new File(directory, INDEX_FILE + ".tmp");
+        Set<String> used = new HashSet<String>();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(compacted)));
+        try{
+            for(Map.Entry<String, Entry> region : done.entrySet()){
+                Entry entry = region.getValue();
+                out.println(region.getKey() + "\t" + fingerprint + "\t" + entry.file + "\t" + entry.record + "\t" +
+                        entry.reads + "\t" + LINE_END);
+                used.add(entry.file);
+            }
+        } finally {
+            out.close();
+        }
+        if(out.checkError())
+            throw new IOException("Cannot write " + compacted.getAbsolutePath());
+        if(!indexFile.delete() || !compacted.renameTo(indexFile))
+            throw new IOException("Cannot replace " + indexFile.getAbsolutePath());
+        int deleted = 0;
+        File[] files = directory.listFiles();
+        for(File file : files != null ? files : new File[0]){
+            if(file.getName().matches("part-[0-9]+\\.partial") && !used.contains(file.getName()) && file.delete())
+                deleted++;
+        }
+        if(deleted > 0)
+            logger.info("Deleted " + deleted + " partial files no longer referred to by " + directory.getPath());
+    }
+
+    private static String statisticNames(final List<RegionStatistic.Factory> statistics) {
+        StringBuilder names = new StringBuilder();
+        for(RegionStatistic.Factory statistic : statistics)
+            names.append(':').append(statistic.getName());
+        return names.toString();
+    }
+
+    private static String key(final BEDRecord region) {
+        return region.getContigName() + "\t" + region.getStartIndex() + "\t" + region.getStopIndex();
+    }
+
+    private static class Entry {
+        Entry(String file, int record, long reads) {
+            this.file = file;
+            this.record = record;
+            this.reads = reads;
+        }
+
+        final String file;
+        final int record;
+        final long reads;
+    }
+
+    /**
+     * Changes whenever accumulated qualities of the same inputs change
+     */
+    private static final int VERSION = 1;
+
+    private static final String INDEX_FILE = "regions.tsv";
+    private static final String LINE_END = ".";
+    private static final int SAMPLE_BYTES = 1 << 16;
+
+    private final File directory;
+    private final File bam;
+    private final String fingerprint;
+    private final Map<String, Entry> done = new HashMap<String, Entry>();
+    private final Map<String, PartialResults.Reader> readers = new HashMap<String, PartialResults.Reader>();
+    private final PrintWriter index;
+    private PartialResults.Writer partial = null;
+    private String partialName = null;
+    private int partialRecords = 0;
+}
@@ -0,0 +1,95 @@
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Output of a run that records its finished regions in a Checkpoint, see RegionExtractor. A region is recorded
+ * after its output is written, so a killed run never records a region it has not written. Once every region of
+ * the run is recorded, the checkpoint is compacted when the sink is closed.
+ */
+public class CheckpointSink implements RegionSink {
+    /**
+     * @param checkpoint checkpoint of the run, closed with the sink
+     * @param output output of the regions, closed with the sink
+     * @param regions regions recorded in the checkpoint, other regions are only written, e.g. windows of tiled regions
+     */
+    public CheckpointSink(final Checkpoint checkpoint, final RegionSink output, final List<BEDRecord> regions) {
+        this.checkpoint = checkpoint;
+        this.output = output;
+        this.regions = Collections.newSetFromMap(new IdentityHashMap<BEDRecord, Boolean>());
+        this.regions.addAll(regions);
+    }
+
+    /**
+     * @return true if the region was finished by a previous run with the same inputs
+     */
+    public boolean isDone(final BEDRecord region) {
+        return checkpoint.isDone(region);
+    }
+
+    /**
+     * Write the output of a region finished by a previous run
+     * @param accumulator empty accumulator of the region
+     * @return false if the region cannot be restored and has to be processed again
+     * @throws Exception if the output cannot be written
+     */
+    public boolean restore(MappedReference hg, int bedIndex, final QualityAccumulator accumulator) throws Exception {
+        Logger logger = Logger.getLogger(CheckpointSink.class);
+        BEDRecord region = accumulator.getRegion();
+        long reads = checkpoint.getReads(region);
+        if(reads == 0){
+            output.skip(region);
+            return true;
+        }
+        try{
+            checkpoint.restore(region, accumulator);
+        } catch (Exception e){
+            logger.warn("Cannot restore " + region.getContigName() + ":" + region.getStartIndex() + "-" +
+                    region.getStopIndex() + " from checkpoint, it is processed again: " + e.toString());
+            return false;
+        }
+        output.write(hg, bedIndex, accumulator, reads);
+        return true;
+    }
+
+    @Override
+    public void write(MappedReference hg, int bedIndex, final QualityAccumulator accumulator, long reads) throws Exception {
+        output.write(hg, bedIndex, accumulator, reads);
+        if(regions.contains(accumulator.getRegion()))
+            checkpoint.done(accumulator.getRegion(), accumulator, reads);
+    }
+
+    @Override
+    public void skip(final BEDRecord region) throws Exception {
+        output.skip(region);
+        if(regions.contains(region))
+            checkpoint.done(region, null, 0);
+    }
+
+    @Override
+    public void close() throws Exception {
+        Logger logger = Logger.getLogger(CheckpointSink.class);
+        try{
+            output.close();
+        } finally {
+            checkpoint.close();
+        }
+        for(BEDRecord region : regions){
+            if(!checkpoint.isDone(region))
+                return;
+        }
+        try{
+            checkpoint.compact();
+        } catch (IOException e){
+            logger.warn("Cannot compact checkpoint: " + e.toString());
+        }
+    }
+
+    private final Checkpoint checkpoint;
+    private final RegionSink output;
+    private final Set<BEDRecord> regions;
+}
@@ -0,0 +1,170 @@
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMRecord;
+import org.apache.log4j.Logger;
+
+/**
+ * Lays the bases and qualities of a read out along the reference by walking its CIGAR.
+ * Works on getReadBases()/getBaseQualities() directly and keeps its buffers between reads, so a walker
+ * must not be shared between threads - use forCurrentThread().
+ */
+public class CigarWalker {
+
+    /**
+     * Base stored for the deleted reference positions
+     */
+    public static final byte DEL_BASE = '-';
+
+    /**
+     * Quality marker of the deleted reference positions. It is replaced with the mean of the neighbours
+     * after the walk, the same way QualityExtractor.getAlignedQualities always did it
+     */
+    public static final byte DEL_QUALITY = '*';
+
+    /**
+     * Base stored for the skipped (N) reference positions. It is not accumulated
+     */
+    public static final byte SKIP_BASE = 'N';
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ThreadLocal<CigarWalker> walkers = new ThreadLocal<CigarWalker>() {
+        @Override
+        protected CigarWalker initialValue() {
+            return new CigarWalker();
+        }
+    };
+
+    /**
+     * @return walker owned by the calling thread
+     */
+    public static CigarWalker forCurrentThread() {
+        return walkers.get();
+    }
+
+    /**
+     * Walk the CIGAR of the record. Aligned bases and qualities are available through getBases() and
+     * getQualities() until the next call
+     * @param record aligned read
+     * @return number of reference positions covered by the read, or -1 if the read has no qualities
+     */
+    public int walk(final SAMRecord record) {
+        final byte[] readBases = record.getReadBases();
+        final byte[] readQualities = record.getBaseQualities();
+        if(readQualities.length == 0 || readQualities.length != readBases.length)
+            return -1;
+
+        length = record.getAlignmentEnd() - record.getAlignmentStart() + 1;
+        ensureCapacity(length);
+
+        final Cigar cigar = record.getCigar();
+        int readPos = 0, refPos = 0;
+        for(int e = 0; e < cigar.numCigarElements(); ++e) {
+            final CigarElement elem = cigar.getCigarElement(e);
+            final int len = elem.getLength();
+            switch (elem.getOperator()) {
+                case M:
+                case EQ:
+                case X:
+                    System.arraycopy(readBases, readPos, bases, refPos, len);
+                    System.arraycopy(readQualities, readPos, qualities, refPos, len);
+                    readPos += len;
+                    refPos += len;
+                    break;
+                case D:
+                    for(int i = refPos; i < refPos + len; ++i){
+                        bases[i] = DEL_BASE;
+                        qualities[i] = DEL_QUALITY;
+                    }
+                    refPos += len;
+                    break;
+                case N:
+                    for(int i = refPos; i < refPos + len; ++i){
+                        bases[i] = SKIP_BASE;
+                        qualities[i] = 0;
+                    }
+                    refPos += len;
+                    break;
+                case S:
+                case I:
+                    readPos += len;
+                    break;
+                case H:
+                case P:
+                    break;
+            }
+        }
+        if(refPos != length) {
+            Logger.getLogger(CigarWalker.class).error("CIGAR does not match alignment span for read " + record.getReadName());
+            return -1;
+        }
+
+        fillDeletionQualities();
+        return length;
+    }
+
+    /**
+     * @return aligned bases of the last walked read; only the first getLength() bytes are valid
+     */
+    public byte[] getBases() {
+        return bases;
+    }
+
+    /**
+     * @return aligned qualities of the last walked read; only the first getLength() bytes are valid
+     */
+    public byte[] getQualities() {
+        return qualities;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Deal with DEL - replace quality with the mean value from the neighbours
+     */
+    private void fillDeletionQualities() {
+        int i = 0;
+        while(i < length)
+        {
+            if(qualities[i] != DEL_QUALITY)
+            {
+                i++;
+                continue;
+            }
+            int left_boundary = i;
+            while(i < length && qualities[i] == DEL_QUALITY)
+                i++;
+            int right_boundary = i - 1;
+
+            byte mean_quality;
+            if(0 == left_boundary && length - 1 == right_boundary)
+                mean_quality = 0;
+            else if(0 == left_boundary)
+                mean_quality = qualities[right_boundary + 1];
+            else if(length - 1 == right_boundary)
+                mean_quality = qualities[left_boundary - 1];
+            else //normal case - we have neighbours on the left and on the right
+                mean_quality = (byte)((qualities[left_boundary - 1] + qualities[right_boundary + 1]) / 2);
+
+            //fill DEL regions with mean values from the neighbours
+            for(int j = left_boundary; j <= right_boundary; ++j)
+                qualities[j] = mean_quality;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if(bases.length >= size)
+            return;
+        int capacity = bases.length;
+        while(capacity < size)
+            capacity *= 2;
+        bases = new byte[capacity];
+        qualities = new byte[capacity];
+    }
+
+    private byte[] bases = new byte[INITIAL_CAPACITY];
+    private byte[] qualities = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+}
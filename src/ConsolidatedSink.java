@@ -0,0 +1,55 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * All regions in one BGZF-compressed VCF file, see RegionExtractor.Output.CONSOLIDATED. Records are formatted
+ * on the calling thread and written in genome order by ConsolidatedVcfWriter.
+ */
+public class ConsolidatedSink implements RegionSink {
+    /**
+     * @param file output file, see ConsolidatedVcfWriter
+     * @param regions all regions that will be reported, written or skipped
+     * @param qualityStats true if the regions keep quality histograms
+     * @param statistics statistics of the regions
+     * @param spillThreshold bytes of records kept in memory while they wait for their turn, 0 for no limit
+     * @param metrics timers of the run, null if not measured
+     * @throws IOException if the output file cannot be created
+     */
+    public ConsolidatedSink(final File file, final List<BEDRecord> regions, boolean qualityStats,
+                            final List<RegionStatistic.Factory> statistics, long spillThreshold, final RunMetrics metrics)
+            throws IOException {
+        this.writer = new ConsolidatedVcfWriter(file, regions, qualityStats, statistics);
+        this.metrics = metrics;
+        writer.setSpillThreshold(spillThreshold);
+    }
+
+    @Override
+    public void write(MappedReference hg, int bedIndex, final QualityAccumulator accumulator, long reads) throws Exception {
+        BEDRecord region = accumulator.getRegion();
+        long start = metrics != null ? System.nanoTime() : 0;
+        ByteBuffer ref = hg.getSubsequence(region.getContigName(), region.getStartIndex(), region.getStopIndex());
+        if(metrics != null)
+            metrics.addTime(RunMetrics.Phase.REFERENCE, System.nanoTime() - start);
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        formatter.appendVcf(accumulator, ref);
+        writer.submit(region, formatter);
+    }
+
+    /**
+     * Let the output proceed past the region
+     */
+    @Override
+    public void skip(final BEDRecord region) throws Exception {
+        writer.skip(region);
+    }
+
+    @Override
+    public void close() throws Exception {
+        writer.close();
+    }
+
+    private final ConsolidatedVcfWriter writer;
+    private final RunMetrics metrics;
+}
@@ -0,0 +1,311 @@
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the VCF records of all regions into one BGZF-compressed file with a tabix index next to it, compressed
+ * on a background thread. Regions are written in a fixed order: contigs as they first appear in the BED file,
+ * regions of a contig by start, stop and BED order. A position shared by overlapping regions is written once,
+ * from the first of them. Every region passed to the constructor must be reported once, with submit or skip.
+ */
+public class ConsolidatedVcfWriter {
+
+    /**
+     * Create the output file, write the VCF header and start the compression thread
+     * @param file output file, the index is written to file + ".tbi"
+     * @param regions all regions that will be reported
+     * @throws IOException if the output file cannot be created
+     */
+    public ConsolidatedVcfWriter(final File file, final List<BEDRecord> regions) throws IOException {
+        this(file, regions, false, Collections.<RegionStatistic.Factory>emptyList());
+    }
+
+    /**
+     * Same as ConsolidatedVcfWriter(file, regions)
+     * @param qualityStats true to declare the INFO fields of regions with quality histograms in the header
+     * @param statistics statistics of the regions whose INFO fields are declared in the header
+     */
+    public ConsolidatedVcfWriter(final File file, final List<BEDRecord> regions, boolean qualityStats,
+                                 final List<RegionStatistic.Factory> statistics) throws IOException {
+        this.file = file;
+        for(BEDRecord record : regions){
+            if(!contigs.containsKey(record.getContigName()))
+                contigs.put(record.getContigName(), contigs.size());
+        }
+        final List<BEDRecord> sorted = new ArrayList<BEDRecord>(regions);
+        final Map<BEDRecord, Integer> bedIndex = new IdentityHashMap<BEDRecord, Integer>();
+        for(int i = 0; i < regions.size(); ++i)
+            bedIndex.put(regions.get(i), i);
+        Collections.sort(sorted, new Comparator<BEDRecord>() {
+            @Override
+            public int compare(BEDRecord o1, BEDRecord o2) {
+                int c = compareInts(contigs.get(o1.getContigName()), contigs.get(o2.getContigName()));
+                if(c == 0)
+                    c = compareInts(o1.getStartIndex(), o2.getStartIndex());
+                if(c == 0)
+                    c = compareInts(o1.getStopIndex(), o2.getStopIndex());
+                return c != 0 ? c : compareInts(bedIndex.get(o1), bedIndex.get(o2));
+            }
+        });
+        for(int i = 0; i < sorted.size(); ++i)
+            order.put(sorted.get(i), i);
+
+        indexes = new BinningIndex[contigs.size()];
+        for(int i = 0; i < indexes.length; ++i)
+            indexes[i] = new BinningIndex();
+
+        out = new BlockCompressedOutputStream(file);
+        RegionFormatter header = RegionFormatter.forCurrentThread();
+        header.appendVcfHeader(qualityStats, statistics);
+        out.write(header.getBytes(), 0, header.getSize());
+        compressor.setName("VCF compressor");
+        compressor.start();
+    }
+
+    /**
+     * Limit the records waiting for their turn in memory, records beyond it are written to a temporary file
+     * next to the output and read back when their region is due. Set before the first region is reported
+     * @param bytes maximal bytes of waiting records kept in memory, 0 for no limit
+     */
+    public void setSpillThreshold(long bytes) {
+        spillThreshold = bytes;
+    }
+
+    /**
+     * Hand over the VCF records of the region formatted by formatter. The records are copied, so the
+     * formatter may be reused right away
+     * @param region region as passed to the constructor
+     * @param formatter formatter holding the records of the region only
+     * @throws InterruptedException if interrupted while the compression queue is full
+     * @throws IOException if the records cannot be spilled or read back
+     */
+    public void submit(final BEDRecord region, final RegionFormatter formatter) throws InterruptedException, IOException {
+        int[] lineEnds = new int[formatter.getLineCount()];
+        for(int i = 0; i < lineEnds.length; ++i)
+            lineEnds[i] = formatter.getLineEnd(i);
+        complete(region, new Segment(region, Arrays.copyOf(formatter.getBytes(), formatter.getSize()), lineEnds));
+    }
+
+    /**
+     * Report a region that has no records
+     * @param region region as passed to the constructor
+     * @throws InterruptedException if interrupted while the compression queue is full
+     * @throws IOException if spilled records of the next regions cannot be read back
+     */
+    public void skip(final BEDRecord region) throws InterruptedException, IOException {
+        complete(region, EMPTY);
+    }
+
+    /**
+     * Write the remaining regions, finish the file and write the tabix index. Regions that were never reported,
+     * e.g. because their task failed, are left out
+     * @throws Exception if the file or its index cannot be written
+     */
+    public void close() throws Exception {
+        Logger logger = Logger.getLogger(ConsolidatedVcfWriter.class);
+        synchronized (this){
+            try{
+                if(next < order.size()){
+                    logger.warn((order.size() - next - ready.size()) + " regions were not reported, they are missing in " + file.getName());
+                    for(Segment segment : ready.values()){
+                        if(segment != EMPTY)
+                            queue.put(load(segment));
+                    }
+                    ready.clear();
+                    next = order.size();
+                }
+            } finally {
+                if(spillOut != null){
+                    logger.info("Spilled " + spilledBytes + " bytes of VCF records to " + spillFile.getName());
+                    spillOut.close();
+                    spillFile.delete();
+                    spillOut = null;
+                }
+            }
+        }
+        queue.put(END);
+        compressor.join();
+        out.close();
+        if(failure != null)
+            throw failure;
+        writeIndex(new File(file.getAbsolutePath() + ".tbi"));
+        logger.info("Wrote " + records + " VCF records to " + file.getName());
+    }
+
+    private synchronized void complete(final BEDRecord region, Segment segment) throws InterruptedException, IOException {
+        Integer position = order.get(region);
+        if(position == null)
+            throw new IllegalArgumentException("Unknown region " + region.getContigName() + ":" + region.getStartIndex());
+        if(position != next && segment.data != null){
+            if(spillThreshold > 0 && waitingBytes + segment.data.length > spillThreshold)
+                segment = spill(segment);
+            else
+                waitingBytes += segment.data.length;
+        }
+        ready.put(position, segment);
+        Segment head;
+        while((head = ready.remove(next)) != null){
+            if(next++ != position && head.data != null)
+                waitingBytes -= head.data.length;
+            if(head != EMPTY)
+                queue.put(load(head));
+        }
+    }
+
+    /**
+     * @return the segment with its records in the spill file
+     */
+    private Segment spill(final Segment segment) throws IOException {
+        if(spillOut == null){
+            spillFile = File.createTempFile(file.getName() + ".", ".spill", file.getAbsoluteFile().getParentFile());
+            spillOut = new RandomAccessFile(spillFile, "rw");
+        }
+        spillOut.seek(spilledBytes);
+        spillOut.write(segment.data);
+        Segment spilled = new Segment(segment.region, null, segment.lineEnds);
+        spilled.spillOffset = spilledBytes;
+        spilled.spillLength = segment.data.length;
+        spilledBytes += segment.data.length;
+        return spilled;
+    }
+
+    /**
+     * @return the segment with its records in memory, read back from the spill file if necessary
+     */
+    private Segment load(final Segment segment) throws IOException {
+        if(segment.data != null)
+            return segment;
+        byte[] data = new byte[segment.spillLength];
+        spillOut.seek(segment.spillOffset);
+        spillOut.readFully(data);
+        return new Segment(segment.region, data, segment.lineEnds);
+    }
+
+    /**
+     * Compress the records and index every one of them by its position, records of positions already written
+     * by an overlapping region are dropped
+     */
+    private void compress() {
+        int[] lastPositions = new int[indexes.length];
+        Segment segment;
+        try{
+            while((segment = queue.take()) != END){
+                if(failure != null)
+                    continue; //keep draining, so that workers never block on a full queue
+                try{
+                    int contig = contigs.get(segment.region.getContigName());
+                    BinningIndex index = indexes[contig];
+                    int lineStart = 0;
+                    for(int i = 0; i < segment.lineEnds.length; ++i){
+                        int position = segment.region.getStartIndex() + i;
+                        if(position > lastPositions[contig]){
+                            long startOffset = out.getFilePointer();
+                            out.write(segment.data, lineStart, segment.lineEnds[i] - lineStart);
+                            index.add(BinningIndex.reg2bin(position - 1, position), position - 1, position, startOffset,
+                                    out.getFilePointer(), true);
+                            lastPositions[contig] = position;
+                            records++;
+                        }
+                        lineStart = segment.lineEnds[i];
+                    }
+                } catch (IOException e){
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e){
+            failure = e;
+        }
+    }
+
+    private void writeIndex(final File indexFile) throws IOException {
+        BinningIndex.LittleEndianWriter index = new BinningIndex.LittleEndianWriter(new BlockCompressedOutputStream(indexFile));
+        try{
+            index.write(TABIX_MAGIC);
+            index.writeInt(contigs.size());
+            index.writeInt(TABIX_FORMAT_VCF);
+            index.writeInt(1); //sequence column
+            index.writeInt(2); //begin column
+            index.writeInt(0); //no end column, the end is derived from REF
+            index.writeInt('#'); //header lines start with
+            index.writeInt(0); //lines to skip
+            int namesLength = 0;
+            for(String contig : contigs.keySet())
+                namesLength += contig.getBytes().length + 1;
+            index.writeInt(namesLength);
+            for(String contig : contigs.keySet()){
+                index.write(contig.getBytes());
+                index.write(new byte[]{0});
+            }
+            for(BinningIndex reference : indexes)
+                reference.write(index);
+        } finally {
+            index.close();
+        }
+    }
+
+    private static int compareInts(int i1, int i2) {
+        return i1 < i2 ? -1 : (i1 > i2 ? 1 : 0);
+    }
+
+    /**
+     * Formatted records of one region
+     */
+    private static class Segment {
+        Segment(final BEDRecord region, final byte[] data, final int[] lineEnds) {
+            this.region = region;
+            this.data = data;
+            this.lineEnds = lineEnds;
+        }
+
+        final BEDRecord region;
+        /**
+         * Records, null if they were spilled
+         */
+        final byte[] data;
+        final int[] lineEnds;
+        long spillOffset = 0;
+        int spillLength = 0;
+    }
+
+    private static final Segment EMPTY = new Segment(null, new byte[0], new int[0]);
+    private static final Segment END = new Segment(null, new byte[0], new int[0]);
+
+    /**
+     * Segments waiting for compression, the workers block when it is full
+     */
+    private static final int QUEUE_CAPACITY = 64;
+
+    private static final byte[] TABIX_MAGIC = {'T', 'B', 'I', 1};
+    private static final int TABIX_FORMAT_VCF = 2;
+
+    private final File file;
+    private final Map<String, Integer> contigs = new LinkedHashMap<String, Integer>();
+    private final Map<BEDRecord, Integer> order = new IdentityHashMap<BEDRecord, Integer>();
+    private final Map<Integer, Segment> ready = new TreeMap<Integer, Segment>();
+    private int next = 0;
+    private long spillThreshold = 0;
+    /**
+     * Bytes of the records waiting in memory for their turn
+     */
+    private long waitingBytes = 0;
+    private File spillFile = null;
+    private RandomAccessFile spillOut = null;
+    private long spilledBytes = 0;
+    private final BlockingQueue<Segment> queue = new ArrayBlockingQueue<Segment>(QUEUE_CAPACITY);
+    private final BinningIndex[] indexes;
+    private final BlockCompressedOutputStream out;
+    private final Thread compressor = new Thread(new Runnable() {
+        @Override
+        public void run() {
+            compress();
+        }
+    });
+    private volatile Exception failure = null;
+    private long records = 0;
+}
@@ -0,0 +1,184 @@
+import net.sf.samtools.SAMRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Caps the number of reads of one region covering any of its positions, see ExtractionOptions.setMaxDepth.
+ * Reads sorted by start are grouped by the first position of the region they cover, the free places at that
+ * position go to the reads of the group with the lowest hash of the seed and the read name. Kept reads are
+ * passed on in their original order. Not thread-safe, one instance per region.
+ */
+public class DepthDownsampler {
+
+    /**
+     * Receives the kept reads
+     */
+    public static interface Sink {
+        /**
+         * @param record kept read, null if it was walked by a ReadPipeline
+         * @param read kept read walked by a ReadPipeline, null if not pipelined
+         */
+        void accept(SAMRecord record, ReadPipeline.AlignedRead read) throws Exception;
+    }
+
+    /**
+     * @param region region of the reads
+     * @param maxDepth maximal number of kept reads covering a position
+     * @param seed seed of the read priorities, reads are selected differently with another seed
+     * @param sink receiver of the kept reads
+     */
+    public DepthDownsampler(final BEDRecord region, int maxDepth, long seed, final Sink sink) {
+        this.region = region;
+        this.maxDepth = maxDepth;
+        this.seed = seed;
+        this.sink = sink;
+        this.group = new PriorityQueue<Pending>(Math.max(1, maxDepth), Collections.reverseOrder(RANK_ORDER));
+    }
+
+    /**
+     * Queue the read if it is among the reads of its group with the lowest priorities, pass on the kept reads
+     * of the previous group
+     * @param record read, null if it was walked by a ReadPipeline
+     * @param read read walked by a ReadPipeline, null if not pipelined
+     * @throws Exception if the sink failed
+     */
+    public void add(final SAMRecord record, final ReadPipeline.AlignedRead read) throws Exception {
+        int start = record != null ? record.getAlignmentStart() : read.getStart();
+        int end = record != null ? RegionExtractor.queryEnd(record) : read.getQueryEnd();
+        int position = Math.max(start, region.getStartIndex());
+        if(groupSize == 0 || position != groupPosition)
+            startGroup(position);
+        groupSize++;
+        String name = (record != null ? record : read.getRecord()).getReadName();
+        Pending pending = new Pending(record, read, end, priority(name), sequence++);
+        if(group.size() < free){
+            group.add(pending);
+        } else {
+            //the lowest priorities win, ties are broken by the original order
+            dropped++;
+            if(free > 0 && RANK_ORDER.compare(pending, group.peek()) < 0){
+                group.poll();
+                group.add(pending);
+            }
+        }
+    }
+
+    /**
+     * Pass on the kept reads of the last group, call after the last read of the region
+     * @throws Exception if the sink failed
+     */
+    public void finish() throws Exception {
+        flush();
+        groupSize = 0;
+    }
+
+    /**
+     * @return number of reads dropped so far
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Pass on the kept reads of the previous group and release the kept reads ending before the position
+     */
+    private void startGroup(int position) throws Exception {
+        flush();
+        groupPosition = position;
+        groupSize = 0;
+        while(!keptEnds.isEmpty() && keptEnds.peek() < groupPosition)
+            keptEnds.poll();
+        free = Math.max(maxDepth - keptEnds.size(), 0);
+    }
+
+    /**
+     * Pass on the kept reads of the group in their original order
+     */
+    private void flush() throws Exception {
+        if(group.isEmpty())
+            return;
+        List<Pending> reads = new ArrayList<Pending>(group);
+        group.clear();
+        Collections.sort(reads, ARRIVAL_ORDER);
+        for(Pending pending : reads){
+            keptEnds.add(pending.end);
+            sink.accept(pending.record, pending.read);
+        }
+    }
+
+    private long priority(String name) {
+        long h = seed ^ 0x9E3779B97F4A7C15L;
+        for(int i = 0; i < name.length(); ++i)
+            h = (h ^ name.charAt(i)) * 0x100000001B3L;
+        //murmur3 finalizer, so that similar names get unrelated priorities
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Pending {
+        Pending(final SAMRecord record, final ReadPipeline.AlignedRead read, int end, long priority, long sequence) {
+            this.record = record;
+            this.read = read;
+            this.end = end;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        final SAMRecord record;
+        final ReadPipeline.AlignedRead read;
+        final int end;
+        final long priority;
+        /**
+         * Arrival order of the read in the region
+         */
+        final long sequence;
+    }
+
+    private static final Comparator<Pending> ARRIVAL_ORDER = new Comparator<Pending>() {
+        @Override
+        public int compare(Pending o1, Pending o2) {
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence > o2.sequence ? 1 : 0);
+        }
+    };
+
+    /**
+     * Lowest priority first, then the earliest read
+     */
+    private static final Comparator<Pending> RANK_ORDER = new Comparator<Pending>() {
+        @Override
+        public int compare(Pending o1, Pending o2) {
+            if(o1.priority != o2.priority)
+                return o1.priority < o2.priority ? -1 : 1;
+            return ARRIVAL_ORDER.compare(o1, o2);
+        }
+    };
+
+    private final BEDRecord region;
+    private final int maxDepth;
+    private final long seed;
+    private final Sink sink;
+    /**
+     * Kept reads of the current group, the one to drop first on top
+     */
+    private final PriorityQueue<Pending> group;
+    private int groupPosition = 0;
+    /**
+     * Reads of the current group so far
+     */
+    private int groupSize = 0;
+    /**
+     * Places for the reads of the current group
+     */
+    private int free = 0;
+    private long sequence = 0;
+    private final PriorityQueue<Integer> keptEnds = new PriorityQueue<Integer>();
+    private long dropped = 0;
+}
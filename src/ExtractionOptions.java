@@ -0,0 +1,484 @@
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optional settings of the extraction. Parsed from the command line arguments that follow
+ * the four positional ones, each given as --name=value
+ */
+public class ExtractionOptions {
+
+    /**
+     * Parse options from the command line
+     * @param args command line arguments
+     * @param from index of the first optional argument
+     * @return parsed options, unknown options are reported and ignored
+     */
+    public static ExtractionOptions parse(String[] args, int from) {
+        Logger logger = Logger.getLogger(ExtractionOptions.class);
+        ExtractionOptions options = new ExtractionOptions();
+        for(int i = from; i < args.length; ++i){
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if(!arg.startsWith("--") || eq < 0){
+                logger.error("Unrecognized option " + arg + ". Ignored.");
+                continue;
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            try{
+                if(name.equals("threads"))
+                    options.setThreads(Integer.parseInt(value));
+                else if(name.equals("engine"))
+                    options.setEngine(RegionExtractor.Engine.valueOf(value.toUpperCase()));
+                else if(name.equals("merge-gap"))
+                    options.setMergeGap(Integer.parseInt(value));
+                else if(name.equals("output"))
+                    options.setOutput(RegionExtractor.Output.valueOf(value.toUpperCase()));
+                else if(name.equals("shard")){
+                    String[] shard = value.split("/");
+                    if(shard.length != 2)
+                        throw new IllegalArgumentException(value);
+                    options.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+                }
+                else if(name.equals("contig"))
+                    options.setContig(value);
+                else if(name.equals("bam-range")){
+                    String[] range = value.split("-");
+                    if(range.length != 2)
+                        throw new IllegalArgumentException(value);
+                    options.setBamRange(Long.parseLong(range[0]), Long.parseLong(range[1]));
+                }
+                else if(name.equals("partial"))
+                    options.setPartialFile(new File(value));
+                else if(name.equals("checkpoint")){
+                    if(!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException(value);
+                    options.setCheckpoint(value.equals("true"));
+                }
+                else if(name.equals("metrics")){
+                    if(!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException(value);
+                    options.setMetrics(value.equals("true") ? new RunMetrics() : null);
+                }
+                else if(name.equals("exclude-flags"))
+                    options.getReadFilter().setExcludeFlags(Integer.decode(value));
+                else if(name.equals("min-mapq"))
+                    options.getReadFilter().setMinMappingQuality(Integer.parseInt(value));
+                else if(name.equals("min-base-quality"))
+                    options.getReadFilter().setMinBaseQuality(Integer.parseInt(value));
+                else if(name.equals("read-groups"))
+                    options.getReadFilter().setReadGroups(value.split(","));
+                else if(name.equals("mapped-bam")){
+                    if(!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException(value);
+                    options.setMappedBam(value.equals("true"));
+                }
+                else if(name.equals("pipeline-threads"))
+                    options.setPipelineThreads(Integer.parseInt(value));
+                else if(name.equals("parallel-samples"))
+                    options.setParallelSamples(Integer.parseInt(value));
+                else if(name.equals("reference-cache-mb"))
+                    options.setReferenceCacheBytes(Long.parseLong(value) << 20);
+                else if(name.equals("quality-stats")){
+                    if(!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException(value);
+                    options.setQualityStats(value.equals("true"));
+                }
+                else if(name.equals("statistics"))
+                    options.setStatistics(RegionStatistics.forNames(value));
+                else if(name.equals("max-depth"))
+                    options.setMaxDepth(Integer.parseInt(value));
+                else if(name.equals("downsample-seed"))
+                    options.setDownsampleSeed(Long.parseLong(value));
+                else if(name.equals("server-cache-mb"))
+                    options.setServerCacheBytes(Long.parseLong(value) << 20);
+                else if(name.equals("memory-budget-mb"))
+                    options.setMemoryBudgetBytes(Long.parseLong(value) << 20);
+                else if(name.equals("tile-size"))
+                    options.setTileSize(Integer.parseInt(value));
+                else
+                    logger.error("Unknown option " + name + ". Ignored.");
+            } catch (IllegalArgumentException e){
+                logger.error("Invalid value of option " + name + ": " + value + ". Ignored.");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return copy of the options with its own metrics and read filter, e.g. for one sample of a batch
+     */
+    public ExtractionOptions copy() {
+        ExtractionOptions copy = new ExtractionOptions();
+        copy.threads = threads;
+        copy.engine = engine;
+        copy.mergeGap = mergeGap;
+        copy.referenceCacheBytes = referenceCacheBytes;
+        copy.output = output;
+        copy.shardIndex = shardIndex;
+        copy.shardCount = shardCount;
+        copy.contig = contig;
+        copy.bamRangeStart = bamRangeStart;
+        copy.bamRangeEnd = bamRangeEnd;
+        copy.partialFile = partialFile;
+        copy.checkpoint = checkpoint;
+        copy.metrics = metrics != null ? new RunMetrics() : null;
+        copy.readFilter = readFilter.copy();
+        copy.parallelSamples = parallelSamples;
+        copy.pipelineThreads = pipelineThreads;
+        copy.mappedBam = mappedBam;
+        copy.tileSize = tileSize;
+        copy.qualityStats = qualityStats;
+        copy.statistics = new ArrayList<RegionStatistic.Factory>(statistics);
+        copy.serverCacheBytes = serverCacheBytes;
+        copy.maxDepth = maxDepth;
+        copy.downsampleSeed = downsampleSeed;
+        copy.memoryBudgetBytes = memoryBudgetBytes;
+        return copy;
+    }
+
+    /**
+     * @return number of worker threads processing BED regions
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public ExtractionOptions setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * @return how reads of the regions are fetched
+     */
+    public RegionExtractor.Engine getEngine() {
+        return engine;
+    }
+
+    public ExtractionOptions setEngine(RegionExtractor.Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * @return regions separated by at most this number of bases share one BAM query, negative disables merging
+     */
+    public int getMergeGap() {
+        return mergeGap;
+    }
+
+    public ExtractionOptions setMergeGap(int mergeGap) {
+        this.mergeGap = mergeGap;
+        return this;
+    }
+
+    /**
+     * @return memory budget of the reference bases cached by MappedReference
+     */
+    public long getReferenceCacheBytes() {
+        return referenceCacheBytes;
+    }
+
+    public ExtractionOptions setReferenceCacheBytes(long referenceCacheBytes) {
+        this.referenceCacheBytes = referenceCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return one file per region or one consolidated, indexed file
+     */
+    public RegionExtractor.Output getOutput() {
+        return output;
+    }
+
+    public ExtractionOptions setOutput(RegionExtractor.Output output) {
+        this.output = output;
+        return this;
+    }
+
+    /**
+     * @return 1-based index of the shard of BED regions to process, see getShardCount
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return number of shards the BED regions are split into, consecutive regions form a shard
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public ExtractionOptions setShard(int index, int count) {
+        if(count < 1 || index < 1 || index > count)
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+        this.shardIndex = index;
+        this.shardCount = count;
+        return this;
+    }
+
+    /**
+     * @return the only contig to process, null for all contigs
+     */
+    public String getContig() {
+        return contig;
+    }
+
+    public ExtractionOptions setContig(String contig) {
+        this.contig = contig;
+        return this;
+    }
+
+    /**
+     * @return start of the compressed byte range of the BAM file to process, see setBamRange
+     */
+    public long getBamRangeStart() {
+        return bamRangeStart;
+    }
+
+    /**
+     * @return end of the compressed byte range of the BAM file to process, exclusive
+     */
+    public long getBamRangeEnd() {
+        return bamRangeEnd;
+    }
+
+    /**
+     * Process only reads starting in 16 kb windows whose first record is stored in the given range of the
+     * BAM file, according to the linear index. Ranges splitting the file assign every read to exactly one range
+     * @param start start of the range in compressed bytes
+     * @param end end of the range in compressed bytes, exclusive
+     */
+    public ExtractionOptions setBamRange(long start, long end) {
+        if(start < 0 || end < start)
+            throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+        this.bamRangeStart = start;
+        this.bamRangeEnd = end;
+        return this;
+    }
+
+    /**
+     * @return true if only a byte range of the BAM file is processed
+     */
+    public boolean hasBamRange() {
+        return bamRangeStart > 0 || bamRangeEnd < Long.MAX_VALUE;
+    }
+
+    /**
+     * @return file receiving accumulated sums and counts instead of the output, null to write the output
+     */
+    public File getPartialFile() {
+        return partialFile;
+    }
+
+    public ExtractionOptions setPartialFile(File partialFile) {
+        this.partialFile = partialFile;
+        return this;
+    }
+
+    /**
+     * @return true to skip regions finished by a previous run with the same inputs, see Checkpoint. Off by default,
+     * enabled with --checkpoint=true
+     */
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    public ExtractionOptions setCheckpoint(boolean checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * @return collector of the timers and counters of the run, reported in metrics.json in the output folder,
+     * null if disabled. Off by default, enabled with --metrics=true
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ExtractionOptions setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return reads and bases excluded from the accumulation
+     */
+    public ReadFilter getReadFilter() {
+        return readFilter;
+    }
+
+    public ExtractionOptions setReadFilter(ReadFilter readFilter) {
+        this.readFilter = readFilter;
+        return this;
+    }
+
+    /**
+     * @return number of samples of a batch processed at the same time, each on getThreads threads
+     */
+    public int getParallelSamples() {
+        return parallelSamples;
+    }
+
+    public ExtractionOptions setParallelSamples(int parallelSamples) {
+        this.parallelSamples = Math.max(1, parallelSamples);
+        return this;
+    }
+
+    /**
+     * @return number of threads walking the reads of all workers while the workers keep reading, see ReadPipeline.
+     * 0 to walk the reads on the worker threads
+     */
+    public int getPipelineThreads() {
+        return pipelineThreads;
+    }
+
+    public ExtractionOptions setPipelineThreads(int pipelineThreads) {
+        this.pipelineThreads = Math.max(0, pipelineThreads);
+        return this;
+    }
+
+    /**
+     * @return true to read the BAM file through a memory mapping shared by all workers, see MappedBamFile
+     */
+    public boolean isMappedBam() {
+        return mappedBam;
+    }
+
+    public ExtractionOptions setMappedBam(boolean mappedBam) {
+        this.mappedBam = mappedBam;
+        return this;
+    }
+
+    /**
+     * @return regions longer than this number of bases are accumulated and written in windows of this size,
+     * so that the memory held does not grow with the region, see TiledRegionWriter. 0 to never split regions
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public ExtractionOptions setTileSize(int tileSize) {
+        this.tileSize = Math.max(0, tileSize);
+        return this;
+    }
+
+    /**
+     * @return true to keep a QualityHistogram per region and report median, percentiles and the fractions of
+     * Q20 and Q30 bases in the INFO field of the VCF output. Costs about 470 bytes per position of the regions
+     * held in memory
+     */
+    public boolean isQualityStats() {
+        return qualityStats;
+    }
+
+    public ExtractionOptions setQualityStats(boolean qualityStats) {
+        this.qualityStats = qualityStats;
+        return this;
+    }
+
+    /**
+     * @return statistics computed in the same pass as the qualities and reported in the INFO field of the VCF
+     * output, see RegionStatistic
+     */
+    public List<RegionStatistic.Factory> getStatistics() {
+        return Collections.unmodifiableList(statistics);
+    }
+
+    public ExtractionOptions setStatistics(final List<RegionStatistic.Factory> statistics) {
+        this.statistics = new ArrayList<RegionStatistic.Factory>(statistics);
+        return this;
+    }
+
+    /**
+     * Register a statistic, e.g. a built-in one from RegionStatistics or a custom one
+     */
+    public ExtractionOptions addStatistic(final RegionStatistic.Factory statistic) {
+        statistics.add(statistic);
+        return this;
+    }
+
+    /**
+     * @return memory budget of the BAM readers and their indexes cached by QualityServer
+     */
+    public long getServerCacheBytes() {
+        return serverCacheBytes;
+    }
+
+    public ExtractionOptions setServerCacheBytes(long serverCacheBytes) {
+        this.serverCacheBytes = serverCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return maximal number of reads of a region accumulated in any of its positions, reads above it are
+     * dropped, see DepthDownsampler. 0 to keep all reads
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public ExtractionOptions setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(0, maxDepth);
+        return this;
+    }
+
+    /**
+     * @return seed of the selection of the reads kept by getMaxDepth, the same seed keeps the same reads
+     */
+    public long getDownsampleSeed() {
+        return downsampleSeed;
+    }
+
+    public ExtractionOptions setDownsampleSeed(long downsampleSeed) {
+        this.downsampleSeed = downsampleSeed;
+        return this;
+    }
+
+    /**
+     * @return memory the accumulators and the buffered records of a run should stay within, e.g. below the
+     * memory limit of the plugin. Regions too long for it are processed in windows, see getTileSize, or fail the
+     * run if the output is not one file per region. Records of consolidated output waiting for their turn go to a
+     * temporary file. 0 for no budget
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    public ExtractionOptions setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = Math.max(0, memoryBudgetBytes);
+        return this;
+    }
+
+    private int threads = 1;
+    private RegionExtractor.Engine engine = RegionExtractor.Engine.AUTO;
+    private int mergeGap = 0;
+    private long referenceCacheBytes = 128L << 20;
+    private RegionExtractor.Output output = RegionExtractor.Output.FILES;
+    private int shardIndex = 1;
+    private int shardCount = 1;
+    private String contig = null;
+    private long bamRangeStart = 0;
+    private long bamRangeEnd = Long.MAX_VALUE;
+    private File partialFile = null;
+    private boolean checkpoint = false;
+    private RunMetrics metrics = null;
+    private ReadFilter readFilter = new ReadFilter();
+    private int parallelSamples = Runtime.getRuntime().availableProcessors();
+    private int pipelineThreads = 0;
+    private boolean mappedBam = false;
+    private int tileSize = 0;
+    private boolean qualityStats = false;
+    private List<RegionStatistic.Factory> statistics = new ArrayList<RegionStatistic.Factory>();
+    private long serverCacheBytes = 512L << 20;
+    private int maxDepth = 0;
+    private long downsampleSeed = 0;
+    private long memoryBudgetBytes = 0;
+}
@@ -0,0 +1,1114 @@
+import net.sf.picard.util.IntervalTree;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.SeekableFileStream;
+import net.sf.samtools.util.SeekableStream;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One run, merge or conversion of a RegionExtractor with its mutable state: output, checkpoint, metrics, read
+ * filter, tiling and BAM byte range. Used once, the extractor creates a new instance for every call.
+ */
+class ExtractionRun {
+
+    ExtractionRun(final File inputSamOrBamFile, final MappedReference sharedReference, String refGenome,
+                  QualityExtractor.OutputFormat format, String folder) {
+        this.inputSamOrBamFile = inputSamOrBamFile;
+        this.sharedReference = sharedReference;
+        this.refGenome = refGenome;
+        this.format = format;
+        this.folder = folder;
+    }
+
+    /**
+     * Same as RegionExtractor.run
+     */
+    void run(List<BEDRecord> regions, final ExtractionOptions options) throws Exception {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        metrics = options.getMetrics();
+        readFilter = options.getReadFilter();
+        maxDepth = options.getMaxDepth();
+        downsampleSeed = options.getDownsampleSeed();
+        walkerThreads = options.getPipelineThreads();
+        checkIndex();
+        boolean store = store(options);
+        qualityStats = qualityStats(options);
+        statistics = statistics(options);
+        if(consolidate(options) || store)
+            regions = distinctRegions(regions);
+        registerRegions(regions);
+        List<BEDRecord> selected = selectShard(regions, options);
+        if(options.hasBamRange()){
+            linearIndexes = BinningIndex.readLinearIndexes(new File(inputSamOrBamFile.getAbsolutePath() + ".bai"));
+            bamRangeStart = options.getBamRangeStart();
+            bamRangeEnd = options.getBamRangeEnd();
+            if(options.getPartialFile() == null)
+                logger.warn("Only a byte range of the BAM file is processed, qualities are incomplete without a merge");
+        }
+        if(options.getPartialFile() != null || consolidate(options) || store)
+            checkBudget(selected, options);
+        MappedReference hg = sharedReference != null ? sharedReference :
+                new MappedReference(new File(refGenome), options.getReferenceCacheBytes());
+        try{
+            RegionSink output = createSink(regions, selected, options, options.getPartialFile(), store);
+            sink = output;
+            if(walkerThreads > 0)
+                walkers = Executors.newFixedThreadPool(walkerThreads);
+            if(options.isMappedBam())
+                mappedBam = new MappedBamFile(inputSamOrBamFile);
+            tileSize = tileSize(options);
+            if(options.isCheckpoint()){
+                //tiled regions are not recorded
+                List<BEDRecord> recorded = new ArrayList<BEDRecord>();
+                for(BEDRecord region : selected){
+                    if(!isTiled(region))
+                        recorded.add(region);
+                }
+                checkpoint = new CheckpointSink(new Checkpoint(new File(folder, RegionExtractor.CHECKPOINT_DIRECTORY), inputSamOrBamFile,
+                        Checkpoint.fingerprint(inputSamOrBamFile, refGenome, options)), output, recorded);
+                sink = checkpoint;
+            }
+            List<BEDRecord> pendingRegions = restoreFinished(selected, hg);
+            Queue<Task> pending = new ConcurrentLinkedQueue<Task>(createTasks(pendingRegions, options));
+            int threads = options.getThreads();
+            if(threads <= 1){
+                new Worker(pending, hg).run();
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                for(int i = 0; i < threads; ++i)
+                    executor.execute(new Worker(pending, hg));
+                executor.shutdown();
+                while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+                    logger.info("Waiting for " + pending.size() + " pending tasks...");
+            }
+        } finally {
+            if(walkers != null)
+                walkers.shutdownNow();
+            if(mappedBam != null)
+                mappedBam.close();
+            if(hg != sharedReference)
+                hg.close();
+            closeOutputs();
+            writeMetrics(options.getThreads());
+        }
+    }
+
+    /**
+     * Write the output of the regions finished by a previous run
+     * @return regions that still have to be processed
+     */
+    private List<BEDRecord> restoreFinished(final List<BEDRecord> regions, MappedReference hg) throws Exception {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        if(checkpoint == null)
+            return regions;
+        List<BEDRecord> pendingRegions = new ArrayList<BEDRecord>();
+        for(BEDRecord region : regions){
+            if(!checkpoint.isDone(region) || !checkpoint.restore(hg, bedIndex.get(region), newAccumulator(region))){
+                pendingRegions.add(region);
+                continue;
+            }
+            if(metrics != null)
+                metrics.addRegion(region, null, 0, 0, 0, 0);
+        }
+        logger.info("Restored " + (regions.size() - pendingRegions.size()) + " finished regions, " +
+                pendingRegions.size() + " regions to process");
+        return pendingRegions;
+    }
+
+    /**
+     * Same as RegionExtractor.merge
+     */
+    void merge(final List<File> partialFiles, final ExtractionOptions options) throws Exception {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        metrics = options.getMetrics();
+        List<PartialResults.Reader> readers = new ArrayList<PartialResults.Reader>();
+        MappedReference hg = null;
+        try{
+            SortedMap<Integer, List<PartialResults.Record>> byRegion = new TreeMap<Integer, List<PartialResults.Record>>();
+            for(File file : partialFiles){
+                PartialResults.Reader reader = new PartialResults.Reader(file);
+                readers.add(reader);
+                if(!reader.getBamName().equals(readers.get(0).getBamName()))
+                    logger.warn(file.getName() + " was extracted from " + reader.getBamName() + ", not from " +
+                            readers.get(0).getBamName());
+                for(PartialResults.Record record : reader.getRecords()){
+                    List<PartialResults.Record> shards = byRegion.get(record.getBedIndex());
+                    if(shards == null){
+                        shards = new ArrayList<PartialResults.Record>();
+                        byRegion.put(record.getBedIndex(), shards);
+                    } else if(!describe(shards.get(0).getRegion()).equals(describe(record.getRegion()))){
+                        throw new Exception("BED region " + record.getBedIndex() + " is " + describe(record.getRegion()) +
+                                " in " + file.getName() + " but " + describe(shards.get(0).getRegion()) + " in other partial files");
+                    }
+                    shards.add(record);
+                }
+            }
+            logger.info("Merging " + byRegion.size() + " regions from " + partialFiles.size() + " partial files");
+
+            List<BEDRecord> regions = new ArrayList<BEDRecord>();
+            Map<BEDRecord, List<PartialResults.Record>> shardsOf = new IdentityHashMap<BEDRecord, List<PartialResults.Record>>();
+            for(List<PartialResults.Record> shards : byRegion.values()){
+                regions.add(shards.get(0).getRegion());
+                shardsOf.put(shards.get(0).getRegion(), shards);
+            }
+            boolean store = store(options);
+            qualityStats = qualityStats(options);
+            statistics = statistics(options);
+            if(consolidate(options) || store)
+                regions = distinctRegions(regions);
+            registerRegions(regions);
+            hg = new MappedReference(new File(refGenome), options.getReferenceCacheBytes());
+            sink = createSink(regions, regions, options, null, store);
+            for(BEDRecord region : regions){
+                QualityAccumulator accumulator = newAccumulator(region);
+                long reads = 0;
+                for(PartialResults.Record record : shardsOf.get(region)){
+                    record.addTo(accumulator);
+                    reads += record.getReads();
+                }
+                if(logger.isDebugEnabled())
+                    logger.debug("BEDRecord: " + describe(region) + ", total SAMRecords: " + reads);
+                writeRegion(hg, accumulator, reads);
+            }
+        } finally {
+            if(hg != null)
+                hg.close();
+            closeOutputs();
+            for(PartialResults.Reader reader : readers)
+                reader.close();
+            writeMetrics(1);
+        }
+    }
+
+    /**
+     * Decide if regions of one contig should be read with a single sweep: there should be enough of them
+     * and they should be dense enough that index seeks would re-read the same compressed blocks
+     * @param regions regions of one contig
+     * @return true to sweep
+     */
+    static boolean preferSweep(final List<BEDRecord> regions) {
+        if(regions.size() < SWEEP_MIN_REGIONS)
+            return false;
+        long span = spanStop(regions) - spanStart(regions) + 1;
+        return span / regions.size() <= SWEEP_MAX_MEAN_SPACING;
+    }
+
+    /**
+     * Same as RegionExtractor.convert
+     */
+    void convert(final File storeFile, final ExtractionOptions options) throws Exception {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        metrics = options.getMetrics();
+        QualityStore.Reader reader = new QualityStore.Reader(storeFile);
+        MappedReference hg = null;
+        try{
+            List<BEDRecord> regions = new ArrayList<BEDRecord>();
+            for(QualityStore.Entry entry : reader.getEntries())
+                regions.add(entry.getRegion());
+            logger.info("Converting " + regions.size() + " regions of " + storeFile.getName());
+            if(options.isQualityStats() || !options.getStatistics().isEmpty())
+                logger.warn("Quality histograms and statistics are not kept in a quality store, INFO is left empty");
+            qualityStats = false;
+            statistics = Collections.emptyList();
+            registerRegions(regions);
+            hg = new MappedReference(new File(refGenome), options.getReferenceCacheBytes());
+            sink = createSink(regions, regions, options, null, false);
+            for(QualityStore.Entry entry : reader.getEntries())
+                writeRegion(hg, reader.read(entry), entry.getReads());
+        } finally {
+            if(hg != null)
+                hg.close();
+            closeOutputs();
+            reader.close();
+            writeMetrics(1);
+        }
+    }
+
+    private List<Task> createTasks(final List<BEDRecord> regions, final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        RegionQueryPlanner planner = new RegionQueryPlanner(options.getMergeGap());
+        Map<String, List<BEDRecord>> byContig = new LinkedHashMap<String, List<BEDRecord>>();
+        List<Task> tasks = new ArrayList<Task>();
+        for(BEDRecord record : regions){
+            if(isTiled(record)){
+                tasks.add(new SpanTask(record.getContigName(), tileRegion(record)));
+                continue;
+            }
+            List<BEDRecord> contig = byContig.get(record.getContigName());
+            if(contig == null){
+                contig = new ArrayList<BEDRecord>();
+                byContig.put(record.getContigName(), contig);
+            }
+            contig.add(record);
+        }
+
+        if(!tasks.isEmpty())
+            logger.info(tasks.size() + " regions longer than " + tileSize + " bases are processed in windows");
+        for(Map.Entry<String, List<BEDRecord>> contig : byContig.entrySet()){
+            boolean sweep = options.getEngine() == RegionExtractor.Engine.SWEEP ||
+                    (options.getEngine() == RegionExtractor.Engine.AUTO && preferSweep(contig.getValue()));
+            logger.info("Contig " + contig.getKey() + ": " + contig.getValue().size() + " regions, " +
+                    (sweep ? "sequential sweep" : "query per region"));
+            if(sweep){
+                tasks.add(new SpanTask(contig.getKey(), contig.getValue()));
+            } else {
+                for(List<BEDRecord> query : planner.plan(contig.getValue())){
+                    if(query.size() == 1)
+                        tasks.add(new QueryTask(query.get(0)));
+                    else
+                        tasks.add(new SpanTask(contig.getKey(), query));
+                }
+            }
+        }
+        if(options.getThreads() > 1){
+            //longest first, so the workers finish at about the same time
+            Collections.sort(tasks, new Comparator<Task>() {
+                @Override
+                public int compare(Task o1, Task o2) {
+                    long l1 = o1.length(), l2 = o2.length();
+                    return l1 < l2 ? 1 : (l1 > l2 ? -1 : 0);
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * Split the region into windows written to its file one after another, the windows share the BED index
+     * of the region
+     * @return windows of the region
+     */
+    private List<BEDRecord> tileRegion(final BEDRecord bedRecord) {
+        List<BEDRecord> windows = files.tile(bedRecord, bedIndex.get(bedRecord), tileSize);
+        for(BEDRecord window : windows)
+            bedIndex.put(window, bedIndex.get(bedRecord));
+        return windows;
+    }
+
+    /**
+     * @return true if the region is accumulated and written in windows of the tile size
+     */
+    private boolean isTiled(final BEDRecord bedRecord) {
+        return tileSize > 0 && regionLength(bedRecord) > tileSize;
+    }
+
+    /**
+     * @return output of the regions: partial file of a shard, consolidated VCF, quality store or one file per
+     * region, see RegionExtractor.Output
+     * @param regions all regions of the BED file
+     * @param selected regions of the shard
+     * @param partialFile partial file of the shard, null to write the output
+     * @param store true to write a quality store
+     */
+    private RegionSink createSink(final List<BEDRecord> regions, final List<BEDRecord> selected, final ExtractionOptions options,
+                                  final File partialFile, boolean store) throws IOException {
+        if(partialFile != null)
+            return new PartialSink(partialFile, inputSamOrBamFile);
+        if(consolidate(options))
+            return new ConsolidatedSink(new File(folder, RegionExtractor.CONSOLIDATED_FILE_NAME), selected, qualityStats, statistics,
+                    spillThreshold(options), metrics);
+        if(store)
+            return new StoreSink(new File(folder, RegionExtractor.STORE_FILE_NAME));
+        files = new FileSink(regions, format, folder, metrics);
+        return files;
+    }
+
+    /**
+     * Write accumulated qualities of the region to the output of the run
+     */
+    private void writeRegion(MappedReference hg, final QualityAccumulator accumulator, long reads) throws Exception {
+        long start = metrics != null ? System.nanoTime() : 0, referenceStart = referenceTime();
+        sink.write(hg, bedIndex.get(accumulator.getRegion()), accumulator, reads);
+        //the reference is fetched by the output, its time is not counted twice
+        if(metrics != null)
+            metrics.addTime(RunMetrics.Phase.WRITE, System.nanoTime() - start - (referenceTime() - referenceStart));
+    }
+
+    /**
+     * @return time spent by the calling thread fetching the reference
+     */
+    private long referenceTime() {
+        return metrics != null ? metrics.getThreadTime(RunMetrics.Phase.REFERENCE) : 0;
+    }
+
+    /**
+     * @return selection of the reads of the region under the depth cap, null if the depth is not capped
+     */
+    private DepthDownsampler createDownsampler(final BEDRecord bedRecord, final DepthDownsampler.Sink sink) {
+        return maxDepth > 0 ? new DepthDownsampler(bedRecord, maxDepth, downsampleSeed, sink) : null;
+    }
+
+    private void reportDownsampled(final BEDRecord bedRecord, long dropped, long reads) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        if(dropped > 0)
+            logger.info("Depth of " + describe(bedRecord) + " capped at " + maxDepth + ": dropped " + dropped + " of " + reads + " reads");
+    }
+
+    /**
+     * @return time spent by the calling thread in the phases nested in a query loop
+     */
+    private long nestedTime() {
+        if(metrics == null)
+            return 0;
+        return metrics.getThreadTime(RunMetrics.Phase.CIGAR_WALK) + metrics.getThreadTime(RunMetrics.Phase.ACCUMULATE) +
+                metrics.getThreadTime(RunMetrics.Phase.REFERENCE) + metrics.getThreadTime(RunMetrics.Phase.WRITE);
+    }
+
+    /**
+     * Add the time of a query loop to the query phase, without the nested phases
+     */
+    private void addQueryTime(long start, long nestedStart) {
+        if(metrics != null)
+            metrics.addTime(RunMetrics.Phase.QUERY, System.nanoTime() - start - (nestedTime() - nestedStart));
+    }
+
+    private void writeMetrics(int threads) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        if(metrics == null)
+            return;
+        try{
+            metrics.write(new File(folder, RegionExtractor.METRICS_FILE_NAME), threads);
+        } catch (IOException e){
+            logger.error("Error writing metrics: " + e.toString());
+        }
+    }
+
+    /**
+     * Write the output of a processed region, recorded in the checkpoint if there is one
+     * @param accumulator accumulated qualities, ignored if there are no reads
+     */
+    private void finishRegion(MappedReference hg, final BEDRecord bedRecord, final QualityAccumulator accumulator, long reads)
+            throws Exception {
+        if(reads > 0)
+            writeRegion(hg, accumulator, reads);
+        else if(files != null && files.isWindow(bedRecord))
+            writeRegion(hg, newAccumulator(bedRecord), 0); //every window of a tiled file is written
+        else
+            sink.skip(bedRecord);
+    }
+
+    /**
+     * @return empty accumulator of the region with the settings of the run
+     */
+    private QualityAccumulator newAccumulator(final BEDRecord bedRecord) {
+        return new QualityAccumulator(bedRecord, readFilter.getMinBaseQuality(), qualityStats, statistics);
+    }
+
+    /**
+     * @return true if the reads are counted towards the BAM byte range of the shard, see ExtractionOptions.setBamRange
+     */
+    private boolean accept(final SAMRecord record) {
+        if(linearIndexes == null)
+            return true;
+        int reference = record.getReferenceIndex();
+        if(reference < 0 || reference >= linearIndexes.length || record.getAlignmentStart() == 0)
+            return false;
+        int window = BinningIndex.linearWindow(record.getAlignmentStart() - 1);
+        if(window >= linearIndexes[reference].length)
+            return false;
+        long block = linearIndexes[reference][window] >>> 16;
+        return block >= bamRangeStart && block < bamRangeEnd;
+    }
+
+    /**
+     * @return regions of the shard: regions of the contig, if it is set, then the consecutive regions of the
+     * shard index
+     */
+    private static List<BEDRecord> selectShard(final List<BEDRecord> regions, final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        List<BEDRecord> selected = new ArrayList<BEDRecord>();
+        for(BEDRecord record : regions){
+            if(options.getContig() == null || options.getContig().equals(record.getContigName()))
+                selected.add(record);
+        }
+        if(options.getShardCount() > 1){
+            long size = selected.size();
+            selected = new ArrayList<BEDRecord>(selected.subList((int)(size * (options.getShardIndex() - 1) / options.getShardCount()),
+                    (int)(size * options.getShardIndex() / options.getShardCount())));
+        }
+        if(selected.size() < regions.size())
+            logger.info("Shard holds " + selected.size() + " of " + regions.size() + " BED regions");
+        return selected;
+    }
+
+    private boolean consolidate(final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        if(options.getOutput() != RegionExtractor.Output.CONSOLIDATED || options.getPartialFile() != null)
+            return false;
+        if(format != QualityExtractor.OutputFormat.VCF){
+            logger.warn("Consolidated output is supported for VCF only, writing one file per region");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return tile size of the run, 0 if regions are not tiled: tiling is disabled or not supported by the output
+     */
+    private int tileSize(final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        int tileSize = options.getTileSize();
+        int budgetTileSize = budgetTileSize(options);
+        if(budgetTileSize > 0 && (tileSize <= 0 || budgetTileSize < tileSize))
+            tileSize = budgetTileSize;
+        if(tileSize <= 0)
+            return 0;
+        if(files == null){
+            if(options.getTileSize() > 0)
+                logger.warn("Tiling is supported with one file per region only, regions are not tiled");
+            return 0;
+        }
+        return tileSize;
+    }
+
+    /**
+     * @return length of the longest region a worker can accumulate within the memory budget, 0 if there is no
+     * budget. Half of the budget of a worker is left to its reads, reference and formatted records
+     */
+    private int budgetTileSize(final ExtractionOptions options) {
+        if(options.getMemoryBudgetBytes() <= 0)
+            return 0;
+        long workerBytes = options.getMemoryBudgetBytes() / 2 / Math.max(1, options.getThreads());
+        //reads crossing a window border keep two windows in memory
+        long positionBytes = 2 * QualityAccumulator.bytesPerPosition(qualityStats, statistics, readGroupCount()) +
+                FORMATTED_BYTES_PER_POSITION;
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(MIN_BUDGET_TILE_SIZE, workerBytes / positionBytes));
+    }
+
+    /**
+     * Fail before anything is written if a region is longer than the memory budget allows: only one file per
+     * region is written in windows, other outputs accumulate every region as a whole
+     * @param regions regions of the run
+     * @throws Exception naming the longest of these regions
+     */
+    private void checkBudget(final List<BEDRecord> regions, final ExtractionOptions options) throws Exception {
+        int maxLength = budgetTileSize(options);
+        if(maxLength <= 0)
+            return;
+        int overBudget = 0;
+        BEDRecord longest = null;
+        for(BEDRecord region : regions){
+            if(regionLength(region) <= maxLength)
+                continue;
+            overBudget++;
+            if(longest == null || regionLength(region) > regionLength(longest))
+                longest = region;
+        }
+        if(overBudget > 0)
+            throw new Exception(overBudget + " regions are longer than the " + maxLength + " bases the memory budget of " +
+                    (options.getMemoryBudgetBytes() >> 20) + " MB allows, the longest is " + describe(longest) +
+                    ". Only one file per region is written in windows: use --output=files, a larger --memory-budget-mb " +
+                    "or fewer --threads");
+    }
+
+    /**
+     * @return number of read groups in the BAM header, reads without a read group count as one more
+     */
+    private int readGroupCount() {
+        SAMFileReader inputSam = openBam();
+        try{
+            return inputSam.getFileHeader().getReadGroups().size() + 1;
+        } finally {
+            inputSam.close();
+        }
+    }
+
+    /**
+     * @return bytes of consolidated VCF records kept in memory while they wait for their turn, a quarter of the
+     * memory budget, 0 for no limit
+     */
+    private static long spillThreshold(final ExtractionOptions options) {
+        return options.getMemoryBudgetBytes() / 4;
+    }
+
+    /**
+     * @return true if quality histograms are kept: they are requested and reported by the output
+     */
+    private boolean qualityStats(final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        if(!options.isQualityStats())
+            return false;
+        if(format != QualityExtractor.OutputFormat.VCF){
+            logger.warn("Quality statistics are reported in VCF output only");
+            return false;
+        }
+        if(store(options)){
+            logger.warn("Quality histograms are not kept in a quality store, INFO is left empty");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return statistics computed in the run: requested and reported by the output
+     */
+    private List<RegionStatistic.Factory> statistics(final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(ExtractionRun.class);
+        List<RegionStatistic.Factory> none = Collections.emptyList();
+        if(options.getStatistics().isEmpty())
+            return none;
+        if(format != QualityExtractor.OutputFormat.VCF){
+            logger.warn("Statistics are reported in VCF output only");
+            return none;
+        }
+        if(store(options)){
+            logger.warn("Statistics are not kept in a quality store, they are not computed");
+            return none;
+        }
+        return options.getStatistics();
+    }
+
+    private boolean store(final ExtractionOptions options) {
+        return options.getOutput() == RegionExtractor.Output.STORE && options.getPartialFile() == null;
+    }
+
+    private void closeOutputs() throws Exception {
+        if(sink != null)
+            sink.close();
+    }
+
+    /**
+     * @return regions without repeated coordinates, the first of identical regions is kept
+     */
+    private static List<BEDRecord> distinctRegions(final List<BEDRecord> regions) {
+        Set<String> seen = new HashSet<String>();
+        List<BEDRecord> distinct = new ArrayList<BEDRecord>();
+        for(BEDRecord record : regions){
+            if(seen.add(describe(record)))
+                distinct.add(record);
+        }
+        return distinct;
+    }
+
+    private void registerRegions(final List<BEDRecord> regions) {
+        for(int i = 0; i < regions.size(); ++i)
+            bedIndex.put(regions.get(i), i);
+    }
+
+    private SAMFileReader openBam() {
+        return new SAMFileReader(inputSamOrBamFile, new File(inputSamOrBamFile.getAbsolutePath() + ".bai"));
+    }
+
+    private void checkIndex() throws Exception {
+        SAMFileReader inputSam = openBam();
+        try{
+            if(!inputSam.hasIndex())
+                throw new Exception("Index file is invalid");
+        } finally {
+            inputSam.close();
+        }
+    }
+
+    private static int spanStart(final List<BEDRecord> regions) {
+        int start = Integer.MAX_VALUE;
+        for(BEDRecord record : regions)
+            start = Math.min(start, record.getStartIndex());
+        return start;
+    }
+
+    private static int spanStop(final List<BEDRecord> regions) {
+        int stop = 0;
+        for(BEDRecord record : regions)
+            stop = Math.max(stop, record.getStopIndex());
+        return stop;
+    }
+
+    private static long regionLength(final BEDRecord record) {
+        return record.getStopIndex() - record.getStartIndex() + 1;
+    }
+
+    private static String describe(final BEDRecord record) {
+        return record.getContigName() + ":" + record.getStartIndex() + "-" + record.getStopIndex();
+    }
+
+    /**
+     * Unit of work of a worker
+     */
+    private interface Task {
+        void run(SAMFileReader inputSam, MappedReference hg) throws Exception;
+
+        /**
+         * @return amount of reference covered by the task, used to schedule long tasks first
+         */
+        long length();
+
+        String describe();
+
+        /**
+         * @return number of regions served by the task
+         */
+        int regionCount();
+
+        /**
+         * @return number of reads returned by the BAM query of the last run
+         */
+        long readsFetched();
+
+        /**
+         * @return number of reads of the last run rejected by the read filter
+         */
+        long readsFiltered();
+    }
+
+    /**
+     * One index query for one region
+     */
+    private class QueryTask implements Task {
+        QueryTask(final BEDRecord bedRecord) {
+            this.bedRecord = bedRecord;
+        }
+
+        @Override
+        public void run(SAMFileReader inputSam, MappedReference hg) throws Exception {
+            Logger logger = Logger.getLogger(ExtractionRun.class);
+            if(logger.isDebugEnabled())
+                logger.debug("BEDRecord: " + bedRecord.getContigName()+ "\t" + bedRecord.getStartIndex() + '\t' + bedRecord.getStopIndex());
+            final QualityAccumulator accumulator = newAccumulator(bedRecord);
+            long start = metrics != null ? System.nanoTime() : 0, nestedStart = nestedTime();
+            final ReadPipeline pipeline = createPipeline(new ReadPipeline.Consumer() {
+                @Override
+                public void accept(ReadPipeline.AlignedRead read) {
+                    if(accumulator.add(read, metrics))
+                        accumulated++;
+                }
+            });
+            //reads above the depth cap are dropped before they are walked
+            DepthDownsampler.Sink sink = new DepthDownsampler.Sink() {
+                @Override
+                public void accept(SAMRecord record, ReadPipeline.AlignedRead read) throws Exception {
+                    if(pipeline != null)
+                        pipeline.add(record, true);
+                    else if(accumulator.add(record, metrics))
+                        accumulated++;
+                }
+            };
+            DepthDownsampler downsampler = createDownsampler(bedRecord, sink);
+            SAMRecordIterator it = inputSam.query(bedRecord.getContigName(), bedRecord.getStartIndex(), bedRecord.getStopIndex(), false);
+            int totalRecords = 0;
+            accumulated = 0;
+            fetched = 0;
+            filtered = 0;
+            try{
+                while (it.hasNext()){
+                    SAMRecord record = it.next();
+                    fetched++;
+                    if(!readFilter.accept(record)){
+                        filtered++;
+                        continue;
+                    }
+                    if(!accept(record))
+                        continue;
+                    if(downsampler != null)
+                        downsampler.add(record, null);
+                    else
+                        sink.accept(record, null);
+                    totalRecords++;
+                }
+                if(downsampler != null)
+                    downsampler.finish();
+                if(pipeline != null)
+                    pipeline.finish();
+            } finally {
+                it.close();
+                if(pipeline != null)
+                    pipeline.cancel();
+            }
+            addQueryTime(start, nestedStart);
+            if(logger.isDebugEnabled())
+                logger.debug("Total SAMRecords for current BED: " + totalRecords);
+
+            long dropped = downsampler != null ? downsampler.getDropped() : 0;
+            reportDownsampled(bedRecord, dropped, totalRecords);
+            finishRegion(hg, bedRecord, accumulator, totalRecords);
+            if(metrics != null)
+                metrics.addRegion(bedRecord, describe(), fetched - filtered, fetched - filtered - accumulated, dropped,
+                        accumulator.getBases());
+        }
+
+        @Override
+        public long length() {
+            return regionLength(bedRecord);
+        }
+
+        @Override
+        public String describe() {
+            return ExtractionRun.describe(bedRecord);
+        }
+
+        @Override
+        public int regionCount() {
+            return 1;
+        }
+
+        @Override
+        public long readsFetched() {
+            return fetched;
+        }
+
+        @Override
+        public long readsFiltered() {
+            return filtered;
+        }
+
+        private final BEDRecord bedRecord;
+        private long fetched = 0;
+        private long filtered = 0;
+        private long accumulated = 0;
+    }
+
+    /**
+     * One sequential query over the span of several regions of a contig, every read is fanned out to all
+     * regions it overlaps. Accumulators are created when the first read reaches the region and written as
+     * soon as reads start past its end, so only the regions under the current reads are held in memory
+     */
+    private class SpanTask implements Task {
+        SpanTask(String contig, final List<BEDRecord> regions) {
+            this.contig = contig;
+            this.regions = regions;
+        }
+
+        @Override
+        public void run(SAMFileReader inputSam, MappedReference hg) throws Exception {
+            Logger logger = Logger.getLogger(ExtractionRun.class);
+            if(logger.isDebugEnabled())
+                logger.debug("Sweeping " + regions.size() + " regions of " + describe());
+
+            //interval index: identical intervals share a node
+            index = new IntervalTree<List<SweepRegion>>();
+            byStop = new ArrayList<SweepRegion>();
+            for(BEDRecord record : regions){
+                SweepRegion region = new SweepRegion(record);
+                IntervalTree.Node<List<SweepRegion>> node = index.find(record.getStartIndex(), record.getStopIndex());
+                if(node == null)
+                    index.put(record.getStartIndex(), record.getStopIndex(), new ArrayList<SweepRegion>(Arrays.asList(region)));
+                else
+                    node.getValue().add(region);
+                byStop.add(region);
+            }
+            Collections.sort(byStop, new Comparator<SweepRegion>() {
+                @Override
+                public int compare(SweepRegion o1, SweepRegion o2) {
+                    int s1 = o1.bedRecord.getStopIndex(), s2 = o2.bedRecord.getStopIndex();
+                    return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+                }
+            });
+
+            finished = 0;
+            long queryStart = metrics != null ? System.nanoTime() : 0, nestedStart = nestedTime();
+            fetched = 0;
+            filtered = 0;
+            final MappedReference reference = hg;
+            ReadPipeline pipeline = createPipeline(new ReadPipeline.Consumer() {
+                @Override
+                public void accept(ReadPipeline.AlignedRead read) throws Exception {
+                    advance(read.getStart(), reference);
+                    dispatch(read.getStart(), read.getQueryEnd(), null, read, read.isAccepted());
+                }
+            });
+            SAMRecordIterator it = inputSam.queryOverlapping(contig, spanStart(regions), spanStop(regions));
+            try{
+                while (it.hasNext()){
+                    SAMRecord record = it.next();
+                    fetched++;
+                    //regions are finished by the consumer of the pipeline, after the reads in flight
+                    if(pipeline == null)
+                        advance(record.getAlignmentStart(), hg);
+                    //rejected before the end is computed, which decodes the CIGAR
+                    if(!readFilter.accept(record)){
+                        filtered++;
+                        continue;
+                    }
+                    boolean accepted = accept(record);
+                    if(pipeline != null)
+                        pipeline.add(record, accepted);
+                    else
+                        dispatch(record.getAlignmentStart(), RegionExtractor.queryEnd(record), record, null, accepted);
+                }
+                if(pipeline != null)
+                    pipeline.finish();
+            } finally {
+                it.close();
+                if(pipeline != null)
+                    pipeline.cancel();
+            }
+            addQueryTime(queryStart, nestedStart);
+            while(finished < byStop.size())
+                finish(byStop.get(finished++), hg);
+            if(logger.isDebugEnabled())
+                logger.debug("Total SAMRecords for " + describe() + ": " + fetched);
+        }
+
+        /**
+         * Finish the regions ending before the start, reads are sorted by start and cannot reach them anymore
+         */
+        private void advance(int start, MappedReference hg) throws Exception {
+            while(finished < byStop.size() && byStop.get(finished).bedRecord.getStopIndex() < start)
+                finish(byStop.get(finished++), hg);
+        }
+
+        /**
+         * Add the read to all regions it overlaps, either as record or as read walked by the pipeline
+         */
+        private void dispatch(int start, int end, final SAMRecord record, final ReadPipeline.AlignedRead read, boolean accepted)
+                throws Exception {
+            Iterator<IntervalTree.Node<List<SweepRegion>>> overlappers = index.overlappers(start, end);
+            while(overlappers.hasNext()){
+                for(SweepRegion region : overlappers.next().getValue())
+                    region.add(record, read, accepted);
+            }
+        }
+
+        private void finish(final SweepRegion region, MappedReference hg) throws Exception {
+            Logger logger = Logger.getLogger(ExtractionRun.class);
+            if(logger.isDebugEnabled())
+                logger.debug("BEDRecord: " + region.bedRecord.getContigName()+ "\t" + region.bedRecord.getStartIndex() +
+                        '\t' + region.bedRecord.getStopIndex() + ", total SAMRecords: " + region.records);
+            long dropped = 0;
+            if(region.downsampler != null){
+                region.downsampler.finish();
+                dropped = region.downsampler.getDropped();
+                region.downsampler = null;
+            }
+            reportDownsampled(region.bedRecord, dropped, region.records);
+            finishRegion(hg, region.bedRecord, region.accumulator, region.records);
+            if(metrics != null)
+                metrics.addRegion(region.bedRecord, describe(), region.fetched, region.fetched - region.accumulated, dropped,
+                        region.accumulator == null ? 0 : region.accumulator.getBases());
+            region.accumulator = null;
+        }
+
+        @Override
+        public long length() {
+            return spanStop(regions) - spanStart(regions) + 1;
+        }
+
+        @Override
+        public String describe() {
+            return contig + ":" + spanStart(regions) + "-" + spanStop(regions);
+        }
+
+        @Override
+        public int regionCount() {
+            return regions.size();
+        }
+
+        @Override
+        public long readsFetched() {
+            return fetched;
+        }
+
+        @Override
+        public long readsFiltered() {
+            return filtered;
+        }
+
+        private final String contig;
+        private final List<BEDRecord> regions;
+        private IntervalTree<List<SweepRegion>> index;
+        private List<SweepRegion> byStop;
+        private int finished = 0;
+        private long fetched = 0;
+        private long filtered = 0;
+    }
+
+    private class SweepRegion implements DepthDownsampler.Sink {
+        SweepRegion(final BEDRecord bedRecord) {
+            this.bedRecord = bedRecord;
+        }
+
+        /**
+         * @param record read, null if it was walked by the pipeline
+         * @param read read walked by the pipeline, null if not pipelined
+         * @param accepted false if the read is only counted, see accept
+         */
+        void add(final SAMRecord record, final ReadPipeline.AlignedRead read, boolean accepted) throws Exception {
+            fetched++;
+            if(!accepted)
+                return;
+            records++;
+            if(downsampler == null && records == 1)
+                downsampler = createDownsampler(bedRecord, this);
+            if(downsampler != null)
+                downsampler.add(record, read);
+            else
+                accept(record, read);
+        }
+
+        /**
+         * Accumulate a read kept by the depth cap
+         */
+        @Override
+        public void accept(final SAMRecord record, final ReadPipeline.AlignedRead read) {
+            if(accumulator == null)
+                accumulator = newAccumulator(bedRecord);
+            if(read != null ? accumulator.add(read, metrics) : accumulator.add(record, metrics))
+                accumulated++;
+        }
+
+        final BEDRecord bedRecord;
+        QualityAccumulator accumulator = null;
+        DepthDownsampler downsampler = null;
+        int records = 0;
+        long fetched = 0;
+        long accumulated = 0;
+    }
+
+    private class Worker implements Runnable {
+        Worker(Queue<Task> pending, MappedReference hg) {
+            this.pending = pending;
+            this.hg = hg;
+        }
+
+        @Override
+        public void run() {
+            Logger logger = Logger.getLogger(ExtractionRun.class);
+            SAMFileReader inputSam = null;
+            try{
+                CountingStream stream;
+                if(mappedBam != null){
+                    stream = new CountingStream(mappedBam.openStream());
+                    inputSam = mappedBam.open(stream);
+                } else {
+                    stream = new CountingStream(new SeekableFileStream(inputSamOrBamFile));
+                    inputSam = new SAMFileReader(stream, new File(inputSamOrBamFile.getAbsolutePath() + ".bai"), false);
+                }
+                Task task;
+                while((task = pending.poll()) != null){
+                    long start = System.nanoTime(), bytes = stream.getBytesRead();
+                    try{
+                        task.run(inputSam, hg);
+                    } catch (Exception e){
+                        logger.error("Error while processing " + task.describe() + ": " + e.toString());
+                    }
+                    if(metrics != null)
+                        metrics.addQuery(task.describe(), task.regionCount(), task.readsFetched(), task.readsFiltered(),
+                                stream.getBytesRead() - bytes, System.nanoTime() - start);
+                }
+            } catch (Exception e){
+                logger.error("Error while data processing: " + e.toString());
+            } finally {
+                if(inputSam != null)
+                    inputSam.close();
+            }
+        }
+
+        private final Queue<Task> pending;
+        private final MappedReference hg;
+    }
+
+    /**
+     * @return pipeline of a task feeding the consumer, null if the reads are processed on the task thread only
+     */
+    private ReadPipeline createPipeline(final ReadPipeline.Consumer consumer) {
+        return walkers != null ? new ReadPipeline(walkers, walkerThreads, metrics, consumer) : null;
+    }
+
+    /**
+     * BAM file stream counting the bytes read
+     */
+    private static class CountingStream extends SeekableStream {
+        CountingStream(final SeekableStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = stream.read(buffer, offset, length);
+            if(n > 0)
+                bytesRead += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = stream.read();
+            if(b >= 0)
+                bytesRead++;
+            return b;
+        }
+
+        @Override
+        public long length() {
+            return stream.length();
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            stream.seek(position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        @Override
+        public boolean eof() throws IOException {
+            return stream.eof();
+        }
+
+        @Override
+        public String getSource() {
+            return stream.getSource();
+        }
+
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        private final SeekableStream stream;
+        private long bytesRead = 0;
+    }
+
+    /**
+     * Contigs with fewer regions are always queried region by region
+     */
+    private static final int SWEEP_MIN_REGIONS = 4;
+
+    /**
+     * Mean distance between region starts up to which a sweep is cheaper than seeking to every region
+     */
+    private static final long SWEEP_MAX_MEAN_SPACING = 64 * 1024;
+
+    /**
+     * Approximate size of the VCF record of a position, formatted before it is written
+     */
+    private static final long FORMATTED_BYTES_PER_POSITION = 64;
+
+    /**
+     * Windows are not made shorter than this, however small the memory budget
+     */
+    private static final int MIN_BUDGET_TILE_SIZE = 1024;
+
+    private final File inputSamOrBamFile;
+    private final MappedReference sharedReference;
+    private final String refGenome;
+    private final QualityExtractor.OutputFormat format;
+    private final String folder;
+    private final Map<BEDRecord, Integer> bedIndex = new IdentityHashMap<BEDRecord, Integer>();
+    private RegionSink sink = null;
+    private FileSink files = null;
+    private CheckpointSink checkpoint = null;
+    private long[][] linearIndexes = null;
+    private long bamRangeStart = 0;
+    private long bamRangeEnd = Long.MAX_VALUE;
+    private RunMetrics metrics = null;
+    private ReadFilter readFilter = new ReadFilter();
+    private int walkerThreads = 0;
+    private ExecutorService walkers = null;
+    private MappedBamFile mappedBam = null;
+    private int tileSize = 0;
+    private boolean qualityStats = false;
+    private List<RegionStatistic.Factory> statistics = Collections.emptyList();
+    private int maxDepth = 0;
+    private long downsampleSeed = 0;
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * One output file per region, see RegionExtractor.Output.FILES. If several regions write to the same file, the
+ * file is left by the last of them in BED order that has reads, whichever of them finishes last. Regions longer
+ * than the tile size may be written window by window, see tile.
+ */
+public class FileSink implements RegionSink {
+    /**
+     * @param regions all regions of the BED file
+     * @param format output format
+     * @param folder output folder
+     * @param metrics timers of the run, null if not measured
+     */
+    public FileSink(final List<BEDRecord> regions, QualityExtractor.OutputFormat format, String folder, final RunMetrics metrics) {
+        this.format = format;
+        this.folder = folder;
+        this.metrics = metrics;
+        for(BEDRecord record : regions){
+            String name = QualityExtractor.regionFileName(record, format);
+            if(!outputs.containsKey(name))
+                outputs.put(name, new int[]{-1});
+        }
+    }
+
+    /**
+     * Split the region into windows that are written to the file of the region one after another, see
+     * TiledRegionWriter. Windows are written with the BED index of the region, also if they have no reads
+     * @return windows of the region, in order
+     */
+    public List<BEDRecord> tile(final BEDRecord region, int bedIndex, int tileSize) {
+        File file = new File(folder, QualityExtractor.regionFileName(region, format) + "." + bedIndex + ".tmp");
+        TiledRegionWriter writer = new TiledRegionWriter(region, tileSize, format, file);
+        for(BEDRecord window : writer.getWindows())
+            tiles.put(window, writer);
+        return writer.getWindows();
+    }
+
+    /**
+     * @return true if the region is a window of a tiled region that is not written yet
+     */
+    public boolean isWindow(final BEDRecord region) {
+        return tiles.containsKey(region);
+    }
+
+    /**
+     * Write the file of the region, unless it was already written by a region that comes later in the BED file
+     */
+    @Override
+    public void write(MappedReference hg, int bedIndex, final QualityAccumulator accumulator, long reads) throws Exception {
+        BEDRecord region = accumulator.getRegion();
+        TiledRegionWriter writer = tiles.get(region);
+        if(writer != null){
+            writeWindow(hg, writer, bedIndex, accumulator, reads);
+            return;
+        }
+        int[] lastWritten = outputs.get(QualityExtractor.regionFileName(region, format));
+        synchronized (lastWritten){
+            if(lastWritten[0] > bedIndex)
+                return;
+            QualityExtractor.writeRegion(reference(hg, region), accumulator, format, folder);
+            lastWritten[0] = bedIndex;
+        }
+    }
+
+    /**
+     * The file of a region without reads is not written
+     */
+    @Override
+    public void skip(final BEDRecord region) {
+    }
+
+    /**
+     * Remove the temporary files of the tiled regions that were not completed
+     */
+    @Override
+    public void close() {
+        for(TiledRegionWriter writer : new HashSet<TiledRegionWriter>(tiles.values()))
+            writer.delete();
+        tiles.clear();
+    }
+
+    /**
+     * Write the next window of a tiled region. After the last window the file of the region is left, unless the
+     * region has no reads or the file was already written by a region that comes later in the BED file
+     */
+    private void writeWindow(MappedReference hg, final TiledRegionWriter writer, int bedIndex,
+                             final QualityAccumulator accumulator, long reads) throws Exception {
+        try{
+            writer.write(accumulator, reference(hg, accumulator.getRegion()), reads);
+            if(writer.isComplete()){
+                String name = QualityExtractor.regionFileName(writer.getRegion(), format);
+                int[] lastWritten = outputs.get(name);
+                synchronized (lastWritten){
+                    if(writer.getReads() > 0 && lastWritten[0] <= bedIndex){
+                        writer.moveTo(new File(folder, name));
+                        lastWritten[0] = bedIndex;
+                    } else {
+                        writer.delete();
+                    }
+                }
+            }
+        } catch (Exception e){
+            writer.delete();
+            throw e;
+        } finally {
+            if(writer.isComplete()){
+                for(BEDRecord window : writer.getWindows())
+                    tiles.remove(window);
+            }
+        }
+    }
+
+    private ByteBuffer reference(MappedReference hg, final BEDRecord region) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ByteBuffer ref = hg.getSubsequence(region.getContigName(), region.getStartIndex(), region.getStopIndex());
+        if(metrics != null)
+            metrics.addTime(RunMetrics.Phase.REFERENCE, System.nanoTime() - start);
+        return ref;
+    }
+
+    private final QualityExtractor.OutputFormat format;
+    private final String folder;
+    private final RunMetrics metrics;
+    private final Map<String, int[]> outputs = new HashMap<String, int[]>();
+    private final Map<BEDRecord, TiledRegionWriter> tiles =
+            Collections.synchronizedMap(new IdentityHashMap<BEDRecord, TiledRegionWriter>());
+}
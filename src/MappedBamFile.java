@@ -0,0 +1,165 @@
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.util.SeekableStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BAM file mapped into memory once and read by any number of readers, see open. Seeks to the chunks returned
+ * by the index and reads of BGZF blocks are plain memory copies out of the mapping, without system calls or
+ * intermediate buffers. The file is mapped in segments, so it may exceed 2 GB. Safe to share between threads,
+ * the streams are not.
+ */
+public class MappedBamFile {
+
+    /**
+     * @param file BAM file
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedBamFile(final File file) throws IOException {
+        this.file = file;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = in.getChannel();
+            length = channel.size();
+            segments = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for(int i = 0; i < segments.length; ++i){
+                long start = (long)i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        } finally {
+            in.close(); //the mapping stays valid
+        }
+    }
+
+    /**
+     * Open a reader of the mapped file, the index is read from file + ".bai" and mapped as well
+     * @return reader with its own position in the file
+     */
+    public SAMFileReader open() {
+        return open(openStream());
+    }
+
+    /**
+     * Open a reader of the stream, e.g. a wrapper of openStream
+     */
+    public SAMFileReader open(final SeekableStream stream) {
+        SAMFileReader reader = new SAMFileReader(stream, new File(file.getAbsolutePath() + ".bai"), false);
+        reader.enableIndexMemoryMapping(true);
+        reader.enableIndexCaching(true);
+        return reader;
+    }
+
+    /**
+     * @return stream with its own position in the file
+     * @throws IllegalStateException if the file was closed
+     */
+    public SeekableStream openStream() {
+        MappedByteBuffer[] mapping;
+        synchronized (this){
+            if(segments == null)
+                throw new IllegalStateException(file.getName() + " is closed");
+            mapping = segments;
+        }
+        return new Stream(mapping);
+    }
+
+    /**
+     * Drop the mapping, it is released as soon as the streams opened so far are garbage collected. Open streams
+     * stay readable, new ones cannot be opened
+     */
+    public synchronized void close() {
+        segments = null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private class Stream extends SeekableStream {
+        Stream(final MappedByteBuffer[] segments) {
+            this.segments = segments;
+            this.views = new ByteBuffer[segments.length];
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            if(position < 0 || position > length)
+                throw new IOException("Cannot seek to " + position + " in " + file.getName() + " of " + length + " bytes");
+            this.position = position;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if(count == 0)
+                return 0;
+            if(position >= length)
+                return -1;
+            int done = 0;
+            while(done < count && position < length){
+                ByteBuffer segment = segment((int)(position / SEGMENT_SIZE));
+                segment.position((int)(position % SEGMENT_SIZE));
+                int n = Math.min(count - done, segment.remaining());
+                segment.get(buffer, offset + done, n);
+                done += n;
+                position += n;
+            }
+            return done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(position >= length)
+                return -1;
+            ByteBuffer segment = segment((int)(position / SEGMENT_SIZE));
+            int b = segment.get((int)(position % SEGMENT_SIZE)) & 0xFF;
+            position++;
+            return b;
+        }
+
+        @Override
+        public void close() {
+            views = null;
+        }
+
+        @Override
+        public boolean eof() {
+            return position >= length;
+        }
+
+        @Override
+        public String getSource() {
+            return file.getAbsolutePath();
+        }
+
+        /**
+         * @return view of the segment owned by the stream, so that streams do not share buffer positions
+         */
+        private ByteBuffer segment(int index) throws IOException {
+            if(views == null)
+                throw new IOException("Stream of " + file.getName() + " is closed");
+            if(views[index] == null)
+                views[index] = segments[index].duplicate();
+            return views[index];
+        }
+
+        private final MappedByteBuffer[] segments;
+        private long position = 0;
+        private ByteBuffer[] views;
+    }
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File file;
+    private final long length;
+    private MappedByteBuffer[] segments;
+}
@@ -0,0 +1,187 @@
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reference genome served from a memory-mapped FASTA file. Contigs are located with the .fai index and mapped
+ * on first use; line wrapping is stripped lazily into fixed windows of bases kept in an LRU cache with a
+ * memory budget. Subsequences that fit into one window are returned as views of the cached window, without
+ * copying. Safe to share between threads.
+ */
+public class MappedReference {
+
+    /**
+     * @param fastaFile FASTA file, the index is expected in fastaFile + ".fai"
+     * @param cacheBytes memory budget of the cached windows
+     * @throws IOException if FASTA or its index cannot be read
+     */
+    public MappedReference(final File fastaFile, long cacheBytes) throws IOException {
+        this.fastaFile = fastaFile;
+        this.cacheBytes = Math.max(cacheBytes, WINDOW_SIZE + WINDOW_OVERLAP);
+        this.channel = new RandomAccessFile(fastaFile, "r").getChannel();
+        readIndex(new File(fastaFile.getAbsolutePath() + ".fai"));
+    }
+
+    /**
+     * @param contig contig name
+     * @param start 1-based start position, inclusive
+     * @param stop 1-based stop position, inclusive
+     * @return read-only bases of the subsequence, position 0 is the start
+     * @throws IOException if the FASTA file cannot be read
+     */
+    public ByteBuffer getSubsequence(String contig, int start, int stop) throws IOException {
+        Contig entry = contigs.get(contig);
+        if(entry == null)
+            throw new IllegalArgumentException("Unknown contig " + contig + " in " + fastaFile.getName());
+        if(start < 1 || stop < start - 1 || stop > entry.length)
+            throw new IllegalArgumentException("Invalid interval " + contig + ":" + start + "-" + stop +
+                    ", contig length is " + entry.length);
+
+        long from = start - 1;
+        int length = stop - start + 1;
+        long window = from / WINDOW_SIZE;
+        byte[] bases = getWindow(entry, window);
+        int offset = (int)(from - window * WINDOW_SIZE);
+        if(offset + length <= bases.length)
+            return ByteBuffer.wrap(bases, offset, length).slice().asReadOnlyBuffer();
+
+        //the subsequence crosses windows, assemble a copy
+        byte[] copy = new byte[length];
+        int done = 0;
+        while(done < length){
+            window = (from + done) / WINDOW_SIZE;
+            bases = getWindow(entry, window);
+            offset = (int)(from + done - window * WINDOW_SIZE);
+            int n = Math.min(length - done, WINDOW_SIZE - offset);
+            System.arraycopy(bases, offset, copy, done, n);
+            done += n;
+        }
+        return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param contig contig name
+     * @return length of the contig, -1 if the reference has no such contig
+     */
+    public long getContigLength(String contig) {
+        Contig entry = contigs.get(contig);
+        return entry == null ? -1 : entry.length;
+    }
+
+    public void close() {
+        Logger logger = Logger.getLogger(MappedReference.class);
+        synchronized (cache){
+            cache.clear();
+            cachedBytes = 0;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing reference file: " + e.toString());
+        }
+    }
+
+    /**
+     * Unwrapped bases of the window, the window covers WINDOW_SIZE bases plus WINDOW_OVERLAP bases of the next
+     * window, so that short subsequences never cross windows
+     */
+    private byte[] getWindow(final Contig contig, long window) throws IOException {
+        String key = contig.name + ":" + window;
+        synchronized (cache){
+            byte[] bases = cache.get(key);
+            if(bases != null)
+                return bases;
+        }
+        long start = window * WINDOW_SIZE;
+        int length = (int)Math.min(contig.length - start, WINDOW_SIZE + WINDOW_OVERLAP);
+        byte[] bases = new byte[length];
+        ByteBuffer buffer = contig.map(channel).duplicate();
+        int done = 0;
+        while(done < length){
+            long base = start + done;
+            int column = (int)(base % contig.lineBases);
+            int n = Math.min(length - done, contig.lineBases - column);
+            buffer.position((int)((base / contig.lineBases) * contig.lineWidth + column));
+            buffer.get(bases, done, n);
+            done += n;
+        }
+
+        synchronized (cache){
+            if(!cache.containsKey(key)){
+                cache.put(key, bases);
+                cachedBytes += bases.length;
+                Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+                while(cachedBytes > cacheBytes && it.hasNext()){
+                    Map.Entry<String, byte[]> eldest = it.next();
+                    if(eldest.getKey().equals(key))
+                        continue;
+                    cachedBytes -= eldest.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+        return bases;
+    }
+
+    private void readIndex(final File indexFile) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(indexFile));
+        try{
+            String line;
+            while((line = in.readLine()) != null){
+                if(line.length() == 0)
+                    continue;
+                String[] data = line.split("\t");
+                Contig contig = new Contig(data[0], Long.parseLong(data[1]), Long.parseLong(data[2]),
+                        Integer.parseInt(data[3]), Integer.parseInt(data[4]));
+                contigs.put(contig.name, contig);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Line in .fai index file
+     */
+    private static class Contig {
+        Contig(String name, long length, long location, int lineBases, int lineWidth) {
+            this.name = name;
+            this.length = length;
+            this.location = location;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        synchronized MappedByteBuffer map(final FileChannel channel) throws IOException {
+            if(mapped == null){
+                long size = (length / lineBases) * lineWidth + length % lineBases;
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, location, Math.min(size, channel.size() - location));
+            }
+            return mapped;
+        }
+
+        final String name;
+        final long length;
+        final long location;
+        final int lineBases;
+        final int lineWidth;
+        private MappedByteBuffer mapped = null;
+    }
+
+    private static final int WINDOW_SIZE = 1 << 20;
+    private static final int WINDOW_OVERLAP = 1 << 16;
+
+    private final File fastaFile;
+    private final long cacheBytes;
+    private final FileChannel channel;
+    private final Map<String, Contig> contigs = new HashMap<String, Contig>();
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long cachedBytes = 0;
+}
@@ -0,0 +1,192 @@
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary file with the accumulated quality sums and counts of the regions processed by one shard of a run.
+ * Partial files of all shards are summed up region by region by RegionExtractor.merge, which writes the usual
+ * output. Every region is stored as a separately deflated record, so that a merge only holds one region
+ * in memory.
+ *
+ * Layout: magic, name of the BAM file, then one record per region with reads: BED index, contig, start,
+ * stop, number of reads, length and deflated data of QualityAccumulator.write
+ */
+public class PartialResults {
+
+    /**
+     * Writes the records of one shard, safe to share between threads
+     */
+    public static class Writer {
+        /**
+         * @param file partial file to create
+         * @param bam BAM file of the shard, recorded for the merge
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(final File file, final File bam) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.write(MAGIC);
+            out.writeUTF(bam.getName());
+        }
+
+        /**
+         * @param bedIndex index of the region in the whole BED file
+         * @param accumulator accumulated qualities of the region
+         * @param reads number of reads accumulated
+         * @throws IOException if the record cannot be written
+         */
+        public void write(int bedIndex, final QualityAccumulator accumulator, long reads) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(accumulator.getLength() * 4);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DataOutputStream compressed = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(data, deflater), 1 << 16));
+            accumulator.write(compressed);
+            compressed.close();
+            deflater.end();
+
+            BEDRecord region = accumulator.getRegion();
+            synchronized (this){
+                out.writeInt(bedIndex);
+                out.writeUTF(region.getContigName());
+                out.writeInt(region.getStartIndex());
+                out.writeInt(region.getStopIndex());
+                out.writeLong(reads);
+                out.writeInt(data.size());
+                data.writeTo(out);
+            }
+        }
+
+        /**
+         * Push the written records to the file
+         */
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private final DataOutputStream out;
+    }
+
+    /**
+     * Random access to the records of one partial file
+     */
+    public static class Reader {
+        /**
+         * Scan the record headers of the file. A record cut short, e.g. by a killed process, ends the file
+         * @param file partial file
+         * @throws IOException if the file cannot be read or is not a partial file
+         */
+        public Reader(final File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try{
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if(!Arrays.equals(magic, MAGIC))
+                    throw new IOException(file.getName() + " is not a partial results file");
+                bamName = in.readUTF();
+                long offset = MAGIC.length + 2 + bamName.getBytes("UTF-8").length;
+                try{
+                    while(offset < this.file.length()){
+                        int bedIndex = in.readInt();
+                        String contig = in.readUTF();
+                        BEDRecord region = new BEDRecord(contig, in.readInt(), in.readInt());
+                        long reads = in.readLong();
+                        int length = in.readInt();
+                        offset += 4 + 2 + contig.getBytes("UTF-8").length + 4 + 4 + 8 + 4;
+                        if(offset + length > this.file.length())
+                            throw new EOFException();
+                        records.add(new Record(this, bedIndex, region, reads, offset, length));
+                        in.skipBytes(length);
+                        offset += length;
+                    }
+                } catch (EOFException e){
+                    Logger.getLogger(PartialResults.class).warn(file.getName() + " ends with an incomplete record, it is ignored");
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * @return name of the BAM file the shard was extracted from
+         */
+        public String getBamName() {
+            return bamName;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private synchronized void read(final Record record, final QualityAccumulator accumulator) throws IOException {
+            byte[] data = new byte[record.length];
+            file.seek(record.offset);
+            file.readFully(data);
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data)), 1 << 16));
+            accumulator.add(in);
+            in.close();
+        }
+
+        private final RandomAccessFile file;
+        private final String bamName;
+        private final List<Record> records = new ArrayList<Record>();
+    }
+
+    /**
+     * Accumulated qualities of one region in a partial file
+     */
+    public static class Record {
+        private Record(final Reader reader, int bedIndex, final BEDRecord region, long reads, long offset, int length) {
+            this.reader = reader;
+            this.bedIndex = bedIndex;
+            this.region = region;
+            this.reads = reads;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Add the sums and counts of the record to the accumulator of the same region
+         */
+        public void addTo(final QualityAccumulator accumulator) throws IOException {
+            reader.read(this, accumulator);
+        }
+
+        /**
+         * @return index of the region in the whole BED file
+         */
+        public int getBedIndex() {
+            return bedIndex;
+        }
+
+        public BEDRecord getRegion() {
+            return region;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        private final Reader reader;
+        private final int bedIndex;
+        private final BEDRecord region;
+        private final long reads;
+        private final long offset;
+        private final int length;
+    }
+
+    private static final byte[] MAGIC = {'Q', 'E', 'P', 1};
+}
@@ -0,0 +1,35 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sums and counts of the regions of a shard in a partial file, see PartialResults and RegionExtractor.merge
+ */
+public class PartialSink implements RegionSink {
+    /**
+     * @param file partial file to create
+     * @param bam BAM file of the run
+     * @throws IOException if the file cannot be created
+     */
+    public PartialSink(final File file, final File bam) throws IOException {
+        this.writer = new PartialResults.Writer(file, bam);
+    }
+
+    @Override
+    public void write(MappedReference hg, int bedIndex, final QualityAccumulator accumulator, long reads) throws IOException {
+        writer.write(bedIndex, accumulator, reads);
+    }
+
+    /**
+     * Regions without reads are left out, merge writes the regions found in any partial file
+     */
+    @Override
+    public void skip(final BEDRecord region) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private final PartialResults.Writer writer;
+}
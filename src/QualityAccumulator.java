@@ -0,0 +1,306 @@
+import net.sf.samtools.SAMRecord;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-position quality sums and counts of one BED region, kept separately for every nucleotide
+ * (A, C, G, T and deletion). Not thread-safe.
+ */
+public class QualityAccumulator {
+
+    /**
+     * Nucleotides in the order of their codes
+     */
+    public static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T', '-'};
+
+    /**
+     * @param region BED region to accumulate
+     */
+    public QualityAccumulator(final BEDRecord region) {
+        this(region, 0);
+    }
+
+    /**
+     * @param region BED region to accumulate
+     * @param minBaseQuality bases with a lower quality are skipped, see ReadFilter.getMinBaseQuality
+     */
+    public QualityAccumulator(final BEDRecord region, int minBaseQuality) {
+        this(region, minBaseQuality, false);
+    }
+
+    /**
+     * @param region BED region to accumulate
+     * @param minBaseQuality bases with a lower quality are skipped, see ReadFilter.getMinBaseQuality
+     * @param histogram true to count the qualities in a QualityHistogram as well, see getHistogram
+     */
+    public QualityAccumulator(final BEDRecord region, int minBaseQuality, boolean histogram) {
+        this(region, minBaseQuality, histogram, Collections.<RegionStatistic.Factory>emptyList());
+    }
+
+    /**
+     * @param region BED region to accumulate
+     * @param minBaseQuality bases with a lower quality are skipped, see ReadFilter.getMinBaseQuality
+     * @param histogram true to count the qualities in a QualityHistogram as well, see getHistogram
+     * @param statistics statistics fed with the reads added to this accumulator, see getStatistics
+     */
+    public QualityAccumulator(final BEDRecord region, int minBaseQuality, boolean histogram,
+                              final List<RegionStatistic.Factory> statistics) {
+        this.region = region;
+        this.minBaseQuality = minBaseQuality;
+        this.length = region.getStopIndex() - region.getStartIndex() + 1;
+        this.sums = new int[NUCLEOTIDES.length][length];
+        this.counts = new int[NUCLEOTIDES.length][length];
+        this.histogram = histogram ? new QualityHistogram(length) : null;
+        this.statisticFactories = Collections.unmodifiableList(new ArrayList<RegionStatistic.Factory>(statistics));
+        List<RegionStatistic> created = new ArrayList<RegionStatistic>(statistics.size());
+        for(RegionStatistic.Factory factory : statistics)
+            created.add(factory.create(this));
+        this.statistics = Collections.unmodifiableList(created);
+    }
+
+    /**
+     * Add qualities of the aligned read. Positions outside of the region are ignored
+     * @param record read overlapping the region
+     * @return false if the read was skipped: unaligned, outside of the region or with unsupported CIGAR
+     */
+    public boolean add(final SAMRecord record) {
+        return add(record, null);
+    }
+
+    /**
+     * Same as add(record), the time of CIGAR walk and accumulation is added to the metrics
+     * @param metrics run metrics, may be null
+     */
+    public boolean add(final SAMRecord record, final RunMetrics metrics) {
+        if(0 == record.getAlignmentStart()) {
+            return false;     //unaligned read. Skip
+        }
+        final int samStart = record.getAlignmentStart(), samStop = record.getAlignmentEnd();
+        final int overlapStart = Math.max(samStart, region.getStartIndex());
+        final int overlapStop = Math.min(samStop, region.getStopIndex());
+        if(overlapStart > overlapStop)
+            return false;
+
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final CigarWalker walker = CigarWalker.forCurrentThread();
+        if(walker.walk(record) < 0)
+            return false;
+        final long walked = metrics != null ? System.nanoTime() : 0;
+        add(record, walker.getBases(), walker.getQualities(), overlapStart - samStart,
+                overlapStart - region.getStartIndex(), overlapStop - overlapStart + 1);
+        if(metrics != null){
+            metrics.addTime(RunMetrics.Phase.CIGAR_WALK, walked - start);
+            metrics.addTime(RunMetrics.Phase.ACCUMULATE, System.nanoTime() - walked);
+        }
+        return true;
+    }
+
+    /**
+     * Same as add(record, metrics) for a read already walked by a ReadPipeline
+     */
+    public boolean add(final ReadPipeline.AlignedRead read, final RunMetrics metrics) {
+        if(0 == read.getStart() || read.getBases() == null)
+            return false;
+        final int samStart = read.getStart();
+        final int overlapStart = Math.max(samStart, region.getStartIndex());
+        final int overlapStop = Math.min(read.getAlignmentEnd(), region.getStopIndex());
+        if(overlapStart > overlapStop)
+            return false;
+
+        final long start = metrics != null ? System.nanoTime() : 0;
+        add(read.getRecord(), read.getBases(), read.getQualities(), read.getOffset() + overlapStart - samStart,
+                overlapStart - region.getStartIndex(), overlapStop - overlapStart + 1);
+        if(metrics != null)
+            metrics.addTime(RunMetrics.Phase.ACCUMULATE, System.nanoTime() - start);
+        return true;
+    }
+
+    private void add(final SAMRecord record, final byte[] bases, final byte[] qualities, int from, int to, int size) {
+        add(bases, qualities, from, to, size);
+        for(int i = 0; i < statistics.size(); ++i)
+            statistics.get(i).add(record, bases, qualities, from, to, size);
+    }
+
+    /**
+     * Add aligned bases and qualities
+     * @param bases aligned bases
+     * @param qualities aligned qualities
+     * @param from start index in the aligned arrays
+     * @param to start index in the region
+     * @param size number of positions to add
+     */
+    public void add(final byte[] bases, final byte[] qualities, int from, int to, int size) {
+        for(int k = 0; k < size; ++k) {
+            final byte quality = qualities[from + k];
+            final int code = accumulatedCode(bases[from + k], quality);
+            if(code < 0)
+                continue;
+            sums[code][to + k] += quality;
+            counts[code][to + k]++;
+            if(histogram != null)
+                histogram.add(code, to + k, quality);
+            addedBases++;
+        }
+    }
+
+    /**
+     * Add a sum and count of qualities of the nucleotide in one position, e.g. read back from a QualityStore
+     * @param code nucleotide code, index in NUCLEOTIDES
+     * @param pos position relative to the region start
+     */
+    public void add(int code, int pos, int sum, int count) {
+        sums[code][pos] += sum;
+        counts[code][pos] += count;
+    }
+
+    /**
+     * @param base aligned base
+     * @param quality aligned quality of the base
+     * @return nucleotide code the base is accumulated as, -1 if it is skipped: not a nucleotide, a deletion with
+     * no quality or a base below the minimal base quality
+     */
+    public int accumulatedCode(byte base, byte quality) {
+        if(CigarWalker.DEL_QUALITY == quality)
+            return -1; //skip read with no quality
+        final int code = CODES[base & 0xFF];
+        if(code < 0 || (quality < minBaseQuality && code != DEL_CODE))
+            return -1;
+        return code;
+    }
+
+    /**
+     * Write sums and counts followed by the histogram, if it is kept, and the statistics, see add(DataInput)
+     */
+    public void write(final DataOutput out) throws IOException {
+        for(int code = 0; code < NUCLEOTIDES.length; ++code){
+            for(int pos = 0; pos < length; ++pos){
+                out.writeInt(sums[code][pos]);
+                out.writeInt(counts[code][pos]);
+            }
+        }
+        if(histogram != null)
+            histogram.write(out);
+        for(RegionStatistic statistic : statistics)
+            statistic.write(out);
+    }
+
+    /**
+     * Add sums and counts written by write, e.g. by another shard of the same region. The histogram is read
+     * if this accumulator keeps one, so both have to be created with the same histogram setting and statistics
+     */
+    public void add(final DataInput in) throws IOException {
+        for(int code = 0; code < NUCLEOTIDES.length; ++code){
+            for(int pos = 0; pos < length; ++pos){
+                sums[code][pos] += in.readInt();
+                counts[code][pos] += in.readInt();
+            }
+        }
+        if(histogram != null)
+            histogram.add(in);
+        for(RegionStatistic statistic : statistics)
+            statistic.add(in);
+    }
+
+    /**
+     * @param code nucleotide code, index in NUCLEOTIDES
+     * @param pos position relative to the region start
+     * @return sum of qualities
+     */
+    public int getSum(int code, int pos) {
+        return sums[code][pos];
+    }
+
+    /**
+     * @param code nucleotide code, index in NUCLEOTIDES
+     * @param pos position relative to the region start
+     * @return number of accumulated bases
+     */
+    public int getCount(int code, int pos) {
+        return counts[code][pos];
+    }
+
+    /**
+     * @return number of bases added so far
+     */
+    public long getBases() {
+        return addedBases;
+    }
+
+    /**
+     * @return histograms of the accumulated qualities, null if they are not kept
+     */
+    public QualityHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return statistics of the region, in the order of their factories
+     */
+    public List<RegionStatistic> getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return factories the statistics were created by
+     */
+    public List<RegionStatistic.Factory> getStatisticFactories() {
+        return statisticFactories;
+    }
+
+    public BEDRecord getRegion() {
+        return region;
+    }
+
+    /**
+     * @return number of positions in the region
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param histogram true if a QualityHistogram is kept
+     * @param statistics statistics of the accumulator
+     * @param readGroups number of read groups of the BAM file, see RegionStatistic.Factory.getBytesPerPosition
+     * @return approximate memory held by an accumulator per position of its region
+     */
+    public static long bytesPerPosition(boolean histogram, final List<RegionStatistic.Factory> statistics, int readGroups) {
+        long bytes = 8L * NUCLEOTIDES.length + (histogram ? (long)QualityHistogram.BINS * NUCLEOTIDES.length : 0);
+        for(RegionStatistic.Factory statistic : statistics)
+            bytes += statistic.getBytesPerPosition(Math.max(1, readGroups));
+        return bytes;
+    }
+
+    /**
+     * @param base base character
+     * @return nucleotide code of the base or -1 if it is not accumulated
+     */
+    public static int codeOf(byte base) {
+        return CODES[base & 0xFF];
+    }
+
+    private static final byte[] CODES = new byte[256];
+    static {
+        Arrays.fill(CODES, (byte)-1);
+        for(int i = 0; i < NUCLEOTIDES.length; ++i)
+            CODES[NUCLEOTIDES[i]] = (byte)i;
+    }
+
+    private static final int DEL_CODE = CODES[CigarWalker.DEL_BASE];
+
+    private final BEDRecord region;
+    private final int minBaseQuality;
+    private final int length;
+    private final int[][] sums;
+    private final int[][] counts;
+    private final QualityHistogram histogram;
+    private final List<RegionStatistic.Factory> statisticFactories;
+    private final List<RegionStatistic> statistics;
+    private long addedBases = 0;
+}
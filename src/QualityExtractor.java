@@ -1,17 +1,26 @@
-import net.sf.picard.reference.IndexedFastaSequenceFile;
-import net.sf.picard.reference.ReferenceSequence;
 import net.sf.samtools.*;
 import org.apache.log4j.Logger;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class QualityExtractor {
 
     /**
      *
-     * @param args arg[0] is BAM file, args[1] is BED file
+     * @param args arg[0] is BAM file, args[1] is BED file, args[2] is reference genome, args[3] is output folder,
+     *             optional --name=value settings may follow (see ExtractionOptions).
+     *             To merge partial files of shards: "merge", reference genome, output folder, partial files
+     *             and optional settings.
+     *             To process several samples in one run: "batch", BED file, reference genome, output folder,
+     *             BAM files or folders with BAM files and optional settings.
+     *             To write the output of a quality store (see --output=store): "convert", store file, reference
+     *             genome, output folder and optional settings.
+     *             To answer queries of small regions over HTTP on the loopback interface (see QualityServer):
+     *             "server", reference genome, port and optional settings
      */
     public static void main(String[] args) {
 
@@ -21,20 +30,78 @@ public class QualityExtractor {
         for(String str : args){
             logger.info(str + ";");
         }
-        if(args.length != 4) {
+        if(args.length > 0 && args[0].equals("merge")){
+            List<File> partials = new ArrayList<File>();
+            int i = 3;
+            for(; i < args.length && !args[i].startsWith("--"); ++i)
+                partials.add(new File(args[i]));
+            if(args.length < 4 || partials.isEmpty()) {
+                logger.error("Not enough arguments to merge. Quit.");
+                return;
+            }
+            mergePartials(partials, args[1], OutputFormat.VCF, args[2], ExtractionOptions.parse(args, i));
+            logger.info("Processing finished.");
+            return;
+        }
+        if(args.length > 0 && args[0].equals("convert")){
+            if(args.length < 4) {
+                logger.error("Not enough arguments to convert. Quit.");
+                return;
+            }
+            convertStore(new File(args[1]), args[2], OutputFormat.VCF, args[3], ExtractionOptions.parse(args, 4));
+            logger.info("Processing finished.");
+            return;
+        }
+        if(args.length > 0 && args[0].equals("server")){
+            if(args.length < 3) {
+                logger.error("Not enough arguments to launch a server. Quit.");
+                return;
+            }
+            try{
+                final QualityServer server = new QualityServer(args[1], Integer.parseInt(args[2]), ExtractionOptions.parse(args, 3));
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        server.stop();
+                    }
+                });
+                server.start();
+            } catch (Exception e){
+                logger.error("Error while starting the server: " + e.toString());
+            }
+            return;
+        }
+        if(args.length > 0 && args[0].equals("batch")){
+            List<File> samples = new ArrayList<File>();
+            int i = 4;
+            for(; i < args.length && !args[i].startsWith("--"); ++i)
+                samples.addAll(listSamples(new File(args[i])));
+            if(args.length < 5 || samples.isEmpty()) {
+                logger.error("Not enough arguments to launch a batch. Quit.");
+                return;
+            }
+            extractBatch(samples, new File(args[1]), args[2], OutputFormat.VCF, args[3], ExtractionOptions.parse(args, i));
+            logger.info("Processing finished.");
+            return;
+        }
+        if(args.length < 4) {
             logger.error("Not enough arguments to launch. Quit.");
             return;
         }
 
         logger.info("Start processing...");
+        ExtractionOptions options = ExtractionOptions.parse(args, 4);
+        long start = System.nanoTime();
         createBamIndex(new File(args[0]), new File(args[0] + ".bai"));
-        calcMeanQuality(extractReadsFromBAM(new File(args[0]), new File(args[1])),
-                args[2], OutputFormat.VCF, args[3]);
+        if(options.getMetrics() != null)
+            options.getMetrics().addTime(RunMetrics.Phase.INDEX, System.nanoTime() - start);
+        extractQualities(new File(args[0]), new File(args[1]), args[2], OutputFormat.VCF, args[3], options);
         logger.info("Processing finished.");
     }
 
     /**
-     * Create a BAM index file. If output file with this name already exists, no index file will be created
+     * Create a BAM index file. An existing index file is reused only if it is up to date with the BAM file,
+     * otherwise it is rebuilt
      * @param inputSamOrBamFile   Input BAM file name
      * @param outputBamIndexFile    Output BAM index file name
      */
@@ -43,25 +110,11 @@ public class QualityExtractor {
         Logger logger = Logger.getLogger(QualityExtractor.class);
         try{
             logger.info("BAM indexing started");
-            if(outputBamIndexFile.exists()){
-                logger.info("BAM index file " + outputBamIndexFile.getName() + " already exists. New index will not be created.");
+            if(BamIndexBuilder.isUpToDate(inputSamOrBamFile, outputBamIndexFile)){
+                logger.info("BAM index file " + outputBamIndexFile.getName() + " is up to date. New index will not be created.");
                 return;
             }
-            final SAMFileReader inputSam = new SAMFileReader(inputSamOrBamFile);
-            BAMIndexer indexer = new BAMIndexer(outputBamIndexFile, inputSam.getFileHeader());
-            inputSam.enableFileSource(true);
-            int totalRecords = 0;
-
-            for(SAMRecord rec : inputSam)
-            {
-                if (++totalRecords % 10000 == 0)
-                    logger.info(totalRecords + " reads processed ...");
-
-                indexer.processAlignment(rec);
-            }
-            indexer.finish();
-            inputSam.close();
-
+            new BamIndexBuilder(Runtime.getRuntime().availableProcessors()).build(inputSamOrBamFile, outputBamIndexFile);
             logger.info("BAM indexing finished");
         }catch (Exception e){
             logger.error("Error while data processing: " + e.toString());
@@ -69,33 +122,68 @@ public class QualityExtractor {
     }
 
     /**
-     * Extract all reads, that fit the boundaries given by BED file
+     * Extract all reads, that fit the boundaries given by BED file. Holds every read in memory,
+     * consider extractQualities for large inputs
      * @param inputSamOrBamFile
      * @param inputBedFile
      * @return Map with BEDRecords and associated non-empty list of SAMRecords. If BEDRecord has no associated
      * SAMRecords, it will not be in the result map
      */
     public static  Map<BEDRecord, List<SAMRecord>> extractReadsFromBAM(final File inputSamOrBamFile, final File inputBedFile) {
+        return extractReadsFromBAM(inputSamOrBamFile, inputBedFile, new ExtractionOptions());
+    }
+
+    /**
+     * Same as extractReadsFromBAM(inputSamOrBamFile, inputBedFile), only reads accepted by the read filter of
+     * the options are kept. Rejected reads are dropped before their sequence, qualities and CIGAR are decoded.
+     * Reads above the depth cap of the options are dropped as well, see DepthDownsampler.
+     * The BAM file is memory-mapped if the options say so
+     */
+    public static  Map<BEDRecord, List<SAMRecord>> extractReadsFromBAM(final File inputSamOrBamFile, final File inputBedFile,
+                                                                       final ExtractionOptions options) {
         Logger logger = Logger.getLogger(QualityExtractor.class);
         Map<BEDRecord, List<SAMRecord>> resDict = new HashMap<BEDRecord, java.util.List<SAMRecord>>();
         try{
             final BEDFileReader inputBed = new BEDFileReader(inputBedFile);
-            final SAMFileReader inputSam = new SAMFileReader(inputSamOrBamFile, new File(inputSamOrBamFile.getAbsolutePath() + ".bai"));
+            final ReadFilter filter = options.getReadFilter();
+            final SAMFileReader inputSam = options.isMappedBam() ? new MappedBamFile(inputSamOrBamFile).open() :
+                    new SAMFileReader(inputSamOrBamFile, new File(inputSamOrBamFile.getAbsolutePath() + ".bai"));
             if(!inputSam.hasIndex())
                 throw new Exception("Index file is invalid");
             while (inputBed.hasNext()){
                 BEDRecord record = inputBed.getBEDRecord();
-                logger.info("BEDRecord: " + record.getContigName()+ "\t" + record.getStartIndex() + '\t' + record.getStopIndex());
+                if(logger.isDebugEnabled())
+                    logger.debug("BEDRecord: " + record.getContigName()+ "\t" + record.getStartIndex() + '\t' + record.getStopIndex());
                 SAMRecordIterator it = inputSam.query(record.getContigName(), record.getStartIndex(), record.getStopIndex(), false);
-                List<SAMRecord> list = new ArrayList<SAMRecord>();
+                final List<SAMRecord> list = new ArrayList<SAMRecord>();
+                DepthDownsampler downsampler = options.getMaxDepth() <= 0 ? null :
+                        new DepthDownsampler(record, options.getMaxDepth(), options.getDownsampleSeed(), new DepthDownsampler.Sink() {
+                            @Override
+                            public void accept(SAMRecord rec, ReadPipeline.AlignedRead read) {
+                                list.add(rec);
+                            }
+                        });
                 int totalRecords = 0;
                 while (it.hasNext()){
                     SAMRecord rec = it.next();
-                    list.add(rec);
+                    if(!filter.accept(rec))
+                        continue;
+                    if(downsampler != null)
+                        downsampler.add(rec, null);
+                    else
+                        list.add(rec);
                     totalRecords++;
                 }
                 it.close();
-                logger.info("Total SAMRecords for current BED: " + totalRecords);
+                if(downsampler != null){
+                    downsampler.finish();
+                    if(downsampler.getDropped() > 0)
+                        logger.info("Depth of " + record.getContigName() + ":" + record.getStartIndex() + "-" +
+                                record.getStopIndex() + " capped at " + options.getMaxDepth() + ": dropped " +
+                                downsampler.getDropped() + " of " + totalRecords + " reads");
+                }
+                if(logger.isDebugEnabled())
+                    logger.debug("Total SAMRecords for current BED: " + totalRecords);
 
                 if(list.size() > 0)
                     resDict.put(record, list);
@@ -116,100 +204,179 @@ public class QualityExtractor {
      */
     public static void getAlignedQualities(final SAMRecord record, byte[] outputQuality, byte[] outputRead){
         Logger logger = Logger.getLogger(QualityExtractor.class);
-        logger.debug("Read Name: " + record.getReadName());
-        logger.debug("Read string: " + record.getReadString());
-        logger.debug("Quality string: " + record.getBaseQualityString());
-        logger.debug("Cigar string: " + record.getCigarString());
-        logger.debug("Quality array size: " + record.getReadBases().length + "; It starts from " +
-                record.getAlignmentStart() + " and ends at " + record.getAlignmentEnd() + "; Difference of alignment " +
-                "positions gives us length " + (record.getAlignmentEnd() - record.getAlignmentStart() + 1));
+        if(logger.isDebugEnabled()){
+            logger.debug("Read Name: " + record.getReadName());
+            logger.debug("Cigar string: " + record.getCigarString());
+        }
 
-        ArrayList<Byte> resultRead = new ArrayList<Byte>();
-        ArrayList<Byte> resultQuality = new ArrayList<Byte>();
-        List<CigarElement> elements = record.getCigar().getCigarElements();
+        CigarWalker walker = CigarWalker.forCurrentThread();
+        int length = walker.walk(record);
+        if(length < 0){
+            logger.error("Unsupported read " + record.getReadName());
+            return;
+        }
+        System.arraycopy(walker.getBases(), 0, outputRead, 0, Math.min(length, outputRead.length));
+        System.arraycopy(walker.getQualities(), 0, outputQuality, 0, Math.min(length, outputQuality.length));
+    }
 
-        //convert quality and read arrays to stack for convinience
-        ArrayList<Byte> read = new ArrayList<Byte>();
-        for(byte b : record.getReadBases())
-            read.add(new Byte(b));
-        Collections.reverse(read);
-        Stack<Byte> reads = new Stack<Byte>();
-        reads.addAll(read);
+    /**
+     * Streaming version of extractReadsFromBAM + calcMeanQuality. Reads are folded into the per-position
+     * accumulators while the query iterator runs, so peak memory depends on region length, not on read depth.
+     * As before, regions without any overlapping reads produce no output file.
+     * @param inputSamOrBamFile Input BAM file, must have index file next to it
+     * @param inputBedFile BED file with regions of interest
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param format Output format
+     * @param folder Output folder
+     */
+    public static void extractQualities(final File inputSamOrBamFile, final File inputBedFile, String refGenome,
+                                        OutputFormat format, String folder) {
+        extractQualities(inputSamOrBamFile, inputBedFile, refGenome, format, folder, new ExtractionOptions());
+    }
 
-        ArrayList<Byte> qual = new ArrayList<Byte>();
-        for(byte b : record.getBaseQualities())
-            qual.add(new Byte(b));
-        Collections.reverse(qual);
-        Stack<Byte> qualities = new Stack<Byte>();
-        qualities.addAll(qual);
+    /**
+     * Same as extractQualities(inputSamOrBamFile, inputBedFile, refGenome, format, folder) with additional
+     * settings, e.g. the number of threads processing BED regions or the engine fetching the reads
+     */
+    public static void extractQualities(final File inputSamOrBamFile, final File inputBedFile, String refGenome,
+                                        OutputFormat format, String folder, ExtractionOptions options) {
+        Logger logger = Logger.getLogger(QualityExtractor.class);
+        try{
+            List<BEDRecord> regions = BEDFileReader.readAll(inputBedFile);
+            logger.info("Processing " + regions.size() + " BED regions on " + options.getThreads() + " thread(s)");
+            new RegionExtractor(inputSamOrBamFile, refGenome, format, folder).run(regions, options);
+        }catch (Exception e){
+            logger.error("Error while data processing: " + e.toString());
+        }
+    }
 
-        //TODO think of how to use AlignmentBlock instead
-        for(CigarElement elem : elements) {
-            switch (elem.getOperator()) {
-                case M:
-                    for(int i = 0; i < elem.getLength(); ++i){
-                        resultRead.add(reads.pop());
-                        resultQuality.add(qualities.pop());
-                    }
-                    break;
-                case D:
-                    for(int i = 0; i < elem.getLength(); ++i){
-                        resultRead.add(new Byte((byte)'-'));
-                        resultQuality.add(new Byte((byte)'*'));
-                    }
-                    break;
-                case S:
-                case I:
-                    for(int i = 0; i < elem.getLength(); ++i){
-                        reads.pop();
-                        qualities.pop();
+    /**
+     * Process several samples with the same BED file and reference genome in one process. The BED file is
+     * parsed once and the reference is opened once for all samples, the samples are processed
+     * getParallelSamples at a time. Output of every sample goes to a subfolder named after its BAM file
+     * @param samples Input BAM files, indexed if the index is missing or outdated
+     * @param inputBedFile BED file with regions of interest
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param format Output format
+     * @param folder Output folder
+     * @param options settings of every sample
+     */
+    public static void extractBatch(final List<File> samples, final File inputBedFile, final String refGenome,
+                                    final OutputFormat format, String folder, final ExtractionOptions options) {
+        Logger logger = Logger.getLogger(QualityExtractor.class);
+        MappedReference hg = null;
+        try{
+            Map<String, File> folders = new LinkedHashMap<String, File>();
+            for(File sample : samples){
+                String name = sampleName(sample);
+                if(folders.containsKey(name))
+                    throw new IllegalArgumentException("Samples " + folders.get(name).getName() + " and " + sample.getPath() +
+                            " would share output folder " + name);
+                folders.put(name, sample);
+            }
+            if(options.getPartialFile() != null)
+                throw new IllegalArgumentException("Partial files are not supported in batch mode");
+
+            final List<BEDRecord> regions = BEDFileReader.readAll(inputBedFile);
+            final MappedReference reference = hg = new MappedReference(new File(refGenome), options.getReferenceCacheBytes());
+            final int parallel = Math.min(options.getParallelSamples(), samples.size());
+            logger.info("Processing " + regions.size() + " BED regions of " + samples.size() + " samples, " + parallel +
+                    " at a time on " + options.getThreads() + " thread(s) each");
+            ExecutorService executor = Executors.newFixedThreadPool(parallel);
+            for(final Map.Entry<String, File> sample : folders.entrySet()){
+                final File sampleFolder = new File(folder, sample.getKey());
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Logger logger = Logger.getLogger(QualityExtractor.class);
+                        try{
+                            if(!sampleFolder.exists() && !sampleFolder.mkdirs())
+                                throw new IOException("Cannot create " + sampleFolder.getPath());
+                            File bam = sample.getValue();
+                            createBamIndex(bam, new File(bam.getAbsolutePath() + ".bai"));
+                            //samples processed at the same time share the memory budget
+                            ExtractionOptions sampleOptions = options.copy();
+                            sampleOptions.setMemoryBudgetBytes(options.getMemoryBudgetBytes() / parallel);
+                            new RegionExtractor(bam, reference, refGenome, format, sampleFolder.getPath())
+                                    .run(regions, sampleOptions);
+                            logger.info("Sample " + sample.getKey() + " finished");
+                        } catch (Exception e){
+                            logger.error("Error while processing sample " + sample.getKey() + ": " + e.toString());
+                        }
                     }
-                    break;
-                case N:
-                case H:
-                case P:
-                case EQ:
-                case X:
-                    logger.error("Unsupported CIGAR operator for read " + record.getReadName());
+                });
             }
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+                logger.info("Waiting for the samples to finish...");
+        }catch (Exception e){
+            logger.error("Error while data processing: " + e.toString());
+        } finally {
+            if(hg != null)
+                hg.close();
         }
+    }
 
-        for(int i = 0; i < resultRead.size(); ++i){
-            outputRead[i] = resultRead.get(i);
-            outputQuality[i] = resultQuality.get(i);
-        }
-
-        //deal with DEL - replace quality with the mean value from the neighbours
-        int i = 0;
-        while(i < outputQuality.length)
-        {
-            if(outputQuality[i] != '*')
-            {
-                i++;
-                continue;
+    /**
+     * @return the file itself or the BAM files of the folder in name order
+     */
+    static List<File> listSamples(final File file) {
+        if(!file.isDirectory())
+            return Collections.singletonList(file);
+        File[] bams = file.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".bam");
             }
-            if(outputQuality.length == i)
-                break;
-            int left_boundary = i;
-            while(i < outputQuality.length && outputQuality[i] == '*')
-                i++;
-            int right_boundary = i - 1;
+        });
+        List<File> samples = new ArrayList<File>(Arrays.asList(bams != null ? bams : new File[0]));
+        Collections.sort(samples);
+        return samples;
+    }
 
-            byte mean_quality;
-            if(0 == left_boundary && outputQuality.length - 1 == right_boundary)
-                mean_quality = 0;
-            else if(0 == left_boundary)
-                mean_quality = outputQuality[right_boundary + 1];
-            else if(outputQuality.length - 1 == right_boundary)
-                mean_quality = outputQuality[left_boundary - 1];
-            else //normal case - we have neighbours on the left and on the right
-                mean_quality = (byte)((outputQuality[left_boundary - 1] + outputQuality[right_boundary + 1]) / 2);
+    /**
+     * @return name of the output subfolder of the sample, the BAM file name without extension
+     */
+    static String sampleName(final File bam) {
+        String name = bam.getName();
+        return name.endsWith(".bam") ? name.substring(0, name.length() - 4) : name;
+    }
 
-            //fill DEL regions with mean values from the neighbours
-            for(int j = 0; j < right_boundary - left_boundary + 1; ++j)
-                outputQuality[left_boundary + j] = mean_quality;
+    /**
+     * Combine partial files written by shards of a run (see ExtractionOptions.setPartialFile) and write the
+     * output of the whole run
+     * @param partials partial files of all shards
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param format Output format
+     * @param folder Output folder
+     * @param options output settings
+     */
+    public static void mergePartials(final List<File> partials, String refGenome, OutputFormat format, String folder,
+                                     ExtractionOptions options) {
+        Logger logger = Logger.getLogger(QualityExtractor.class);
+        try{
+            new RegionExtractor(null, refGenome, format, folder).merge(partials, options);
+        }catch (Exception e){
+            logger.error("Error while merging partial files: " + e.toString());
+        }
+    }
+
+    /**
+     * Write the VCF or FASTQ output of the regions of a quality store written with Output.STORE
+     * @param store quality store file
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param format Output format
+     * @param folder Output folder
+     * @param options output settings
+     */
+    public static void convertStore(final File store, String refGenome, OutputFormat format, String folder,
+                                    ExtractionOptions options) {
+        Logger logger = Logger.getLogger(QualityExtractor.class);
+        try{
+            new RegionExtractor(null, refGenome, format, folder).convert(store, options);
+        }catch (Exception e){
+            logger.error("Error while converting quality store: " + e.toString());
         }
-        logger.debug("Aligned read and quality strings of length " + outputRead.length + ": " + new String(outputRead).toString());
     }
 
     /**
@@ -217,190 +384,88 @@ public class QualityExtractor {
      * @param dict BEDRecords with associated SAMRecords
      */
     public static void calcMeanQuality(final Map<BEDRecord, List<SAMRecord>> dict, String refGenome, OutputFormat format, String folder) {
+        calcMeanQuality(dict, refGenome, format, folder, new ReadFilter());
+    }
+
+    /**
+     * Same as calcMeanQuality(dict, refGenome, format, folder), bases below the minimal base quality of the filter
+     * are skipped
+     */
+    public static void calcMeanQuality(final Map<BEDRecord, List<SAMRecord>> dict, String refGenome, OutputFormat format, String folder,
+                                       final ReadFilter filter) {
         Logger logger = Logger.getLogger(QualityExtractor.class);
-        IndexedFastaSequenceFile hg = null;
-        PrintWriter out = null;
+        MappedReference hg = null;
 
         try{
-            Set s = dict.entrySet();
-            Iterator it = s.iterator();
-            //TODO obtain path from environment variables
-            hg = new IndexedFastaSequenceFile(new File(refGenome));
+            hg = new MappedReference(new File(refGenome), new ExtractionOptions().getReferenceCacheBytes());
 
             //Iterate through map records
-            while(it.hasNext()){
-                Map.Entry m =(Map.Entry)it.next();
-                BEDRecord bedRecord = (BEDRecord) m.getKey();
-                List<SAMRecord> records = (List<SAMRecord>) m.getValue();
+            for(Map.Entry<BEDRecord, List<SAMRecord>> m : dict.entrySet()){
+                BEDRecord bedRecord = m.getKey();
+                List<SAMRecord> records = m.getValue();
                 logger.info("Parsing reference sequence: " + bedRecord.getContigName() + " " + bedRecord.getStartIndex() +
                         " " + bedRecord.getStopIndex() + " with " + records.size() + " sequences");
 
-                Map<String, ArrayList<Pair>> dataSet = new LinkedHashMap<String, ArrayList<Pair>>();
-                for(char nucleotid : dictNucleotid){
-                    ArrayList<Pair> list = new ArrayList<Pair>();
-                    for(int i = 0; i < bedRecord.getStopIndex() - bedRecord.getStartIndex() + 1; ++i){
-                        list.add(i, new Pair(0, 0));
-                    }
-                    dataSet.put(String.valueOf(nucleotid), list);
-                }
+                QualityAccumulator accumulator = new QualityAccumulator(bedRecord, filter.getMinBaseQuality());
 
                 logger.info("Start calculating the mean value for quality...");
-                for(SAMRecord samRecord : records){
-                    if(0 == samRecord.getAlignmentStart()) {
-                        continue;     //unaligned read. Skip
-                    }
-
-                    byte[] quality = new byte[samRecord.getAlignmentEnd() - samRecord.getAlignmentStart() + 1];
-                    byte[] read = new byte[samRecord.getAlignmentEnd() - samRecord.getAlignmentStart() + 1];
-                    QualityExtractor.getAlignedQualities(samRecord, quality, read);
-
-                    AlignmentIndicies indicies = getIndicies(samRecord, bedRecord);
-
-                    //find indicies to correctly copy overlapped record
-                    int i = indicies.samStart, // start index in SAMRecord
-                            j = indicies.bedStart, // start index in BEDRecord
-                            copySize = indicies.copySize; //num of bytes to copy from SAMRecord
-
-                    //copy SAMRecord to BEDRecord boundaries
-                    copySize += i; //if i != 0, because we need to iterate copySize times
-                    while(i < copySize){
-                        if('*' == quality[i]){ //skip read with no quality
-                            i++; j++;
-                            continue;
-                        }
-                        Pair currentPair = dataSet.get(String.valueOf((char)read[i])).get(j);
-                        currentPair.first += quality[i];
-                        currentPair.second += 1;
-                        dataSet.get(String.valueOf((char)read[i])).set(j, currentPair);
-                        i++; j++;
-                    }
-                }
+                for(SAMRecord samRecord : records)
+                    accumulator.add(samRecord);
 
                 logger.info("Done. Start constructing the result quality string..");
-
-                //print output quality string
-                out = new PrintWriter(new FileWriter(folder + "/region_" + bedRecord.getStartIndex() + "-"
-                + bedRecord.getStopIndex() + (format.equals(OutputFormat.FASTQ) ? ".fastq" : ".vcf")));
-
-                ReferenceSequence refSequence =  hg.getSubsequenceAt(bedRecord.getContigName(), bedRecord.getStartIndex(), bedRecord.getStopIndex());
-                switch (format){
-                    case VCF:
-                        printVcf(out, dataSet, bedRecord, refSequence);
-                        break;
-                    case FASTQ:
-                        printFastq(out, dataSet, bedRecord, refSequence);
-                        break;
-                }
-                out.close();
+                writeRegion(hg, accumulator, format, folder);
             }
         } catch (Exception e){
-            if(out != null)
-                out.close();
-            System.out.println("Error while data processing: " + e.toString());
-        }
-    }
-
-    private static void printFastq(PrintWriter out, final Map<String, ArrayList<Pair>> dataSet, final BEDRecord bedRecord, final ReferenceSequence refSequence){
-        //print 4 different quality strings: first - is the quality if A is in every position, second - if C, and so on
-        for(char nucleotid : dictNucleotid){
-            out.println("@BED:" + bedRecord.getStartIndex() + " - " + bedRecord.getStopIndex()+ "(" + nucleotid + ")");
-            out.println(new String(refSequence.getBases()));
-            out.println("+");
-            for(int j = 0; j < bedRecord.getStopIndex() - bedRecord.getStartIndex(); ++j){
-                if(dataSet.get(String.valueOf(nucleotid)).get(j).second > 0){
-                    out.print((char)(QualityExtractor.QUAL_BASE + dataSet.get(String.valueOf(nucleotid)).get(j).first / dataSet.get(String.valueOf(nucleotid)).get(j).second));
-                } else {
-                    out.print('*'); //no quality is stored
-                }
-            }
-            out.print("\n");
-        }
-    }
-
-    private static void printVcf(PrintWriter out, final Map<String, ArrayList<Pair>> dataSet, final BEDRecord bedRecord, final ReferenceSequence refSequence){
-        out.println("##fileformat=VCFv4.0");
-        out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
-        byte[] ref = refSequence.getBases();
-        for(int i = 0; i < bedRecord.getStopIndex() - bedRecord.getStartIndex() + 1; ++i){
-            char bestNucleotid = 'N';
-            int bestNucleotidCount = 0;
-            int bestNucleotidQuality = 0;
-            for(char nucleotid : dictNucleotid){
-                Pair currentPair = dataSet.get(String.valueOf(nucleotid)).get(i);
-                if(currentPair.second > bestNucleotidCount){
-                    bestNucleotid = nucleotid;
-                    bestNucleotidQuality =  currentPair.first;
-                    bestNucleotidCount = currentPair.second;
-                }
-            }
-            StringBuilder str = new StringBuilder();
-            str.append(bedRecord.getContigName() + "\t" +       //CHROM
-                    (i + bedRecord.getStartIndex()) + "\t" +    //POS
-                    ".\t" +                                     //ID
-                    (char)ref[i] + "\t" +                       //REF
-                    (bestNucleotid == (char)ref[i] ? "." : String.valueOf(bestNucleotid)) + "\t" +  //ALT
-                    ((bestNucleotidCount == 0) ? "." : (bestNucleotidQuality / bestNucleotidCount)) + "\t" + //QUAL
-                    ".\t" +                                     //FILTER
-                    ".\t"                                       //INFO
-            );
-            out.println(str.toString());
+            logger.error("Error while data processing: " + e.toString());
+        } finally {
+            if(hg != null)
+                hg.close();
         }
     }
 
-    private static class Pair{
-
-        Pair(int first, int second){
-            this.first = first;
-            this.second = second;
-        }
-
-        public int first;
-        public int second;
+    /**
+     * @return name of the output file of the region
+     */
+    static String regionFileName(final BEDRecord bedRecord, OutputFormat format) {
+        return "region_" + bedRecord.getStartIndex() + "-" + bedRecord.getStopIndex()
+                + (format.equals(OutputFormat.FASTQ) ? ".fastq" : ".vcf");
     }
 
     /**
-     * Calculate correct start indicies to fit record into BED region (SAM record can overlap BED region)
-     * @param samRecord
-     * @param bedRecord
-     * @return start position in SAM sequence, start position in BED region and copy size
+     * Print accumulated qualities of the region to region_<start>-<stop> file in the output folder
      */
-    private final static AlignmentIndicies getIndicies(SAMRecord samRecord, BEDRecord bedRecord){
-        int samStartPos = samRecord.getAlignmentStart(), samStopPos = samRecord.getAlignmentEnd(),
-                bedStartPos = bedRecord.getStartIndex(), bedStopPos = bedRecord.getStopIndex();
-
-        //SAMRecord can overlap BEDRecord, so we need to be careful
-        if(samStartPos >= bedStartPos && samStopPos <= bedStopPos){
-            //SAMRecord is included in BED boundaries
-            return new AlignmentIndicies(0, samStartPos - bedStartPos, samStopPos - samStartPos + 1);
-        } else if(samStartPos < bedStartPos && samStopPos <= bedStopPos){
-            //SAMRecord overlaps the left boundary
-            return new AlignmentIndicies(bedStartPos - samStartPos, 0, samStopPos - bedStartPos + 1);
-        } else if(samStartPos >= bedStartPos && samStopPos > bedStopPos){
-            //SAMRecord overlaps the right boundary
-            return new AlignmentIndicies(0, samStartPos - bedStartPos, bedStopPos - samStartPos + 1);
-        } else if(samStartPos < bedStartPos && samStopPos > bedStopPos){
-            //SAMRecord overlaps both boundaries
-            return new AlignmentIndicies(bedStartPos - samStartPos, 0, bedStopPos - bedStartPos + 1);
-        }
-        return new AlignmentIndicies(0, 0, 0);
+    static void writeRegion(MappedReference hg, final QualityAccumulator accumulator,
+                            OutputFormat format, String folder) throws IOException {
+        BEDRecord bedRecord = accumulator.getRegion();
+        writeRegion(hg.getSubsequence(bedRecord.getContigName(), bedRecord.getStartIndex(), bedRecord.getStopIndex()),
+                accumulator, format, folder);
     }
 
-    private final static class AlignmentIndicies{
-        public final int copySize;
-        public final int bedStart;
-        public final int samStart;
-
-         AlignmentIndicies(int samStart, int bedStart, int copySize) {
-            this.copySize = copySize;
-            this.bedStart = bedStart;
-            this.samStart = samStart;
+    /**
+     * Same as writeRegion(hg, accumulator, format, folder) with already fetched reference bases of the region
+     */
+    static void writeRegion(final ByteBuffer refSequence, final QualityAccumulator accumulator,
+                            OutputFormat format, String folder) throws IOException {
+        BEDRecord bedRecord = accumulator.getRegion();
+        //print output quality string
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(folder + "/" + regionFileName(bedRecord, format)));
+        try{
+            RegionFormatter formatter = RegionFormatter.forCurrentThread();
+            switch (format){
+                case VCF:
+                    formatter.appendVcfHeader(accumulator.getHistogram() != null, accumulator.getStatisticFactories());
+                    formatter.appendVcf(accumulator, refSequence);
+                    break;
+                case FASTQ:
+                    formatter.appendFastq(accumulator, refSequence);
+                    break;
+            }
+            formatter.writeTo(out);
+        } finally {
+            out.close();
         }
     }
 
-    private static char[] dictNucleotid = {'A', 'C', 'G', 'T', '-'};
-
-    private static final byte QUAL_BASE = 33;
-
     public static enum OutputFormat{
         VCF,
         FASTQ
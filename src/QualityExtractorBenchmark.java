@@ -0,0 +1,193 @@
+import net.sf.samtools.SAMRecord;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Micro-benchmarks of the hot paths on data from SyntheticDataGenerator: CIGAR walk, quality accumulation,
+ * VCF/FASTQ printing, extractReadsFromBAM and the streaming extraction. Every benchmark is warmed up first,
+ * then measured over several iterations and reported as mean throughput with its spread.
+ */
+public class QualityExtractorBenchmark {
+
+    /**
+     * Usage: QualityExtractorBenchmark folder [--warmup=N] [--iterations=N] [generator settings]
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: QualityExtractorBenchmark folder [--warmup=N] [--iterations=N] " +
+                    "[--depth=N] [--read-length=N] [--indel-rate=F] [--regions=N] [--region-length=N] [--seed=N]");
+            return;
+        }
+        File folder = new File(args[0]);
+        SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        int warmup = 3, iterations = 5;
+        for(int i = 1; i < args.length; ++i){
+            if(args[i].startsWith("--warmup="))
+                warmup = Integer.parseInt(args[i].substring("--warmup=".length()));
+            else if(args[i].startsWith("--iterations="))
+                iterations = Integer.parseInt(args[i].substring("--iterations=".length()));
+            else
+                generator.set(args[i]);
+        }
+        generator.generate(folder);
+        new QualityExtractorBenchmark(folder, warmup, iterations).run();
+    }
+
+    public QualityExtractorBenchmark(final File folder, int warmup, int iterations) {
+        this.folder = folder;
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    public void run() throws Exception {
+        final File bam = SyntheticDataGenerator.getBamFile(folder);
+        final File bed = SyntheticDataGenerator.getBedFile(folder);
+        final String reference = SyntheticDataGenerator.getReferenceFile(folder).getAbsolutePath();
+        final File output = new File(folder, "output");
+        if(!output.exists() && !output.mkdirs())
+            throw new Exception("Cannot create " + output.getAbsolutePath());
+
+        Level level = Logger.getRootLogger().getLevel();
+        Logger.getRootLogger().setLevel(Level.WARN);
+        try{
+            QualityExtractor.createBamIndex(bam, new File(bam.getAbsolutePath() + ".bai"));
+            final Map<BEDRecord, List<SAMRecord>> reads = QualityExtractor.extractReadsFromBAM(bam, bed);
+            final List<SAMRecord> allReads = new ArrayList<SAMRecord>();
+            for(List<SAMRecord> list : reads.values())
+                allReads.addAll(list);
+            for(SAMRecord record : allReads)
+                record.getReadBases(); //decode lazily loaded fields before measuring
+            System.out.println(String.format("Data: %d regions, %d reads", reads.size(), allReads.size()));
+
+            measure("getAlignedQualities", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    byte[] quality = new byte[1 << 12], read = new byte[1 << 12];
+                    for(SAMRecord record : allReads){
+                        QualityExtractor.getAlignedQualities(record, quality, read);
+                        sink += quality[0];
+                    }
+                    return allReads.size();
+                }
+            });
+
+            final List<QualityAccumulator> accumulators = new ArrayList<QualityAccumulator>();
+            measure("accumulate", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    accumulators.clear();
+                    for(Map.Entry<BEDRecord, List<SAMRecord>> entry : reads.entrySet()){
+                        QualityAccumulator accumulator = new QualityAccumulator(entry.getKey());
+                        for(SAMRecord record : entry.getValue())
+                            accumulator.add(record);
+                        accumulators.add(accumulator);
+                    }
+                    return allReads.size();
+                }
+            });
+
+            final MappedReference hg = new MappedReference(new File(reference), new ExtractionOptions().getReferenceCacheBytes());
+            for(final QualityExtractor.OutputFormat format : QualityExtractor.OutputFormat.values()){
+                measure("print" + format, "regions", new Benchmark() {
+                    @Override
+                    public long run() throws Exception {
+                        for(QualityAccumulator accumulator : accumulators)
+                            QualityExtractor.writeRegion(hg, accumulator, format, output.getAbsolutePath());
+                        return accumulators.size();
+                    }
+                });
+            }
+            hg.close();
+
+            measure("extractReadsFromBAM", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    long count = 0;
+                    for(List<SAMRecord> list : QualityExtractor.extractReadsFromBAM(bam, bed).values())
+                        count += list.size();
+                    return count;
+                }
+            });
+
+            measure("extractReadsFromBAMMapped", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    long count = 0;
+                    for(List<SAMRecord> list : QualityExtractor.extractReadsFromBAM(bam, bed,
+                            new ExtractionOptions().setMappedBam(true)).values())
+                        count += list.size();
+                    return count;
+                }
+            });
+
+            measure("extractQualities", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    //no checkpoint, every iteration reads all regions
+                    QualityExtractor.extractQualities(bam, bed, reference, QualityExtractor.OutputFormat.VCF, output.getAbsolutePath(),
+                            new ExtractionOptions().setCheckpoint(false));
+                    return allReads.size();
+                }
+            });
+
+            measure("extractQualitiesPipelined", "reads", new Benchmark() {
+                @Override
+                public long run() {
+                    QualityExtractor.extractQualities(bam, bed, reference, QualityExtractor.OutputFormat.VCF, output.getAbsolutePath(),
+                            new ExtractionOptions().setCheckpoint(false)
+                                    .setPipelineThreads(Runtime.getRuntime().availableProcessors()));
+                    return allReads.size();
+                }
+            });
+        } finally {
+            Logger.getRootLogger().setLevel(level);
+        }
+    }
+
+    /**
+     * Run warmup iterations, then measured iterations, and print the throughput
+     */
+    private void measure(String name, String unit, final Benchmark benchmark) throws Exception {
+        for(int i = 0; i < warmup; ++i)
+            benchmark.run();
+        double[] rates = new double[iterations];
+        for(int i = 0; i < iterations; ++i){
+            long start = System.nanoTime();
+            long ops = benchmark.run();
+            rates[i] = ops / ((System.nanoTime() - start) / 1e9);
+        }
+        double mean = 0, min = Double.MAX_VALUE, max = 0;
+        for(double rate : rates){
+            mean += rate / rates.length;
+            min = Math.min(min, rate);
+            max = Math.max(max, rate);
+        }
+        double variance = 0;
+        for(double rate : rates)
+            variance += (rate - mean) * (rate - mean) / Math.max(1, rates.length - 1);
+        System.out.println(String.format(Locale.US, "%-22s %14.1f +- %10.1f %s/s  (min %.1f, max %.1f, %d iterations)",
+                name, mean, Math.sqrt(variance), unit, min, max, iterations));
+    }
+
+    private interface Benchmark {
+        /**
+         * @return number of processed items
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Keeps results alive, so the JIT cannot drop the benchmarked code
+     */
+    static volatile long sink = 0;
+
+    private final File folder;
+    private final int warmup;
+    private final int iterations;
+}
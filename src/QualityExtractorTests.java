@@ -1,17 +1,29 @@
 import difflib.DiffUtils;
 import difflib.Patch;
+import net.sf.samtools.BAMIndexer;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
 
 /**
  * Created with IntelliJ IDEA.
@@ -26,7 +38,8 @@ public class QualityExtractorTests {
         List<String> lines = new LinkedList<String>();
         String line;
         try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
+            BufferedReader in = new BufferedReader(filename.endsWith(".gz") ?
+                    new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))) : new FileReader(filename));
             while ((line = in.readLine()) != null) {
                 lines.add(line);
             }
@@ -36,86 +49,836 @@ public class QualityExtractorTests {
         return lines;
     }
 
+    private static byte[] readBytes(final File file) throws IOException {
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try{
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static List<String> urlToLines(String url) throws IOException {
+        List<String> lines = new LinkedList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new URL(url).openStream(), "UTF-8"));
+        try{
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static int responseCode(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        try{
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
     private static String inputBed = "./TestData/cftr.bed";
-    private static String genomeRef = "/Users/Kos/Dropbox/Bioinf/Data/chromosomes/hg19.fa";
+    /**
+     * Bases of the region with reads, taken from the REF column of its expected VCF files
+     */
+    private static String regionRef = "./TestData/chr7_117138345-117138546.fa";
+    /**
+     * Length of chr7 in hg19, the reference of the test BAM files
+     */
+    private static final long CHR7_LENGTH = 159138663;
+    /**
+     * The only region of the BED file with reads in the test BAM files
+     */
+    private static final BEDRecord region = new BEDRecord("chr7", 117138345, 117138546);
+
+    /**
+     * chr7 with the bases of regionRef at their coordinates, see createReference
+     */
+    private static File genomeRef;
+
+    /**
+     * Synthetic data of the tiny scale of ScalingBenchmark, compared with its golden output in TestData/golden
+     */
+    private static File fixture;
+
+    /**
+     * Fresh output folder of the test, deleted with everything written to it
+     */
+    private File output;
+
+    @BeforeClass
+    public static void generateFixture() throws Exception {
+        fixture = createTempFolder("quality-extractor-fixture");
+        SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        for(String setting : ScalingBenchmark.SCALES.get("tiny"))
+            generator.set(setting);
+        generator.generate(fixture);
+        File bam = SyntheticDataGenerator.getBamFile(fixture);
+        QualityExtractor.createBamIndex(bam, new File(bam.getPath() + ".bai"));
+        genomeRef = createReference(fixture);
+    }
+
+    @AfterClass
+    public static void deleteFixture() {
+        delete(fixture);
+    }
 
     @Before
     public void setUp() throws Exception {
-
+        output = createTempFolder("quality-extractor-test");
     }
 
     @After
     public void tearDown() throws Exception {
+        delete(output);
+    }
 
+    private static File createTempFolder(String prefix) throws IOException {
+        File folder = File.createTempFile(prefix, "");
+        if(!folder.delete() || !folder.mkdir())
+            throw new IOException("Cannot create " + folder.getPath());
+        return folder;
     }
 
-    @Test
-    public void testLeftOverlapFASTQ() throws Exception {
-        String inputBam = "./TestData/test_left_overlap.sam.sorted.bam";
-        QualityExtractor.createBamIndex(new File(inputBam), new File(inputBam + ".bai"));
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.FASTQ, ".");
+    /**
+     * @return reference genome of the test BAM files
+     */
+    private static String reference() {
+        return genomeRef.getPath();
+    }
+
+    /**
+     * Write chr7 as one line with the bases of regionRef at their coordinates. The rest of the contig is left
+     * a hole of the sparse file, no test reads it
+     * @return FASTA file, indexed
+     */
+    private static File createReference(final File folder) throws IOException {
+        StringBuilder bases = new StringBuilder();
+        for(String line : fileToLines(regionRef)){
+            if(!line.startsWith(">"))
+                bases.append(line);
+        }
+        File fasta = new File(folder, "chr7.fa");
+        byte[] header = ">chr7\n".getBytes();
+        RandomAccessFile out = new RandomAccessFile(fasta, "rw");
+        try{
+            out.write(header);
+            out.seek(header.length + region.getStartIndex() - 1);
+            out.write(bases.toString().getBytes());
+            out.setLength(header.length + CHR7_LENGTH);
+            out.seek(header.length + CHR7_LENGTH);
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+        PrintWriter index = new PrintWriter(new File(folder, "chr7.fa.fai"));
+        index.println("chr7\t" + CHR7_LENGTH + "\t" + header.length + "\t" + CHR7_LENGTH + "\t" + (CHR7_LENGTH + 1));
+        index.close();
+        return fasta;
+    }
+
+    private static void delete(final File file) {
+        File[] files = file.listFiles();
+        if(files != null){
+            for(File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static File bam(String sample) {
+        return new File("./TestData/test_" + sample + "_overlap.sam.sorted.bam");
+    }
 
-        List<String> original = fileToLines("./TestData/test_left_overlap_117138345-117138546.fastq");
-        List<String> testResult = fileToLines("./region_117138345-117138546.fastq");
+    /**
+     * Extract the BED regions from the BAM file of the sample into the output folder of the test and compare
+     * the region with reads to its expected output
+     * @param sample left, right or both
+     */
+    private void assertExtracted(String sample, QualityExtractor.OutputFormat format, final ExtractionOptions options) throws Exception {
+        QualityExtractor.extractQualities(bam(sample), new File(inputBed), reference(), format, output.getPath(), options);
+        assertRegion(sample, format, output);
+    }
+
+    /**
+     * Compare the region with reads written to the folder to the expected output of the sample
+     */
+    private static void assertRegion(String sample, QualityExtractor.OutputFormat format, final File folder) {
+        String name = QualityExtractor.regionFileName(region, format);
+        assertSameLines("./TestData/test_" + sample + "_overlap_" + name.substring("region_".length()),
+                new File(folder, name).getPath());
+    }
+
+    private static void assertSameLines(String expectedFile, String actualFile) {
+        List<String> original = fileToLines(expectedFile);
+        List<String> testResult = fileToLines(actualFile);
+        assertEquals(true, new File(actualFile).exists());
         Patch patch = DiffUtils.diff(original, testResult);
         assertEquals(patch.getDeltas().size(), 0);
     }
 
+    /**
+     * Extract the synthetic fixture into the output folder of the test and compare it with the golden output
+     */
+    private void assertSynthetic(QualityExtractor.OutputFormat format, final ExtractionOptions options) throws Exception {
+        QualityExtractor.extractQualities(SyntheticDataGenerator.getBamFile(fixture), SyntheticDataGenerator.getBedFile(fixture),
+                SyntheticDataGenerator.getReferenceFile(fixture).getPath(), format, output.getPath(), options);
+        assertGolden(format, output);
+    }
+
+    private static void assertGolden(QualityExtractor.OutputFormat format, final File folder) throws IOException {
+        File golden = new File(new File(ScalingBenchmark.GOLDEN_FOLDER, "tiny"), format.name().toLowerCase());
+        assertEquals(null, ScalingBenchmark.compareOutputs(golden, folder));
+    }
+
+    private void assertCalculated(String sample, QualityExtractor.OutputFormat format) throws Exception {
+        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(bam(sample), new File(inputBed)),
+                reference(), format, output.getPath());
+        assertRegion(sample, format, output);
+    }
+
+    @Test
+    public void testLeftOverlapFASTQ() throws Exception {
+        QualityExtractor.createBamIndex(bam("left"), new File(bam("left").getPath() + ".bai"));
+        assertCalculated("left", QualityExtractor.OutputFormat.FASTQ);
+    }
+
     @Test
     public void testLeftOverlapVCF() throws Exception {
-        String inputBam = "./TestData/test_left_overlap.sam.sorted.bam";
-        QualityExtractor.createBamIndex(new File(inputBam), new File(inputBam + ".bai"));
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.VCF, ".");
-        List<String> original = fileToLines("./TestData/test_left_overlap_117138345-117138546.vcf");
-        List<String> testResult = fileToLines("./region_117138345-117138546.vcf");
-        Patch patch = DiffUtils.diff(original, testResult);
-        assertEquals(patch.getDeltas().size(), 0);
+        QualityExtractor.createBamIndex(bam("left"), new File(bam("left").getPath() + ".bai"));
+        assertCalculated("left", QualityExtractor.OutputFormat.VCF);
     }
 
     @Test
     public void testRightOverlapFASTQ() throws Exception {
-        String inputBam = "./TestData/test_right_overlap.sam.sorted.bam";
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.FASTQ, ".");
-        List<String> original = fileToLines("./TestData/test_right_overlap_117138345-117138546.fastq");
-        List<String> testResult = fileToLines("./region_117138345-117138546.fastq");
-        Patch patch = DiffUtils.diff(original, testResult);
-        assertEquals(patch.getDeltas().size(), 0);
+        assertCalculated("right", QualityExtractor.OutputFormat.FASTQ);
     }
 
     @Test
     public void testRightOverlapVCF() throws Exception {
-        String inputBam = "./TestData/test_right_overlap.sam.sorted.bam";
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.VCF, ".");
-        List<String> original = fileToLines("./TestData/test_right_overlap_117138345-117138546.vcf");
-        List<String> testResult = fileToLines("./region_117138345-117138546.vcf");
-        Patch patch = DiffUtils.diff(original, testResult);
-        assertEquals(patch.getDeltas().size(), 0);
+        assertCalculated("right", QualityExtractor.OutputFormat.VCF);
     }
 
     @Test
     public void testBothOverlapFASTQ() throws Exception {
-        String inputBam = "./TestData/test_both_overlap.sam.sorted.bam";
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.FASTQ, ".");
-        List<String> original = fileToLines("./TestData/test_both_overlap_117138345-117138546.fastq");
-        List<String> testResult = fileToLines("./region_117138345-117138546.fastq");
-        Patch patch = DiffUtils.diff(original, testResult);
-        assertEquals(patch.getDeltas().size(), 0);
+        assertCalculated("both", QualityExtractor.OutputFormat.FASTQ);
     }
 
     @Test
     public void testBothOverlapVCF() throws Exception {
-        String inputBam = "./TestData/test_both_overlap.sam.sorted.bam";
-        QualityExtractor.calcMeanQuality(QualityExtractor.extractReadsFromBAM(new File(inputBam), new File(inputBed)),
-                genomeRef, QualityExtractor.OutputFormat.VCF, ".");
-        List<String> original = fileToLines("./TestData/test_both_overlap_117138345-117138546.vcf");
-        List<String> testResult = fileToLines("./region_117138345-117138546.vcf");
-        Patch patch = DiffUtils.diff(original, testResult);
+        assertCalculated("both", QualityExtractor.OutputFormat.VCF);
+    }
+
+    @Test
+    public void testStreamingBothOverlapVCF() throws Exception {
+        assertExtracted("both", QualityExtractor.OutputFormat.VCF, new ExtractionOptions());
+    }
+
+    @Test
+    public void testParallelBothOverlapFASTQ() throws Exception {
+        assertExtracted("both", QualityExtractor.OutputFormat.FASTQ, new ExtractionOptions().setThreads(4));
+    }
+
+    @Test
+    public void testSweepLeftOverlapVCF() throws Exception {
+        assertExtracted("left", QualityExtractor.OutputFormat.VCF, new ExtractionOptions().setEngine(RegionExtractor.Engine.SWEEP));
+    }
+
+    @Test
+    public void testQueryPlannerMergesNearbyRegions() throws Exception {
+        List<BEDRecord> regions = BEDFileReader.readAll(new File(inputBed));
+        assertEquals(14, new RegionQueryPlanner(0).plan(regions).size());
+        assertEquals(13, new RegionQueryPlanner(15).plan(regions).size());
+        assertEquals(1, new RegionQueryPlanner(1000000).plan(regions).size());
+    }
+
+    @Test
+    public void testConsolidatedBothOverlapVCF() throws Exception {
+        QualityExtractor.extractQualities(bam("both"), new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF, output.getPath(),
+                new ExtractionOptions().setOutput(RegionExtractor.Output.CONSOLIDATED).setThreads(4));
+        //only one region of the BED file has reads
+        assertSameLines("./TestData/test_both_overlap_117138345-117138546.vcf", new File(output, "regions.vcf.gz").getPath());
+        assertEquals(true, new File(output, "regions.vcf.gz.tbi").exists());
+    }
+
+    @Test
+    public void testMergedShardsBothOverlapFASTQ() throws Exception {
+        List<File> partials = new LinkedList<File>();
+        for(int shard = 1; shard <= 3; ++shard){
+            File partial = new File(output, "shard" + shard + ".partial");
+            QualityExtractor.extractQualities(bam("both"), new File(inputBed), reference(), QualityExtractor.OutputFormat.FASTQ,
+                    output.getPath(), new ExtractionOptions().setShard(shard, 3).setPartialFile(partial));
+            partials.add(partial);
+        }
+        assertEquals(false, new File(output, QualityExtractor.regionFileName(region, QualityExtractor.OutputFormat.FASTQ)).exists());
+        QualityExtractor.mergePartials(partials, reference(), QualityExtractor.OutputFormat.FASTQ,
+                output.getPath(), new ExtractionOptions());
+        assertRegion("both", QualityExtractor.OutputFormat.FASTQ, output);
+    }
+
+    @Test
+    public void testCheckpointRestoresRightOverlapVCF() throws Exception {
+        QualityExtractor.extractQualities(bam("right"), new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF,
+                output.getPath(), new ExtractionOptions().setCheckpoint(true));
+        //the rerun writes the region from the checkpoint, without reading the BAM file again
+        new File(output, QualityExtractor.regionFileName(region, QualityExtractor.OutputFormat.VCF)).delete();
+        assertExtracted("right", QualityExtractor.OutputFormat.VCF, new ExtractionOptions().setCheckpoint(true));
+
+        //a run with other inputs supersedes the stored regions, the partial file of the first run is deleted
+        QualityExtractor.extractQualities(bam("right"), new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF,
+                output.getPath(), new ExtractionOptions().setCheckpoint(true).setBamRange(0, bam("right").length()));
+        assertEquals(1, new File(output, RegionExtractor.CHECKPOINT_DIRECTORY).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".partial");
+            }
+        }).length);
+    }
+
+    @Test
+    public void testMetricsReportLeftOverlap() throws Exception {
+        QualityExtractor.extractQualities(bam("left"), new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF, output.getPath(),
+                new ExtractionOptions().setMetrics(new RunMetrics()));
+        String report = "";
+        for(String line : fileToLines(new File(output, "metrics.json").getPath()))
+            report += line.trim();
+        assertEquals(true, report.contains("\"totals\": {\"regions\": 14, \"restoredRegions\": 0,"));
+        assertEquals(true, report.contains("\"cigar_walk\":"));
+    }
+
+    @Test
+    public void testReadFilterRejectsAllReadsOfLeftOverlap() throws Exception {
+        //mapping qualities never exceed 255, so no region has reads and no file is written
+        QualityExtractor.extractQualities(bam("left"), new File(inputBed), reference(), QualityExtractor.OutputFormat.FASTQ,
+                output.getPath(), new ExtractionOptions().setReadFilter(new ReadFilter().setMinMappingQuality(256)));
+        assertEquals(0, output.list().length);
+    }
+
+    @Test
+    public void testBatchLeftAndRightOverlapVCF() throws Exception {
+        List<File> samples = new LinkedList<File>();
+        samples.add(bam("left"));
+        samples.add(bam("right"));
+        File batch = new File(output, "batch");
+        QualityExtractor.extractBatch(samples, new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF, batch.getPath(),
+                new ExtractionOptions().setParallelSamples(2));
+        for(String sample : new String[]{"left", "right"})
+            assertRegion(sample, QualityExtractor.OutputFormat.VCF, new File(batch, "test_" + sample + "_overlap.sam.sorted"));
+    }
+
+    @Test
+    public void testPipelinedSweepBothOverlapFASTQ() throws Exception {
+        assertExtracted("both", QualityExtractor.OutputFormat.FASTQ,
+                new ExtractionOptions().setEngine(RegionExtractor.Engine.SWEEP).setPipelineThreads(3));
+    }
+
+    @Test
+    public void testMappedBamRightOverlapVCF() throws Exception {
+        assertExtracted("right", QualityExtractor.OutputFormat.VCF,
+                new ExtractionOptions().setEngine(RegionExtractor.Engine.QUERY).setMappedBam(true));
+    }
+
+    @Test
+    public void testStoreLeftOverlapVCF() throws Exception {
+        File store = new File(output, "store");
+        store.mkdirs();
+        QualityExtractor.extractQualities(bam("left"), new File(inputBed), reference(), QualityExtractor.OutputFormat.VCF, store.getPath(),
+                new ExtractionOptions().setOutput(RegionExtractor.Output.STORE));
+        QualityExtractor.convertStore(new File(store, "regions.qstore"), reference(), QualityExtractor.OutputFormat.VCF, output.getPath(),
+                new ExtractionOptions());
+        assertRegion("left", QualityExtractor.OutputFormat.VCF, output);
+
+        //QUAL of a VCF record is the mean quality of the most frequent nucleotide
+        List<String> original = fileToLines("./TestData/test_left_overlap_117138345-117138546.vcf");
+        QualityStore.Reader reader = new QualityStore.Reader(new File(store, "regions.qstore"));
+        String[] record = original.get(2 + 50).split("\t");
+        QualityStore.Locus locus = reader.query(record[0], Integer.parseInt(record[1]));
+        int best = 0;
+        for(int code = 1; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+            if(locus.getCount(code) > locus.getCount(best))
+                best = code;
+        }
+        assertEquals(Integer.parseInt(record[5]), locus.getSum(best) / locus.getCount(best));
+        assertEquals(null, reader.query(record[0], 1));
+        reader.close();
+    }
+
+    @Test
+    public void testTiledRightOverlapFASTQ() throws Exception {
+        assertExtracted("right", QualityExtractor.OutputFormat.FASTQ, new ExtractionOptions().setTileSize(37));
+    }
+
+    @Test
+    public void testBamIndexBuilderMatchesPicard() throws Exception {
+        for(String sample : new String[]{"left", "right", "both"}){
+            File picardIndex = new File(output, sample + ".picard.bai");
+            SAMFileReader reader = new SAMFileReader(bam(sample));
+            reader.enableFileSource(true);
+            BAMIndexer indexer = new BAMIndexer(picardIndex, reader.getFileHeader());
+            for(SAMRecord record : reader)
+                indexer.processAlignment(record);
+            indexer.finish();
+            reader.close();
+            File index = new File(output, sample + ".bai");
+            new BamIndexBuilder(4).build(bam(sample), index);
+            assertEquals(true, Arrays.equals(readBytes(picardIndex), readBytes(index)));
+        }
+    }
+
+    @Test
+    public void testBamIndexStalenessIsDetected() throws Exception {
+        File bam = new File(output, "sample.bam");
+        File index = new File(output, "sample.bam.bai");
+        OutputStream out = new FileOutputStream(bam);
+        out.write(readBytes(bam("left")));
+        out.close();
+        assertEquals(false, BamIndexBuilder.isUpToDate(bam, index));
+        new BamIndexBuilder(1).build(bam, index);
+        assertEquals(true, BamIndexBuilder.isUpToDate(bam, index));
+
+        //the BAM file was replaced after the index was built
+        assertEquals(true, bam.setLastModified(index.lastModified() + 60000));
+        assertEquals(false, BamIndexBuilder.isUpToDate(bam, index));
+        assertEquals(true, index.setLastModified(bam.lastModified()));
+        assertEquals(true, BamIndexBuilder.isUpToDate(bam, index));
+
+        //the index points past the end of a shorter BAM file
+        RandomAccessFile truncated = new RandomAccessFile(bam, "rw");
+        truncated.setLength(truncated.length() / 2);
+        truncated.close();
+        assertEquals(true, index.setLastModified(bam.lastModified()));
+        assertEquals(false, BamIndexBuilder.isUpToDate(bam, index));
+
+        //not an index
+        out = new FileOutputStream(index);
+        out.write("BAM\1".getBytes());
+        out.close();
+        assertEquals(false, BamIndexBuilder.isUpToDate(bam("left"), index));
+    }
+
+    @Test
+    public void testSyntheticDataDependsOnTheSeedOnly() throws Exception {
+        File[] folders = {new File(output, "first"), new File(output, "second"), new File(output, "other")};
+        for(File folder : folders){
+            new SyntheticDataGenerator().set("--seed=" + (folder == folders[2] ? 8 : 7)).set("--depth=10")
+                    .set("--regions=4").set("--contig-length=20000").generate(folder);
+        }
+        for(File file : folders[0].listFiles())
+            assertEquals(true, Arrays.equals(readBytes(file), readBytes(new File(folders[1], file.getName()))));
+        for(File file : new File[]{SyntheticDataGenerator.getReferenceFile(folders[0]), SyntheticDataGenerator.getBamFile(folders[0]),
+                SyntheticDataGenerator.getBedFile(folders[0])}){
+            assertEquals(false, Arrays.equals(readBytes(file), readBytes(new File(folders[2], file.getName()))));
+        }
+    }
+
+    @Test
+    public void testQualityHistogramWidensDeepPositions() throws Exception {
+        QualityHistogram histogram = new QualityHistogram(2);
+        for(int i = 0; i < 300; ++i)
+            histogram.add(1, 1, 30);
+        for(int i = 0; i < 100; ++i)
+            histogram.add(1, 1, 10);
+        assertEquals(300, histogram.getCount(1, 1, 30));
+        assertEquals(30, histogram.getPercentile(1, 1, 50));
+        assertEquals(10, histogram.getPercentile(1, 1, 25));
+        assertEquals(300, histogram.getCountAtLeast(1, 1, 20));
+        assertEquals(-1, histogram.getPercentile(1, 0, 50));
+
+        //shards of the same region add up
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        histogram.write(new DataOutputStream(data));
+        histogram.add(new DataInputStream(new ByteArrayInputStream(data.toByteArray())));
+        assertEquals(600, histogram.getCount(1, 1, 30));
+        assertEquals(800, histogram.getTotal(1, 1));
+    }
+
+    @Test
+    public void testServerLeftOverlapVCF() throws Exception {
+        for(String sample : new String[]{"left", "right"})
+            QualityExtractor.createBamIndex(bam(sample), new File(bam(sample).getPath() + ".bai"));
+        QualityServer server = new QualityServer(reference(), 0, new ExtractionOptions().setServerCacheBytes(0));
+        server.start();
+        try{
+            String query = "http://127.0.0.1:" + server.getPort() + "/quality?region=chr7:117138345-117138546&bam=";
+            List<String> original = fileToLines("./TestData/test_left_overlap_117138345-117138546.vcf");
+            List<String> testResult = urlToLines(query + new File("./TestData/test_left_overlap.sam.sorted.bam").getAbsolutePath());
+            Patch patch = DiffUtils.diff(original, testResult);
+            assertEquals(patch.getDeltas().size(), 0);
+
+            //no budget: only the BAM file of the last query stays cached
+            urlToLines(query + new File("./TestData/test_right_overlap.sam.sorted.bam").getAbsolutePath());
+            String status = urlToLines("http://127.0.0.1:" + server.getPort() + "/status").get(0);
+            assertEquals(false, status.contains("test_left_overlap"));
+            assertEquals(true, status.contains("test_right_overlap"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testClosedMappedBamKeepsOpenStreams() throws Exception {
+        MappedBamFile mapped = new MappedBamFile(bam("left"));
+        SAMFileReader reader = mapped.open();
+        mapped.close();
+        try{
+            mapped.openStream();
+            fail("a closed file opened a stream");
+        } catch (IllegalStateException e){
+            //closed
+        }
+        int reads = 0;
+        for(SAMRecord ignored : reader)
+            reads++;
+        reader.close();
+        assertEquals(true, reads > 0);
+    }
+
+    @Test
+    public void testDepthDownsamplerCapsAmpliconDepth() throws Exception {
+        final List<String> kept = new LinkedList<String>();
+        DepthDownsampler.Sink sink = new DepthDownsampler.Sink() {
+            @Override
+            public void accept(SAMRecord record, ReadPipeline.AlignedRead read) {
+                kept.add(record.getReadName());
+            }
+        };
+        DepthDownsampler downsampler = new DepthDownsampler(new BEDRecord("chr7", 100, 200), 5, 7, sink);
+        for(int start : new int[]{100, 105, 110}){
+            for(int i = 0; i < 50; ++i){
+                SAMRecord record = new SAMRecord(new SAMFileHeader());
+                record.setReadName("read" + start + "_" + i);
+                record.setAlignmentStart(start);
+                record.setCigarString("10M");
+                downsampler.add(record, null);
+            }
+        }
+        downsampler.finish();
+        //reads starting at 105 find the depth of 5 reached by the reads from 100 to 109
+        assertEquals(10, kept.size());
+        assertEquals(140, downsampler.getDropped());
+
+        //the same seed keeps the same reads
+        List<String> first = new LinkedList<String>(kept);
+        kept.clear();
+        downsampler = new DepthDownsampler(new BEDRecord("chr7", 100, 200), 5, 7, sink);
+        for(int i = 0; i < 50; ++i){
+            SAMRecord record = new SAMRecord(new SAMFileHeader());
+            record.setReadName("read100_" + i);
+            record.setAlignmentStart(100);
+            record.setCigarString("10M");
+            downsampler.add(record, null);
+        }
+        downsampler.finish();
+        assertEquals(first.subList(0, 5), kept);
+    }
+
+    @Test
+    public void testStatisticsShareTheQualityPass() throws Exception {
+        List<RegionStatistic.Factory> statistics = RegionStatistics.forNames("depth,strand,indel");
+        QualityAccumulator accumulator = new QualityAccumulator(new BEDRecord("chr7", 100, 103), 0, false, statistics);
+        SAMRecord forward = new SAMRecord(new SAMFileHeader());
+        forward.setAlignmentStart(100);
+        forward.setCigarString("2M1I2M");
+        forward.setReadString("ACGTA");
+        forward.setBaseQualityString("?????");
+        SAMRecord reverse = new SAMRecord(new SAMFileHeader());
+        reverse.setAlignmentStart(100);
+        reverse.setCigarString("4M");
+        reverse.setReadString("ACTA");
+        reverse.setBaseQualityString("5555");
+        reverse.setReadNegativeStrandFlag(true);
+        accumulator.add(forward);
+        accumulator.add(reverse);
+
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        formatter.appendVcf(accumulator, ByteBuffer.wrap("ACTA".getBytes()));
+        String[] lines = new String(formatter.getBytes(), 0, formatter.getSize()).split("\n");
+        assertEquals("DP=2;SBQ=30,20;SBC=1,1;DEL=0.00;INS=0.00", lines[0].split("\t")[7]);
+        assertEquals("DP=2;SBQ=30,20;SBC=1,1;DEL=0.00;INS=0.50", lines[1].split("\t")[7]);
+
+        //statistics of shards of the same region add up
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        accumulator.write(new DataOutputStream(data));
+        accumulator.add(new DataInputStream(new ByteArrayInputStream(data.toByteArray())));
+        formatter = RegionFormatter.forCurrentThread();
+        formatter.appendVcf(accumulator, ByteBuffer.wrap("ACTA".getBytes()));
+        lines = new String(formatter.getBytes(), 0, formatter.getSize()).split("\n");
+        assertEquals("DP=4;SBQ=30,20;SBC=2,2;DEL=0.00;INS=0.50", lines[1].split("\t")[7]);
+    }
+
+    @Test
+    public void testReadGroupStatisticEscapesGroupIds() throws Exception {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addReadGroup(new SAMReadGroupRecord("lib:1;x=y,z 2%"));
+        QualityAccumulator accumulator = new QualityAccumulator(new BEDRecord("chr7", 100, 101), 0, false,
+                RegionStatistics.forNames("read-group"));
+        SAMRecord record = new SAMRecord(header);
+        record.setAlignmentStart(100);
+        record.setCigarString("2M");
+        record.setReadString("AC");
+        record.setBaseQualityString("??");
+        record.setAttribute("RG", "lib:1;x=y,z 2%");
+        accumulator.add(record);
+
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        formatter.appendVcf(accumulator, ByteBuffer.wrap("AC".getBytes()));
+        String[] lines = new String(formatter.getBytes(), 0, formatter.getSize()).split("\n");
+        assertEquals("RGQ=lib%3A1%3Bx%3Dy%2Cz%202%25:30", lines[0].split("\t")[7]);
+        assertEquals("%C3%A9t%C3%A9", RegionStatistics.escape("\u00e9t\u00e9"));
+
+        //every read group adds a sum and a count of every nucleotide per position
+        List<RegionStatistic.Factory> statistics = RegionStatistics.forNames("read-group");
+        assertEquals(40, QualityAccumulator.bytesPerPosition(false, statistics, 3) -
+                QualityAccumulator.bytesPerPosition(false, statistics, 2));
+    }
+
+    @Test
+    public void testConsolidatedVcfSpillsWaitingRegions() throws Exception {
+        List<BEDRecord> regions = new LinkedList<BEDRecord>();
+        for(int i = 0; i < 4; ++i)
+            regions.add(new BEDRecord("chr7", 100 + 10 * i, 104 + 10 * i));
+        final File ordered = new File(output, "ordered.vcf.gz");
+        final File spilled = new File(output, "spilled.vcf.gz");
+        for(File file : new File[]{ordered, spilled}){
+            ConsolidatedVcfWriter writer = new ConsolidatedVcfWriter(file, regions);
+            writer.setSpillThreshold(file == spilled ? 1 : 0);
+            for(int i = 0; i < regions.size(); ++i){
+                //reversed: every region but the last one waits for its turn in the spill file
+                BEDRecord region = regions.get(file == spilled ? regions.size() - 1 - i : i);
+                RegionFormatter formatter = RegionFormatter.forCurrentThread();
+                formatter.appendVcf(new QualityAccumulator(region), ByteBuffer.wrap("ACGTA".getBytes()));
+                writer.submit(region, formatter);
+            }
+            writer.close();
+        }
+        List<String> original = fileToLines(ordered.getPath());
+        assertEquals(2 + 5 * regions.size(), original.size());
+        Patch patch = DiffUtils.diff(original, fileToLines(spilled.getPath()));
         assertEquals(patch.getDeltas().size(), 0);
+        File[] spillFiles = spilled.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(spilled.getName() + ".") && name.endsWith(".spill");
+            }
+        });
+        assertEquals(0, spillFiles.length);
+    }
+
+    @Test
+    public void testConsolidatedVcfWritesOverlappingPositionsOnce() throws Exception {
+        List<BEDRecord> regions = new LinkedList<BEDRecord>();
+        regions.add(new BEDRecord("chr7", 102, 108));
+        regions.add(new BEDRecord("chr7", 100, 104));
+        regions.add(new BEDRecord("chr7", 103, 105));
+        File file = new File(output, "overlapping.vcf.gz");
+        ConsolidatedVcfWriter writer = new ConsolidatedVcfWriter(file, regions);
+        for(BEDRecord region : regions){
+            RegionFormatter formatter = RegionFormatter.forCurrentThread();
+            formatter.appendVcf(new QualityAccumulator(region), ByteBuffer.wrap("ACGTACGTA".getBytes()));
+            writer.submit(region, formatter);
+        }
+        writer.close();
+        List<String> lines = fileToLines(file.getPath());
+        assertEquals(2 + 9, lines.size());
+        for(int i = 2; i < lines.size(); ++i)
+            assertEquals(100 + i - 2, Integer.parseInt(lines.get(i).split("\t")[1]));
+        //positions 102 to 104 are answered by the region starting at 100, 105 by the one starting at 102
+        assertEquals("G", lines.get(2 + 2).split("\t")[3]);
+        assertEquals("T", lines.get(2 + 5).split("\t")[3]);
+    }
+
+    @Test
+    public void testScalingBenchmarkDetectsChangedOutput() throws Exception {
+        File folder = new File(output, "scaling-benchmark");
+        File baseline = new File(folder, ScalingBenchmark.BASELINE_FILE_NAME);
+        File golden = new File(folder, "golden");
+        //no timing or memory regression can fail the cases, only their output
+        ScalingBenchmark benchmark = new ScalingBenchmark(folder, baseline, new String[0]).setIterations(1).setThreshold(10)
+                .setGolden(golden).addScale("tiny", ScalingBenchmark.SCALES.get("tiny"));
+        assertEquals(true, benchmark.run());
+        assertEquals(true, baseline.exists());
+        assertGolden(QualityExtractor.OutputFormat.VCF, new File(golden, "tiny/vcf"));
+        assertEquals(true, benchmark.run());
+
+        File vcf = new File(golden, "tiny/vcf");
+        File changed = vcf.listFiles()[0];
+        List<String> lines = fileToLines(changed.getPath());
+        PrintWriter out = new PrintWriter(new FileWriter(changed));
+        for(int i = 0; i < lines.size(); ++i)
+            out.println(i == 5 ? lines.get(i) + "x" : lines.get(i));
+        out.close();
+        assertEquals(false, benchmark.run());
+        assertEquals(changed.getName() + " differs at line 6: expected '" + lines.get(5) + "x', found '" + lines.get(5) + "'",
+                ScalingBenchmark.compareOutputs(vcf, new File(folder, "tiny/output-vcf")));
+
+        assertEquals(true, changed.renameTo(new File(vcf, "region_1-1.vcf")));
+        assertEquals("missing region_1-1.vcf, extra " + changed.getName(),
+                ScalingBenchmark.compareOutputs(vcf, new File(folder, "tiny/output-vcf")));
+    }
+
+    @Test
+    public void testStoreAnswersOverlapsFromTheFirstRegion() throws Exception {
+        //under a depth cap overlapping regions may disagree on a shared position
+        QualityStore.Writer writer = new QualityStore.Writer(new File(output, "regions.qstore"));
+        int bedIndex = 0;
+        for(BEDRecord region : new BEDRecord[]{new BEDRecord("chr7", 105, 120), new BEDRecord("chr7", 100, 110),
+                new BEDRecord("chr7", 100, 108)}){
+            QualityAccumulator accumulator = new QualityAccumulator(region);
+            for(int pos = 0; pos < accumulator.getLength(); ++pos)
+                accumulator.add(0, pos, region.getStopIndex(), 1);
+            writer.write(bedIndex++, accumulator, 1);
+        }
+        writer.close();
+        QualityStore.Reader reader = new QualityStore.Reader(new File(output, "regions.qstore"));
+        assertEquals(108, reader.query("chr7", 107).getSum(0));
+        assertEquals(110, reader.query("chr7", 109).getSum(0));
+        assertEquals(120, reader.query("chr7", 111).getSum(0));
+        reader.close();
+    }
+
+    @Test
+    public void testSyntheticVCF() throws Exception {
+        assertSynthetic(QualityExtractor.OutputFormat.VCF, new ExtractionOptions());
+    }
+
+    @Test
+    public void testSyntheticFASTQ() throws Exception {
+        assertSynthetic(QualityExtractor.OutputFormat.FASTQ, new ExtractionOptions());
+    }
+
+    @Test
+    public void testPipelinedParallelSweepSyntheticVCF() throws Exception {
+        assertSynthetic(QualityExtractor.OutputFormat.VCF, new ExtractionOptions().setThreads(4)
+                .setEngine(RegionExtractor.Engine.SWEEP).setPipelineThreads(2));
+    }
+
+    @Test
+    public void testTiledMappedBamSyntheticFASTQ() throws Exception {
+        assertSynthetic(QualityExtractor.OutputFormat.FASTQ, new ExtractionOptions().setTileSize(57)
+                .setEngine(RegionExtractor.Engine.QUERY).setMappedBam(true));
     }
 
+    @Test
+    public void testCheckpointRestoresSyntheticVCF() throws Exception {
+        assertSynthetic(QualityExtractor.OutputFormat.VCF, new ExtractionOptions().setCheckpoint(true));
+        for(File file : output.listFiles()){
+            if(file.isFile())
+                file.delete();
+        }
+        assertSynthetic(QualityExtractor.OutputFormat.VCF, new ExtractionOptions().setCheckpoint(true));
+    }
+
+    @Test
+    public void testMergedShardsSyntheticVCF() throws Exception {
+        List<File> partials = new LinkedList<File>();
+        File shards = new File(output, "shards");
+        shards.mkdirs();
+        for(int shard = 1; shard <= 3; ++shard){
+            File partial = new File(shards, "shard" + shard + ".partial");
+            QualityExtractor.extractQualities(SyntheticDataGenerator.getBamFile(fixture), SyntheticDataGenerator.getBedFile(fixture),
+                    SyntheticDataGenerator.getReferenceFile(fixture).getPath(), QualityExtractor.OutputFormat.VCF, shards.getPath(),
+                    new ExtractionOptions().setShard(shard, 3).setPartialFile(partial));
+            partials.add(partial);
+        }
+        QualityExtractor.mergePartials(partials, SyntheticDataGenerator.getReferenceFile(fixture).getPath(),
+                QualityExtractor.OutputFormat.VCF, output.getPath(), new ExtractionOptions());
+        assertGolden(QualityExtractor.OutputFormat.VCF, output);
+    }
+
+    @Test
+    public void testStoreConvertsToSyntheticVCF() throws Exception {
+        File store = new File(output, "store");
+        store.mkdirs();
+        QualityExtractor.extractQualities(SyntheticDataGenerator.getBamFile(fixture), SyntheticDataGenerator.getBedFile(fixture),
+                SyntheticDataGenerator.getReferenceFile(fixture).getPath(), QualityExtractor.OutputFormat.VCF, store.getPath(),
+                new ExtractionOptions().setOutput(RegionExtractor.Output.STORE));
+        QualityExtractor.convertStore(new File(store, "regions.qstore"), SyntheticDataGenerator.getReferenceFile(fixture).getPath(),
+                QualityExtractor.OutputFormat.VCF, output.getPath(), new ExtractionOptions());
+        assertGolden(QualityExtractor.OutputFormat.VCF, output);
+    }
+
+    @Test
+    public void testMemoryBudgetRejectsLongRegionsOfConsolidatedOutput() throws Exception {
+        List<BEDRecord> regions = new LinkedList<BEDRecord>();
+        regions.add(new BEDRecord("chr7", 117000000, 117200000));
+        try{
+            new RegionExtractor(bam("left"), reference(), QualityExtractor.OutputFormat.VCF, output.getPath()).run(regions,
+                    new ExtractionOptions().setOutput(RegionExtractor.Output.CONSOLIDATED).setMemoryBudgetBytes(1 << 20));
+            fail("a region longer than the budget allows was accumulated as a whole");
+        } catch (Exception e){
+            assertEquals(true, e.getMessage().contains("chr7:117000000-117200000"));
+        }
+        //nothing is written
+        assertEquals(0, output.list().length);
+    }
+
+    @Test
+    public void testServerRejectsRegionsOutsideReferenceAndUnindexedBam() throws Exception {
+        QualityExtractor.createBamIndex(bam("left"), new File(bam("left").getPath() + ".bai"));
+        File unindexed = new File(output, "unindexed.bam");
+        OutputStream out = new FileOutputStream(unindexed);
+        out.write(readBytes(bam("left")));
+        out.close();
+        QualityServer server = new QualityServer(reference(), 0, new ExtractionOptions());
+        server.start();
+        try{
+            String query = "http://127.0.0.1:" + server.getPort() + "/quality?bam=" + bam("left").getAbsolutePath() + "&region=";
+            assertEquals(400, responseCode(query + "chrUnknown:1-100"));
+            assertEquals(400, responseCode(query + "chr7:1-2000000000"));
+            assertEquals(400, responseCode(query + "chr7:1-" + (QualityServer.MAX_QUERY_LENGTH + 1)));
+            assertEquals(200, responseCode(query + "chr7:117138345-117138546"));
+            assertEquals(409, responseCode("http://127.0.0.1:" + server.getPort() + "/quality?bam=" +
+                    unindexed.getAbsolutePath() + "&region=chr7:117138345-117138546"));
+            assertEquals(false, new File(unindexed.getPath() + ".bai").exists());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCopiedOptionsHaveTheirOwnReadFilter() throws Exception {
+        ExtractionOptions options = new ExtractionOptions().setReadFilter(new ReadFilter().setMinMappingQuality(20));
+        ExtractionOptions copy = options.copy();
+        options.getReadFilter().setMinMappingQuality(30).setReadGroups("rg1");
+        assertEquals(20, copy.getReadFilter().getMinMappingQuality());
+        assertEquals(null, copy.getReadFilter().getReadGroups());
+    }
+
+    @Test
+    public void testExtractorRunsShardsConcurrently() throws Exception {
+        final RegionExtractor extractor = new RegionExtractor(bam("both"), reference(), QualityExtractor.OutputFormat.VCF,
+                output.getPath());
+        final List<BEDRecord> regions = BEDFileReader.readAll(new File(inputBed));
+        final List<File> partials = new LinkedList<File>();
+        final List<Exception> errors = new Vector<Exception>();
+        List<Thread> threads = new LinkedList<Thread>();
+        for(int shard = 1; shard <= 3; ++shard){
+            final File partial = new File(output, "shard" + shard + ".partial");
+            final ExtractionOptions options = new ExtractionOptions().setShard(shard, 3).setPartialFile(partial);
+            partials.add(partial);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try{
+                        extractor.run(regions, options);
+                    } catch (Exception e){
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+        assertEquals(0, errors.size());
+        //the same extractor merges the shards afterwards
+        extractor.merge(partials, new ExtractionOptions());
+        assertRegion("both", QualityExtractor.OutputFormat.VCF, output);
+    }
 }
@@ -0,0 +1,159 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Exact per-position histograms of the Phred qualities of every nucleotide of one region, the distribution behind
+ * the means of QualityAccumulator. Every position and nucleotide has one counter per Phred value. Counters are
+ * single bytes, a row of counters is widened to ints when one of them would overflow, so only deep positions
+ * pay for wide counters. Memory is about region length * 5 * BINS bytes, independent of the depth. Not thread-safe.
+ */
+public class QualityHistogram {
+
+    /**
+     * Number of Phred values counted: 0 to 93, the range of SAM qualities. Higher qualities are counted as 93
+     */
+    public static final int BINS = 94;
+
+    /**
+     * @param length number of positions of the region
+     */
+    public QualityHistogram(int length) {
+        if((long)QualityAccumulator.NUCLEOTIDES.length * length * BINS > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Region of " + length + " positions is too long for quality histograms, " +
+                    "process it in tiles");
+        this.length = length;
+        this.narrow = new byte[QualityAccumulator.NUCLEOTIDES.length * length * BINS];
+    }
+
+    /**
+     * Count one base
+     * @param code nucleotide code, index in QualityAccumulator.NUCLEOTIDES
+     * @param pos position relative to the region start
+     * @param quality Phred quality of the base
+     */
+    public void add(int code, int pos, int quality) {
+        add(code, pos, quality, 1);
+    }
+
+    /**
+     * Add a count of bases with the same quality, e.g. read back by add(DataInput)
+     */
+    public void add(int code, int pos, int quality, int count) {
+        int row = code * length + pos;
+        int bin = Math.max(0, Math.min(quality, BINS - 1));
+        if(wide != null && wide[row] != null){
+            wide[row][bin] += count;
+            return;
+        }
+        int index = row * BINS + bin;
+        int value = (narrow[index] & 0xFF) + count;
+        if(value <= NARROW_MAX){
+            narrow[index] = (byte)value;
+            return;
+        }
+        widen(row)[bin] += count;
+    }
+
+    /**
+     * @return number of bases of the nucleotide with the quality
+     */
+    public int getCount(int code, int pos, int quality) {
+        int row = code * length + pos;
+        if(wide != null && wide[row] != null)
+            return wide[row][quality];
+        return narrow[row * BINS + quality] & 0xFF;
+    }
+
+    /**
+     * Nearest-rank percentile: the lowest quality that at least percent % of the bases reach or fall below
+     * @param percent 0 to 100
+     * @return quality, -1 if the nucleotide has no bases in the position
+     */
+    public int getPercentile(int code, int pos, int percent) {
+        long total = getTotal(code, pos);
+        if(total == 0)
+            return -1;
+        long rank = Math.max(1, (total * percent + 99) / 100);
+        long seen = 0;
+        for(int quality = 0; quality < BINS; ++quality){
+            seen += getCount(code, pos, quality);
+            if(seen >= rank)
+                return quality;
+        }
+        return BINS - 1;
+    }
+
+    /**
+     * @return number of bases of the nucleotide with at least the quality
+     */
+    public long getCountAtLeast(int code, int pos, int quality) {
+        long count = 0;
+        for(int q = Math.max(quality, 0); q < BINS; ++q)
+            count += getCount(code, pos, q);
+        return count;
+    }
+
+    /**
+     * @return number of bases of the nucleotide in the position
+     */
+    public long getTotal(int code, int pos) {
+        return getCountAtLeast(code, pos, 0);
+    }
+
+    /**
+     * Write the non-empty counters, see add(DataInput)
+     */
+    public void write(final DataOutput out) throws IOException {
+        for(int row = 0; row < QualityAccumulator.NUCLEOTIDES.length * length; ++row){
+            int bins = 0;
+            for(int bin = 0; bin < BINS; ++bin){
+                if(getCount(row / length, row % length, bin) != 0)
+                    bins++;
+            }
+            out.writeByte(bins);
+            for(int bin = 0; bin < BINS && bins > 0; ++bin){
+                int count = getCount(row / length, row % length, bin);
+                if(count != 0){
+                    out.writeByte(bin);
+                    out.writeInt(count);
+                    bins--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the counters written by write, e.g. by another shard of the same region
+     */
+    public void add(final DataInput in) throws IOException {
+        for(int row = 0; row < QualityAccumulator.NUCLEOTIDES.length * length; ++row){
+            int bins = in.readUnsignedByte();
+            for(int i = 0; i < bins; ++i){
+                int bin = in.readUnsignedByte();
+                add(row / length, row % length, bin, in.readInt());
+            }
+        }
+    }
+
+    private int[] widen(int row) {
+        if(wide == null)
+            wide = new int[QualityAccumulator.NUCLEOTIDES.length * length][];
+        int[] counts = new int[BINS];
+        for(int bin = 0; bin < BINS; ++bin){
+            counts[bin] = narrow[row * BINS + bin] & 0xFF;
+            narrow[row * BINS + bin] = 0;
+        }
+        wide[row] = counts;
+        return counts;
+    }
+
+    private static final int NARROW_MAX = 0xFF;
+
+    private final int length;
+    private final byte[] narrow;
+    /**
+     * Widened rows by nucleotide and position, null until a counter overflows
+     */
+    private int[][] wide = null;
+}
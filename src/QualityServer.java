@@ -0,0 +1,493 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running process answering quality queries of small regions over HTTP on the loopback interface, without
+ * paying for JVM startup, index loading and reference opening on every query. The reference is opened once.
+ * Every BAM file queried keeps a pool of readers with their parsed indexes, BAM files are evicted least recently
+ * used first when the readers exceed the memory budget, see ExtractionOptions.setServerCacheBytes.
+ *
+ * GET /quality?bam=<path>&region=<contig>:<start>-<stop>[&region=...][&format=vcf|json] returns the VCF records
+ * of the regions with reads, the same as the region files of a run with the same options, or the sums and counts
+ * of the nucleotides as JSON. GET /status lists the cached BAM files. Regions outside the reference or longer than
+ * MAX_QUERY_LENGTH bases in total are rejected, BAM files are expected to be indexed beforehand.
+ */
+public class QualityServer {
+
+    /**
+     * Open the reference and bind the port, queries are answered after start
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param port port on the loopback interface, 0 for any free port
+     * @param options read filter, quality statistics, reference cache, BAM cache and number of threads
+     * @throws IOException if the reference cannot be opened or the port cannot be bound
+     */
+    public QualityServer(String refGenome, int port, final ExtractionOptions options) throws IOException {
+        this.options = options;
+        this.reference = new MappedReference(new File(refGenome), options.getReferenceCacheBytes());
+        try{
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        } catch (IOException e){
+            reference.close();
+            throw e;
+        }
+        server.createContext("/quality", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleQuality(exchange);
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleStatus(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(options.getThreads());
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        Logger logger = Logger.getLogger(QualityServer.class);
+        server.start();
+        logger.info("Serving quality queries on http://127.0.0.1:" + getPort() + "/quality");
+    }
+
+    /**
+     * Stop answering queries, close the readers and the reference
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (samples){
+            for(Sample sample : samples.values())
+                sample.close();
+            samples.clear();
+            cachedBytes = 0;
+        }
+        reference.close();
+    }
+
+    /**
+     * @return bound port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleQuality(final HttpExchange exchange) throws IOException {
+        Logger logger = Logger.getLogger(QualityServer.class);
+        long start = System.nanoTime();
+        try{
+            Map<String, List<String>> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            String bam = first(parameters, "bam");
+            String format = parameters.containsKey("format") ? first(parameters, "format") : "vcf";
+            if(!format.equals("vcf") && !format.equals("json"))
+                throw new IllegalArgumentException("Unknown format " + format);
+            List<BEDRecord> regions = new ArrayList<BEDRecord>();
+            long length = 0;
+            for(String region : parameters.containsKey("region") ? parameters.get("region") : Collections.<String>emptyList()){
+                BEDRecord record = parseRegion(region);
+                checkRegion(record);
+                length += record.getStopIndex() - record.getStartIndex() + 1;
+                regions.add(record);
+            }
+            if(regions.isEmpty())
+                throw new IllegalArgumentException("No region given");
+            if(length > MAX_QUERY_LENGTH)
+                throw new IllegalArgumentException("Regions of a query are limited to " + MAX_QUERY_LENGTH + " bases, " +
+                        length + " requested");
+            File bamFile = new File(bam);
+            if(!bamFile.isFile()){
+                send(exchange, 404, "text/plain", ("BAM file " + bam + " not found\n").getBytes());
+                return;
+            }
+
+            List<QualityAccumulator> accumulators = new ArrayList<QualityAccumulator>();
+            List<Long> reads = new ArrayList<Long>();
+            Sample sample = getSample(bamFile);
+            if(sample == null){
+                send(exchange, 409, "text/plain", ("BAM file " + bam + " has no current index, index it before querying\n")
+                        .getBytes());
+                return;
+            }
+            SAMFileReader reader = sample.borrow();
+            try{
+                for(BEDRecord region : regions){
+                    QualityAccumulator accumulator = new QualityAccumulator(region,
+                            options.getReadFilter().getMinBaseQuality(), options.isQualityStats(), options.getStatistics());
+                    reads.add(accumulate(reader, accumulator));
+                    accumulators.add(accumulator);
+                }
+            } finally {
+                sample.giveBack(reader);
+            }
+            evict(sample);
+
+            byte[] body = format.equals("vcf") ? formatVcf(accumulators, reads) : formatJson(bam, accumulators, reads);
+            send(exchange, 200, format.equals("vcf") ? "text/plain" : "application/json", body);
+            if(logger.isDebugEnabled())
+                logger.debug("Answered " + regions.size() + " regions of " + bamFile.getName() + " in " +
+                        (System.nanoTime() - start) / 1000 + " us");
+        } catch (IllegalArgumentException e){
+            send(exchange, 400, "text/plain", (e.getMessage() + "\n").getBytes());
+        } catch (Exception e){
+            logger.error("Error while answering " + exchange.getRequestURI() + ": " + e.toString());
+            send(exchange, 500, "text/plain", (e.toString() + "\n").getBytes());
+        } catch (OutOfMemoryError e){
+            //the accumulators of the query are unreachable by now, the answer fits
+            logger.error("Out of memory while answering " + exchange.getRequestURI());
+            send(exchange, 503, "text/plain", "Out of memory, query fewer or shorter regions\n".getBytes());
+        }
+    }
+
+    private void handleStatus(final HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder();
+        synchronized (samples){
+            json.append("{\"cachedBytes\": ").append(cachedBytes).append(", \"budgetBytes\": ")
+                    .append(options.getServerCacheBytes()).append(", \"bams\": [");
+            int i = 0;
+            for(Sample sample : samples.values()){
+                json.append(i++ > 0 ? ", " : "").append("{\"bam\": \"").append(escape(sample.file.getPath()))
+                        .append("\", \"readers\": ").append(sample.readers()).append(", \"bytes\": ").append(sample.bytes()).append("}");
+            }
+            json.append("]}\n");
+        }
+        send(exchange, 200, "application/json", json.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * Accumulate the reads of the region that pass the read filter, up to the depth cap
+     * @return number of reads that passed the read filter
+     */
+    private long accumulate(final SAMFileReader reader, final QualityAccumulator accumulator) throws Exception {
+        BEDRecord region = accumulator.getRegion();
+        ReadFilter filter = options.getReadFilter();
+        DepthDownsampler downsampler = options.getMaxDepth() <= 0 ? null :
+                new DepthDownsampler(region, options.getMaxDepth(), options.getDownsampleSeed(), new DepthDownsampler.Sink() {
+                    @Override
+                    public void accept(SAMRecord record, ReadPipeline.AlignedRead read) {
+                        accumulator.add(record);
+                    }
+                });
+        long reads = 0;
+        SAMRecordIterator it = reader.query(region.getContigName(), region.getStartIndex(), region.getStopIndex(), false);
+        try{
+            while(it.hasNext()){
+                SAMRecord record = it.next();
+                if(!filter.accept(record))
+                    continue;
+                if(downsampler != null)
+                    downsampler.add(record, null);
+                else
+                    accumulator.add(record);
+                reads++;
+            }
+            if(downsampler != null)
+                downsampler.finish();
+        } finally {
+            it.close();
+        }
+        return reads;
+    }
+
+    private byte[] formatVcf(final List<QualityAccumulator> accumulators, final List<Long> reads) throws IOException {
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        formatter.appendVcfHeader(options.isQualityStats(), options.getStatistics());
+        for(int i = 0; i < accumulators.size(); ++i){
+            if(reads.get(i) == 0)
+                continue;
+            BEDRecord region = accumulators.get(i).getRegion();
+            formatter.appendVcf(accumulators.get(i), reference.getSubsequence(region.getContigName(),
+                    region.getStartIndex(), region.getStopIndex()));
+        }
+        return Arrays.copyOf(formatter.getBytes(), formatter.getSize());
+    }
+
+    /**
+     * @return regions with their reads and for every position the reference base and the count, mean quality
+     * and, if histograms are kept, median and percentiles of every nucleotide present
+     */
+    private byte[] formatJson(String bam, final List<QualityAccumulator> accumulators, final List<Long> reads) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"bam\": \"").append(escape(bam)).append("\", \"regions\": [");
+        for(int i = 0; i < accumulators.size(); ++i){
+            QualityAccumulator accumulator = accumulators.get(i);
+            QualityHistogram histogram = accumulator.getHistogram();
+            BEDRecord region = accumulator.getRegion();
+            ByteBuffer ref = reference.getSubsequence(region.getContigName(), region.getStartIndex(), region.getStopIndex());
+            json.append(i > 0 ? "," : "").append("\n  {\"region\": \"").append(escape(region.getContigName())).append(':')
+                    .append(region.getStartIndex()).append('-').append(region.getStopIndex())
+                    .append("\", \"reads\": ").append(reads.get(i)).append(", \"positions\": [");
+            for(int pos = 0; pos < accumulator.getLength(); ++pos){
+                json.append(pos > 0 ? "," : "").append("\n    {\"pos\": ").append(region.getStartIndex() + pos)
+                        .append(", \"ref\": \"").append((char)ref.get(pos)).append("\"");
+                for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                    int count = accumulator.getCount(code, pos);
+                    if(count == 0)
+                        continue;
+                    json.append(", \"").append(QualityAccumulator.NUCLEOTIDES[code]).append("\": {\"count\": ").append(count)
+                            .append(", \"mean\": ").append(accumulator.getSum(code, pos) / count);
+                    if(histogram != null){
+                        long total = histogram.getTotal(code, pos);
+                        json.append(", \"median\": ").append(histogram.getPercentile(code, pos, 50))
+                                .append(", \"p10\": ").append(histogram.getPercentile(code, pos, 10))
+                                .append(", \"p90\": ").append(histogram.getPercentile(code, pos, 90))
+                                .append(String.format(Locale.US, ", \"q20\": %.4f, \"q30\": %.4f",
+                                        histogram.getCountAtLeast(code, pos, 20) / (double)total,
+                                        histogram.getCountAtLeast(code, pos, 30) / (double)total));
+                    }
+                    json.append("}");
+                }
+                json.append("}");
+            }
+            json.append("]}");
+        }
+        json.append("\n]}\n");
+        return json.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the contig is not in the reference or the region ends past its end
+     */
+    private void checkRegion(final BEDRecord region) {
+        long contigLength = reference.getContigLength(region.getContigName());
+        if(contigLength < 0)
+            throw new IllegalArgumentException("Unknown contig " + region.getContigName());
+        if(region.getStopIndex() > contigLength)
+            throw new IllegalArgumentException("Region " + region.getContigName() + ":" + region.getStartIndex() + "-" +
+                    region.getStopIndex() + " ends past the contig end " + contigLength);
+    }
+
+    /**
+     * @return cached readers of the BAM file, reopened if the file changed since it was cached,
+     * or null if the BAM file has no index or the index is older than the file
+     */
+    private Sample getSample(final File bam) throws IOException {
+        String key = bam.getCanonicalPath();
+        synchronized (samples){
+            Sample sample = samples.get(key);
+            if(sample != null && sample.isCurrent())
+                return sample;
+            if(sample != null){
+                cachedBytes -= sample.bytes();
+                samples.remove(key);
+                sample.close();
+            }
+        }
+        File index = new File(bam.getAbsolutePath() + ".bai");
+        if(!BamIndexBuilder.isUpToDate(bam, index))
+            return null;
+        Sample created = new Sample(bam);
+        synchronized (samples){
+            Sample sample = samples.get(key);
+            if(sample != null){
+                //another query cached the file meanwhile
+                created.close();
+                return sample;
+            }
+            samples.put(key, created);
+            cachedBytes += created.bytes();
+            return created;
+        }
+    }
+
+    /**
+     * Close the least recently used BAM files until the cache fits the budget, the file in use is kept
+     */
+    private void evict(final Sample inUse) {
+        Logger logger = Logger.getLogger(QualityServer.class);
+        synchronized (samples){
+            cachedBytes = 0;
+            for(Sample sample : samples.values())
+                cachedBytes += sample.bytes();
+            Iterator<Sample> it = samples.values().iterator();
+            while(cachedBytes > options.getServerCacheBytes() && it.hasNext()){
+                Sample sample = it.next();
+                if(sample == inUse)
+                    continue;
+                cachedBytes -= sample.bytes();
+                it.remove();
+                sample.close();
+                logger.info("Evicted " + sample.file.getName() + " from the BAM cache");
+            }
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, List<String>> parameters = new HashMap<String, List<String>>();
+        if(query == null)
+            return parameters;
+        for(String pair : query.split("&")){
+            if(pair.length() == 0)
+                continue;
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            List<String> values = parameters.get(name);
+            if(values == null){
+                values = new ArrayList<String>();
+                parameters.put(name, values);
+            }
+            values.add(value);
+        }
+        return parameters;
+    }
+
+    private static String first(final Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        if(values == null || values.get(0).length() == 0)
+            throw new IllegalArgumentException("Parameter " + name + " is missing");
+        return values.get(0);
+    }
+
+    /**
+     * @param region contig:start-stop, 1-based and inclusive as in the output
+     */
+    static BEDRecord parseRegion(String region) {
+        int colon = region.lastIndexOf(':');
+        int dash = region.lastIndexOf('-');
+        if(colon <= 0 || dash < colon)
+            throw new IllegalArgumentException("Invalid region " + region + ", expected contig:start-stop");
+        try{
+            int start = Integer.parseInt(region.substring(colon + 1, dash));
+            int stop = Integer.parseInt(region.substring(dash + 1));
+            if(start < 1 || stop < start)
+                throw new IllegalArgumentException("Invalid region " + region);
+            return new BEDRecord(region.substring(0, colon), start, stop);
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("Invalid region " + region + ", expected contig:start-stop");
+        }
+    }
+
+    private static void send(final HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try{
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Readers of one BAM file. Each reader caches the parsed index, readers are borrowed by one query at a time
+     */
+    private class Sample {
+        Sample(final File file) throws IOException {
+            this.file = file;
+            this.index = new File(file.getAbsolutePath() + ".bai");
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.mapped = options.isMappedBam() ? new MappedBamFile(file) : null;
+        }
+
+        SAMFileReader borrow() {
+            SAMFileReader reader = idle.poll();
+            if(reader != null)
+                return reader;
+            synchronized (this){
+                //the mapping of an evicted sample is closed, its last queries read the file
+                if(mapped != null && !closed){
+                    reader = mapped.open();
+                } else {
+                    reader = new SAMFileReader(file, index);
+                    reader.enableIndexCaching(true);
+                }
+                opened++;
+            }
+            return reader;
+        }
+
+        void giveBack(final SAMFileReader reader) {
+            synchronized (this){
+                if(!closed){
+                    idle.add(reader);
+                    return;
+                }
+                opened--;
+            }
+            reader.close();
+        }
+
+        void close() {
+            synchronized (this){
+                closed = true;
+                if(mapped != null)
+                    mapped.close();
+            }
+            SAMFileReader reader;
+            while((reader = idle.poll()) != null){
+                reader.close();
+                synchronized (this){
+                    opened--;
+                }
+            }
+        }
+
+        synchronized int readers() {
+            return opened;
+        }
+
+        /**
+         * @return estimate of the memory of the readers from their number, not a measurement: every reader is
+         * assumed to cache an index as large as the .bai file plus READER_BYTES of buffers. The mapping of a
+         * memory-mapped BAM file is not counted, it is page cache shared with other processes
+         */
+        synchronized long bytes() {
+            return opened * (index.length() + READER_BYTES);
+        }
+
+        boolean isCurrent() {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+        final File file;
+        final File index;
+        final long lastModified;
+        final long length;
+        final MappedBamFile mapped;
+        final Queue<SAMFileReader> idle = new ConcurrentLinkedQueue<SAMFileReader>();
+        int opened = 0;
+        boolean closed = false;
+    }
+
+    /**
+     * Bases of all regions of one query, the accumulators of a region take a few dozen bytes per base
+     */
+    static final long MAX_QUERY_LENGTH = 1 << 20;
+
+    /**
+     * Memory of a reader apart from its index: buffers of BGZF blocks and decoded records
+     */
+    private static final long READER_BYTES = 256 * 1024;
+
+    private final ExtractionOptions options;
+    private final MappedReference reference;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LinkedHashMap<String, Sample> samples = new LinkedHashMap<String, Sample>(16, 0.75f, true);
+    private long cachedBytes = 0;
+}
@@ -0,0 +1,337 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary output with the per-position quality sums and counts of every nucleotide. Regions are stored as
+ * separately deflated blocks found by binary search in the index at the end of the file, see Reader.find.
+ *
+ * Layout: magic, blocks in the order the regions were finished, index, offset of the index and magic again.
+ * A block holds the sums of A, C, G, T and deletion, then their counts, one int per position. An index entry
+ * holds BED index, contig, start, stop, number of reads, offset and length of the block.
+ */
+public class QualityStore {
+
+    /**
+     * Writes the regions of one run, safe to share between threads
+     */
+    public static class Writer {
+        /**
+         * @param file store file to create
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(final File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.write(MAGIC);
+            offset = MAGIC.length;
+        }
+
+        /**
+         * @param bedIndex index of the region in the BED file, regions are converted back in this order
+         * @param accumulator accumulated qualities of the region
+         * @param reads number of reads accumulated
+         * @throws IOException if the block cannot be written
+         */
+        public void write(int bedIndex, final QualityAccumulator accumulator, long reads) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(accumulator.getLength() * 4);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            DataOutputStream compressed = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(data, deflater), 1 << 16));
+            for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                for(int pos = 0; pos < accumulator.getLength(); ++pos)
+                    compressed.writeInt(accumulator.getSum(code, pos));
+            }
+            for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                for(int pos = 0; pos < accumulator.getLength(); ++pos)
+                    compressed.writeInt(accumulator.getCount(code, pos));
+            }
+            compressed.close();
+            deflater.end();
+
+            synchronized (this){
+                entries.add(new Entry(bedIndex, accumulator.getRegion(), reads, offset, data.size()));
+                data.writeTo(out);
+                offset += data.size();
+            }
+        }
+
+        /**
+         * Write the index and close the file
+         */
+        public synchronized void close() throws IOException {
+            try{
+                out.writeInt(entries.size());
+                for(Entry entry : entries){
+                    out.writeInt(entry.bedIndex);
+                    out.writeUTF(entry.region.getContigName());
+                    out.writeInt(entry.region.getStartIndex());
+                    out.writeInt(entry.region.getStopIndex());
+                    out.writeLong(entry.reads);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                }
+                out.writeLong(offset);
+                out.write(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+
+        private final DataOutputStream out;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private long offset;
+    }
+
+    /**
+     * Random access to the regions and loci of a store, safe to share between threads
+     */
+    public static class Reader {
+        /**
+         * Read the index of the store
+         * @param file store file
+         * @throws IOException if the file cannot be read or is not a complete store
+         */
+        public Reader(final File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            byte[] magic = new byte[MAGIC.length];
+            long length = this.file.length();
+            if(length < 2 * MAGIC.length + 12)
+                throw new IOException(file.getName() + " is not a quality store");
+            this.file.seek(length - MAGIC.length);
+            this.file.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException(file.getName() + " is not a complete quality store");
+            this.file.seek(length - MAGIC.length - 8);
+            long indexOffset = this.file.readLong();
+
+            if(indexOffset < MAGIC.length || indexOffset > length - MAGIC.length - 8)
+                throw new IOException(file.getName() + " has an invalid index offset");
+            byte[] index = new byte[(int)(length - MAGIC.length - 8 - indexOffset)];
+            this.file.seek(indexOffset);
+            this.file.readFully(index);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            int count = in.readInt();
+            for(int i = 0; i < count; ++i){
+                int bedIndex = in.readInt();
+                BEDRecord region = new BEDRecord(in.readUTF(), in.readInt(), in.readInt());
+                entries.add(new Entry(bedIndex, region, in.readLong(), in.readLong(), in.readInt()));
+            }
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    return o1.bedIndex < o2.bedIndex ? -1 : (o1.bedIndex > o2.bedIndex ? 1 : 0);
+                }
+            });
+
+            for(Entry entry : entries){
+                List<Entry> contig = byContig.get(entry.region.getContigName());
+                if(contig == null){
+                    contig = new ArrayList<Entry>();
+                    byContig.put(entry.region.getContigName(), contig);
+                }
+                contig.add(entry);
+            }
+            for(List<Entry> contig : byContig.values()){
+                //stable, so regions with the same coordinates stay in BED order
+                Collections.sort(contig, new Comparator<Entry>() {
+                    @Override
+                    public int compare(Entry o1, Entry o2) {
+                        int s1 = o1.region.getStartIndex(), s2 = o2.region.getStartIndex();
+                        if(s1 == s2){
+                            s1 = o1.region.getStopIndex();
+                            s2 = o2.region.getStopIndex();
+                        }
+                        return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+                    }
+                });
+                int maxStop = 0;
+                for(Entry entry : contig){
+                    maxStop = Math.max(maxStop, entry.region.getStopIndex());
+                    entry.maxStop = maxStop;
+                }
+            }
+        }
+
+        /**
+         * @return stored regions in BED order
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return sums and counts of the region
+         * @throws IOException if the block cannot be read
+         */
+        public QualityAccumulator read(final Entry entry) throws IOException {
+            byte[] data = new byte[entry.length];
+            synchronized (this){
+                file.seek(entry.offset);
+                file.readFully(data);
+            }
+            QualityAccumulator accumulator = new QualityAccumulator(entry.region);
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data)), 1 << 16));
+            try{
+                for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                    for(int pos = 0; pos < accumulator.getLength(); ++pos)
+                        accumulator.add(code, pos, in.readInt(), 0);
+                }
+                for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                    for(int pos = 0; pos < accumulator.getLength(); ++pos)
+                        accumulator.add(code, pos, 0, in.readInt());
+                }
+            } finally {
+                in.close();
+            }
+            return accumulator;
+        }
+
+        /**
+         * @return region covering the locus that starts first, then ends first, then comes first in the BED file,
+         * null if no stored region covers it
+         */
+        public Entry find(String contig, int position) {
+            List<Entry> candidates = byContig.get(contig);
+            if(candidates == null)
+                return null;
+            //last region starting at or before the position
+            int low = 0, high = candidates.size() - 1, last = -1;
+            while(low <= high){
+                int middle = (low + high) >>> 1;
+                if(candidates.get(middle).region.getStartIndex() <= position){
+                    last = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            //regions before it cover the position only while the longest of them reaches it
+            Entry first = null;
+            for(int i = last; i >= 0 && candidates.get(i).maxStop >= position; --i){
+                if(candidates.get(i).region.getStopIndex() >= position)
+                    first = candidates.get(i);
+            }
+            return first;
+        }
+
+        /**
+         * @param contig contig name
+         * @param position 1-based position
+         * @return sums and counts of the nucleotides in the position, null if no stored region covers it
+         * @throws IOException if the block cannot be read
+         */
+        public Locus query(String contig, int position) throws IOException {
+            Entry entry = find(contig, position);
+            if(entry == null)
+                return null;
+            QualityAccumulator accumulator;
+            synchronized (this){
+                accumulator = lastEntry == entry ? lastAccumulator : null;
+            }
+            if(accumulator == null){
+                accumulator = read(entry);
+                synchronized (this){
+                    lastEntry = entry;
+                    lastAccumulator = accumulator;
+                }
+            }
+            int[] sums = new int[QualityAccumulator.NUCLEOTIDES.length], counts = new int[sums.length];
+            for(int code = 0; code < sums.length; ++code){
+                sums[code] = accumulator.getSum(code, position - entry.region.getStartIndex());
+                counts[code] = accumulator.getCount(code, position - entry.region.getStartIndex());
+            }
+            return new Locus(contig, position, sums, counts);
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private final RandomAccessFile file;
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final Map<String, List<Entry>> byContig = new HashMap<String, List<Entry>>();
+        private Entry lastEntry = null;
+        private QualityAccumulator lastAccumulator = null;
+    }
+
+    /**
+     * Stored region
+     */
+    public static class Entry {
+        private Entry(int bedIndex, final BEDRecord region, long reads, long offset, int length) {
+            this.bedIndex = bedIndex;
+            this.region = region;
+            this.reads = reads;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return index of the region in the BED file
+         */
+        public int getBedIndex() {
+            return bedIndex;
+        }
+
+        public BEDRecord getRegion() {
+            return region;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        private final int bedIndex;
+        private final BEDRecord region;
+        private final long reads;
+        private final long offset;
+        private final int length;
+        /**
+         * Largest stop of the regions of the contig up to this one in start order
+         */
+        private int maxStop;
+    }
+
+    /**
+     * Sums and counts of qualities of every nucleotide in one position
+     */
+    public static class Locus {
+        private Locus(String contig, int position, final int[] sums, final int[] counts) {
+            this.contig = contig;
+            this.position = position;
+            this.sums = sums;
+            this.counts = counts;
+        }
+
+        public String getContig() {
+            return contig;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @param code nucleotide code, index in QualityAccumulator.NUCLEOTIDES
+         */
+        public int getSum(int code) {
+            return sums[code];
+        }
+
+        /**
+         * @param code nucleotide code, index in QualityAccumulator.NUCLEOTIDES
+         */
+        public int getCount(int code) {
+            return counts[code];
+        }
+
+        private final String contig;
+        private final int position;
+        private final int[] sums;
+        private final int[] counts;
+    }
+
+    private static final byte[] MAGIC = {'Q', 'E', 'S', 1};
+}
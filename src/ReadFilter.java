@@ -0,0 +1,103 @@
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMTag;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reads and bases excluded from the accumulation. Reads are tested on the fixed fields of the BAM record
+ * first (flags, then mapping quality) and on the read group tag last, so that sequence, qualities and CIGAR
+ * of a rejected read are never decoded. The default filter accepts everything.
+ */
+public class ReadFilter {
+
+    /**
+     * @return true if the read is accumulated
+     */
+    public boolean accept(final SAMRecord record) {
+        if((record.getFlags() & excludeFlags) != 0)
+            return false;
+        if(record.getMappingQuality() < minMappingQuality)
+            return false;
+        if(readGroups != null){
+            Object readGroup = record.getAttribute(SAMTag.RG.name());
+            if(readGroup == null || !readGroups.contains(readGroup.toString()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return reads with any of these flags are rejected
+     */
+    public int getExcludeFlags() {
+        return excludeFlags;
+    }
+
+    public ReadFilter setExcludeFlags(int excludeFlags) {
+        this.excludeFlags = excludeFlags;
+        return this;
+    }
+
+    /**
+     * @return reads with a lower mapping quality are rejected
+     */
+    public int getMinMappingQuality() {
+        return minMappingQuality;
+    }
+
+    public ReadFilter setMinMappingQuality(int minMappingQuality) {
+        this.minMappingQuality = minMappingQuality;
+        return this;
+    }
+
+    /**
+     * @return bases with a lower quality are not accumulated, deletions are always accumulated
+     */
+    public int getMinBaseQuality() {
+        return minBaseQuality;
+    }
+
+    public ReadFilter setMinBaseQuality(int minBaseQuality) {
+        this.minBaseQuality = minBaseQuality;
+        return this;
+    }
+
+    /**
+     * @return read groups of the accepted reads, null to accept reads of any or no read group
+     */
+    public Set<String> getReadGroups() {
+        return readGroups;
+    }
+
+    public ReadFilter setReadGroups(String... readGroups) {
+        this.readGroups = readGroups == null ? null : new TreeSet<String>(Arrays.asList(readGroups));
+        return this;
+    }
+
+    /**
+     * @return filter with the same settings
+     */
+    public ReadFilter copy() {
+        ReadFilter copy = new ReadFilter();
+        copy.excludeFlags = excludeFlags;
+        copy.minMappingQuality = minMappingQuality;
+        copy.minBaseQuality = minBaseQuality;
+        copy.readGroups = readGroups == null ? null : new TreeSet<String>(readGroups);
+        return copy;
+    }
+
+    /**
+     * @return settings of the filter, equal for filters accepting the same reads and bases
+     */
+    public String describe() {
+        return "flags=" + excludeFlags + ",mapq=" + minMappingQuality + ",baseq=" + minBaseQuality +
+                ",rg=" + (readGroups == null ? "*" : readGroups.toString());
+    }
+
+    private int excludeFlags = 0;
+    private int minMappingQuality = 0;
+    private int minBaseQuality = 0;
+    private Set<String> readGroups = null;
+}
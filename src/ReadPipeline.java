@@ -0,0 +1,217 @@
+import net.sf.samtools.SAMRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pipelined processing of the reads of one BAM query. The calling thread reads the BAM file, i.e. decompresses
+ * the BGZF blocks and decodes the fixed fields, and hands the reads over in batches to a shared pool of walker
+ * threads. These decode sequence, qualities and CIGAR and lay the reads out along the reference. Walked batches
+ * are passed to the consumer on the calling thread in the order the reads were read, so the results do not depend
+ * on the number of walker threads. At most a bounded number of batches is in flight, the reading waits for the
+ * oldest batch when the walkers fall behind. The reads of a batch share one pair of arrays for their aligned bases
+ * and qualities. Not thread-safe, one pipeline per query.
+ */
+public class ReadPipeline {
+
+    /**
+     * Receives the walked reads in read order
+     */
+    public static interface Consumer {
+        void accept(AlignedRead read) throws Exception;
+    }
+
+    /**
+     * Read with its bases and qualities laid out along the reference, see CigarWalker
+     */
+    public static class AlignedRead {
+        AlignedRead(final SAMRecord record, boolean accepted) {
+            this.record = record;
+            this.accepted = accepted;
+        }
+
+        private void walk(final Buffer buffer, final RunMetrics metrics) {
+            start = record.getAlignmentStart();
+            alignmentEnd = record.getAlignmentEnd();
+            if(!accepted || start == 0)
+                return;
+            long walkStart = metrics != null ? System.nanoTime() : 0;
+            CigarWalker walker = CigarWalker.forCurrentThread();
+            int length = walker.walk(record);
+            if(length >= 0){
+                offset = buffer.reserve(length);
+                bases = buffer.bases;
+                qualities = buffer.qualities;
+                System.arraycopy(walker.getBases(), 0, bases, offset, length);
+                System.arraycopy(walker.getQualities(), 0, qualities, offset, length);
+            }
+            if(metrics != null)
+                metrics.addTime(RunMetrics.Phase.CIGAR_WALK, System.nanoTime() - walkStart);
+        }
+
+        public SAMRecord getRecord() {
+            return record;
+        }
+
+        /**
+         * @return false if the read is only counted, see ExtractionRun.accept
+         */
+        public boolean isAccepted() {
+            return accepted;
+        }
+
+        /**
+         * @return alignment start, 0 for unaligned reads
+         */
+        public int getStart() {
+            return start;
+        }
+
+        public int getAlignmentEnd() {
+            return alignmentEnd;
+        }
+
+        /**
+         * @return end of the read as the BAM query sees it, see RegionExtractor.queryEnd
+         */
+        public int getQueryEnd() {
+            return alignmentEnd != 0 ? alignmentEnd : start;
+        }
+
+        /**
+         * @return aligned bases starting at getOffset(), shared with other reads of the batch. Null if the read
+         * was not walked: not accepted, unaligned or without qualities
+         */
+        public byte[] getBases() {
+            return bases;
+        }
+
+        public byte[] getQualities() {
+            return qualities;
+        }
+
+        /**
+         * @return index of the first aligned base in getBases() and getQualities()
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        private final SAMRecord record;
+        private final boolean accepted;
+        private int start;
+        private int alignmentEnd;
+        private byte[] bases = null;
+        private byte[] qualities = null;
+        private int offset = 0;
+    }
+
+    /**
+     * Aligned bases and qualities of the reads of one batch, one pair of arrays instead of two per read
+     */
+    private static class Buffer {
+        /**
+         * @return offset of length bytes not used by other reads
+         */
+        int reserve(int length) {
+            if(used + length > bases.length){
+                //reads walked so far keep the old arrays
+                int capacity = Math.max(2 * bases.length, length);
+                bases = new byte[capacity];
+                qualities = new byte[capacity];
+                used = 0;
+            }
+            used += length;
+            return used - length;
+        }
+
+        byte[] bases = new byte[BATCH_SIZE * INITIAL_READ_LENGTH];
+        byte[] qualities = new byte[BATCH_SIZE * INITIAL_READ_LENGTH];
+        int used = 0;
+    }
+
+    /**
+     * @param walkers pool of walker threads, shared by the pipelines of all workers
+     * @param walkerThreads number of threads of the pool, bounds the batches in flight
+     * @param metrics run metrics, may be null
+     * @param consumer receiver of the walked reads
+     */
+    public ReadPipeline(final ExecutorService walkers, int walkerThreads, final RunMetrics metrics, final Consumer consumer) {
+        this.walkers = walkers;
+        this.maxInFlight = Math.max(2, walkerThreads * BATCHES_PER_THREAD);
+        this.metrics = metrics;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Queue the read, consume the batches walked so far
+     * @param accepted false if the read is only counted, it is not walked
+     * @throws Exception if walking or consuming a read failed
+     */
+    public void add(final SAMRecord record, boolean accepted) throws Exception {
+        batch.add(new AlignedRead(record, accepted));
+        if(batch.size() < BATCH_SIZE)
+            return;
+        submit();
+        while(!inFlight.isEmpty() && (inFlight.size() >= maxInFlight || inFlight.getFirst().isDone()))
+            consume(inFlight.removeFirst().get());
+    }
+
+    /**
+     * Consume all remaining reads, the pipeline is empty afterwards
+     * @throws Exception if walking or consuming a read failed
+     */
+    public void finish() throws Exception {
+        if(!batch.isEmpty())
+            submit();
+        while(!inFlight.isEmpty())
+            consume(inFlight.removeFirst().get());
+    }
+
+    /**
+     * Drop the batches in flight without consuming them, e.g. after a failure
+     */
+    public void cancel() {
+        for(Future<List<AlignedRead>> future : inFlight)
+            future.cancel(false);
+        inFlight.clear();
+        batch = new ArrayList<AlignedRead>(BATCH_SIZE);
+    }
+
+    private void submit() {
+        final List<AlignedRead> reads = batch;
+        batch = new ArrayList<AlignedRead>(BATCH_SIZE);
+        inFlight.addLast(walkers.submit(new Callable<List<AlignedRead>>() {
+            @Override
+            public List<AlignedRead> call() throws Exception {
+                Buffer buffer = new Buffer();
+                for(AlignedRead read : reads)
+                    read.walk(buffer, metrics);
+                return reads;
+            }
+        }));
+    }
+
+    private void consume(final List<AlignedRead> reads) throws Exception {
+        for(AlignedRead read : reads)
+            consumer.accept(read);
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final int BATCHES_PER_THREAD = 4;
+    /**
+     * Reference positions per read the buffer of a batch is sized for, it grows for longer reads
+     */
+    private static final int INITIAL_READ_LENGTH = 256;
+
+    private final ExecutorService walkers;
+    private final int maxInFlight;
+    private final RunMetrics metrics;
+    private final Consumer consumer;
+    private final LinkedList<Future<List<AlignedRead>>> inFlight = new LinkedList<Future<List<AlignedRead>>>();
+    private List<AlignedRead> batch = new ArrayList<AlignedRead>(BATCH_SIZE);
+}
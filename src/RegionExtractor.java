@@ -0,0 +1,134 @@
+import net.sf.samtools.SAMRecord;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Streams reads of BED regions into accumulators on a pool of workers, each with its own BAM reader, and writes
+ * the results to the RegionSink of the output, see Engine for how reads are fetched. Shards write partial files
+ * (see PartialResults), finished regions may be recorded in a Checkpoint and regions longer than the tile size
+ * are written in windows, see TiledRegionWriter. Every call works on its own ExtractionRun, so an extractor may
+ * be reused and called from several threads.
+ */
+public class RegionExtractor {
+
+    /**
+     * How reads of the regions are fetched
+     */
+    public static enum Engine {
+        /**
+         * Sweep contigs with dense regions, query the others
+         */
+        AUTO,
+        /**
+         * One index query per region, overlapping and nearby regions share a query
+         */
+        QUERY,
+        /**
+         * One sequential pass per contig, every read is dispatched to all regions it overlaps
+         */
+        SWEEP
+    }
+
+    /**
+     * Where the results are written
+     */
+    public static enum Output {
+        /**
+         * One region_<start>-<stop> file per region
+         */
+        FILES,
+        /**
+         * All regions in one BGZF-compressed VCF file with tabix index, see ConsolidatedVcfWriter. Every position
+         * is written once, positions covered by several regions are answered by the region starting first
+         */
+        CONSOLIDATED,
+        /**
+         * Sums and counts of all regions in one binary file with an index by locus, see QualityStore. Converted
+         * to the other outputs by convert
+         */
+        STORE
+    }
+
+    /**
+     * @param inputSamOrBamFile Input BAM file, must have index file next to it, not used by merge
+     * @param refGenome Reference genome FASTA file (indexed)
+     * @param format Output format
+     * @param folder Output folder
+     */
+    public RegionExtractor(final File inputSamOrBamFile, String refGenome, QualityExtractor.OutputFormat format, String folder) {
+        this(inputSamOrBamFile, null, refGenome, format, folder);
+    }
+
+    /**
+     * Same as RegionExtractor(inputSamOrBamFile, refGenome, format, folder) with a reference shared by several
+     * extractors, e.g. of the samples of a batch. The reference is left open
+     * @param reference opened refGenome, null to open it in every run
+     */
+    public RegionExtractor(final File inputSamOrBamFile, final MappedReference reference, String refGenome,
+                           QualityExtractor.OutputFormat format, String folder) {
+        this.inputSamOrBamFile = inputSamOrBamFile;
+        this.sharedReference = reference;
+        this.refGenome = refGenome;
+        this.format = format;
+        this.folder = folder;
+    }
+
+    /**
+     * Process the regions. If several regions write to the same output file, the file is left by the last
+     * of them in BED order that has reads, so the result depends neither on the engine nor on the number
+     * of threads
+     * @param regions BED regions
+     * @param options number of threads, engine, output and shard
+     * @throws Exception if BAM index is invalid, workers are interrupted, consolidated output cannot be written or
+     * a region does not fit the memory budget of an output that cannot process it in windows
+     */
+    public void run(List<BEDRecord> regions, final ExtractionOptions options) throws Exception {
+        newRun().run(regions, options);
+    }
+
+    /**
+     * Sum up the partial files of all shards of a run and write the output of every region that has reads
+     * in any of them
+     * @param partialFiles partial files written by run
+     * @param options output and reference cache
+     * @throws Exception if partial files cannot be read or disagree on the regions
+     */
+    public void merge(final List<File> partialFiles, final ExtractionOptions options) throws Exception {
+        newRun().merge(partialFiles, options);
+    }
+
+    /**
+     * End of the read as the BAM query sees it: unaligned reads occupy their start position only
+     */
+    static int queryEnd(final SAMRecord record) {
+        int end = record.getAlignmentEnd();
+        return end != 0 ? end : record.getAlignmentStart();
+    }
+
+    /**
+     * Write the output of every region of a quality store, the same as the run that wrote the store would
+     * have written it
+     * @param storeFile store written by run or merge, see Output.STORE
+     * @param options output and reference cache, a STORE output writes one file per region
+     * @throws Exception if the store cannot be read
+     */
+    public void convert(final File storeFile, final ExtractionOptions options) throws Exception {
+        newRun().convert(storeFile, options);
+    }
+
+    private ExtractionRun newRun() {
+        return new ExtractionRun(inputSamOrBamFile, sharedReference, refGenome, format, folder);
+    }
+
+    static final String CONSOLIDATED_FILE_NAME = "regions.vcf.gz";
+    static final String CHECKPOINT_DIRECTORY = ".checkpoint";
+    static final String METRICS_FILE_NAME = "metrics.json";
+    static final String STORE_FILE_NAME = "regions.qstore";
+
+    private final File inputSamOrBamFile;
+    private final MappedReference sharedReference;
+    private final String refGenome;
+    private final QualityExtractor.OutputFormat format;
+    private final String folder;
+}
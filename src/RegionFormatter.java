@@ -0,0 +1,331 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Formats accumulated qualities of a region as VCF or FASTQ text straight into a reusable byte buffer,
+ * without intermediate strings. The bytes are the same as printed by a PrintWriter with the platform line
+ * separator. One instance per thread, see forCurrentThread.
+ */
+public class RegionFormatter {
+
+    /**
+     * @return formatter of the calling thread, cleared
+     */
+    public static RegionFormatter forCurrentThread() {
+        RegionFormatter formatter = FORMATTERS.get();
+        formatter.clear();
+        return formatter;
+    }
+
+    public void clear() {
+        size = 0;
+        lineCount = 0;
+    }
+
+    public void appendVcfHeader() {
+        appendVcfHeader(false);
+    }
+
+    /**
+     * @param qualityStats true to declare the INFO fields written for accumulators with histograms, see appendVcf
+     */
+    public void appendVcfHeader(boolean qualityStats) {
+        appendVcfHeader(qualityStats, Collections.<RegionStatistic.Factory>emptyList());
+    }
+
+    /**
+     * @param qualityStats true to declare the INFO fields written for accumulators with histograms, see appendVcf
+     * @param statistics statistics whose INFO fields are declared
+     */
+    public void appendVcfHeader(boolean qualityStats, final List<RegionStatistic.Factory> statistics) {
+        append(VCF_HEADER);
+        append(LINE_SEPARATOR);
+        if(qualityStats){
+            for(byte[] line : VCF_INFO_HEADERS){
+                append(line);
+                append(LINE_SEPARATOR);
+            }
+        }
+        for(RegionStatistic.Factory statistic : statistics){
+            for(String line : statistic.getInfoHeaders()){
+                append(line.getBytes());
+                append(LINE_SEPARATOR);
+            }
+        }
+        append(VCF_COLUMNS);
+        append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Append one VCF record per position of the region: the most frequent nucleotide as ALT if it differs
+     * from the reference, its mean quality as QUAL. If the accumulator keeps a histogram, INFO holds the median,
+     * 10th and 90th percentile of the qualities of the nucleotide and the fractions of them reaching Q20 and Q30,
+     * followed by the fields of the statistics of the accumulator. Ends of the records are available from getLineEnd
+     * @param accumulator accumulated qualities
+     * @param ref reference bases of the region
+     */
+    public void appendVcf(final QualityAccumulator accumulator, final ByteBuffer ref) {
+        BEDRecord bedRecord = accumulator.getRegion();
+        byte[] contig = bedRecord.getContigName().getBytes();
+        QualityHistogram histogram = accumulator.getHistogram();
+        List<RegionStatistic> statistics = accumulator.getStatistics();
+        for(int i = 0; i < accumulator.getLength(); ++i){
+            byte refNucleotid = ref.get(i);
+            byte bestNucleotid = 'N';
+            int bestCode = -1;
+            int bestNucleotidCount = 0;
+            int bestNucleotidQuality = 0;
+            for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                if(accumulator.getCount(code, i) > bestNucleotidCount){
+                    bestCode = code;
+                    bestNucleotid = (byte)QualityAccumulator.NUCLEOTIDES[code];
+                    bestNucleotidQuality = accumulator.getSum(code, i);
+                    bestNucleotidCount = accumulator.getCount(code, i);
+                }
+            }
+            ensure(contig.length + 64 + LINE_SEPARATOR.length);
+            append(contig);                                   //CHROM
+            buffer[size++] = '\t';
+            appendInt(i + bedRecord.getStartIndex());         //POS
+            buffer[size++] = '\t';
+            buffer[size++] = '.';                             //ID
+            buffer[size++] = '\t';
+            buffer[size++] = refNucleotid;                    //REF
+            buffer[size++] = '\t';
+            buffer[size++] = bestNucleotid == refNucleotid ? (byte)'.' : bestNucleotid;  //ALT
+            buffer[size++] = '\t';
+            if(bestNucleotidCount == 0)                       //QUAL
+                buffer[size++] = '.';
+            else
+                appendInt(bestNucleotidQuality / bestNucleotidCount);
+            buffer[size++] = '\t';
+            buffer[size++] = '.';                             //FILTER
+            buffer[size++] = '\t';
+            infoStart = size;                                 //INFO
+            if(histogram != null && bestCode >= 0)
+                appendQualityStats(histogram, bestCode, i);
+            for(int s = 0; s < statistics.size(); ++s)
+                statistics.get(s).appendInfo(i, bestCode, this);
+            ensure(2 + LINE_SEPARATOR.length);
+            if(size == infoStart)
+                buffer[size++] = '.';
+            buffer[size++] = '\t';
+            append(LINE_SEPARATOR);
+            addLineEnd();
+        }
+    }
+
+    /**
+     * Append 5 FASTQ records of the region, one per nucleotide: the reference as sequence and the mean
+     * quality of the nucleotide in every position as quality string
+     * @param accumulator accumulated qualities
+     * @param ref reference bases of the region
+     */
+    public void appendFastq(final QualityAccumulator accumulator, final ByteBuffer ref) {
+        BEDRecord bedRecord = accumulator.getRegion();
+        int positions = bedRecord.getStopIndex() - bedRecord.getStartIndex();
+        for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+            appendFastqHeader(bedRecord, code);
+            ensure(ref.remaining());
+            ref.duplicate().get(buffer, size, ref.remaining());
+            size += ref.remaining();
+            append(LINE_SEPARATOR);
+            ensure(1 + LINE_SEPARATOR.length);
+            buffer[size++] = '+';
+            append(LINE_SEPARATOR);
+            appendFastqQualities(accumulator, code, positions);
+            ensure(1);
+            buffer[size++] = '\n';
+        }
+    }
+
+    /**
+     * Append the title line of the FASTQ record of the nucleotide, see appendFastq
+     * @param bedRecord region of the record
+     * @param code nucleotide code, index in QualityAccumulator.NUCLEOTIDES
+     */
+    public void appendFastqHeader(final BEDRecord bedRecord, int code) {
+        append(("@BED:" + bedRecord.getStartIndex() + " - " + bedRecord.getStopIndex() + "(" +
+                QualityAccumulator.NUCLEOTIDES[code] + ")").getBytes());
+        append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Append the quality characters of the nucleotide in the first positions of the accumulator, see appendFastq
+     * @param code nucleotide code, index in QualityAccumulator.NUCLEOTIDES
+     * @param positions number of positions
+     */
+    public void appendFastqQualities(final QualityAccumulator accumulator, int code, int positions) {
+        ensure(Math.max(positions, 0));
+        for(int j = 0; j < positions; ++j){
+            int count = accumulator.getCount(code, j);
+            buffer[size++] = count > 0 ? (byte)(QUAL_BASE + accumulator.getSum(code, j) / count) : (byte)'*';
+        }
+    }
+
+    /**
+     * Start an INFO field of the VCF record being appended, the value follows, see RegionStatistic.appendInfo
+     * @param key field ID
+     */
+    public void appendInfoKey(final byte[] key) {
+        ensure(key.length + 2);
+        if(size > infoStart)
+            buffer[size++] = ';';
+        append(key);
+        buffer[size++] = '=';
+    }
+
+    public void appendInfoInt(int value) {
+        ensure(11);
+        appendInt(value);
+    }
+
+    /**
+     * Append part / total with two decimals, rounded half up
+     */
+    public void appendInfoFraction(long part, long total) {
+        ensure(4);
+        appendFraction(part, total);
+    }
+
+    /**
+     * @param text value text, must not contain whitespace, semicolons or equal signs
+     */
+    public void appendInfoText(final String text) {
+        append(text.getBytes());
+    }
+
+    /**
+     * @return line separator ending the lines of VCF records and FASTQ records except the last line
+     */
+    public static byte[] getLineSeparator() {
+        return LINE_SEPARATOR.clone();
+    }
+
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * @return formatted bytes, valid up to getSize
+     */
+    public byte[] getBytes() {
+        return buffer;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of VCF records appended since the last clear
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return offset right after the line separator of the VCF record
+     */
+    public int getLineEnd(int line) {
+        return lineEnds[line];
+    }
+
+    private void append(final byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void appendQualityStats(final QualityHistogram histogram, int code, int pos) {
+        long total = histogram.getTotal(code, pos);
+        appendInfoKey(INFO_MEDIAN);
+        appendInfoInt(histogram.getPercentile(code, pos, 50));
+        appendInfoKey(INFO_P10);
+        appendInfoInt(histogram.getPercentile(code, pos, 10));
+        appendInfoKey(INFO_P90);
+        appendInfoInt(histogram.getPercentile(code, pos, 90));
+        appendInfoKey(INFO_Q20);
+        appendInfoFraction(histogram.getCountAtLeast(code, pos, 20), total);
+        appendInfoKey(INFO_Q30);
+        appendInfoFraction(histogram.getCountAtLeast(code, pos, 30), total);
+    }
+
+    /**
+     * Append part / total with two decimals, rounded half up
+     */
+    private void appendFraction(long part, long total) {
+        int hundredths = (int)((part * 200 + total) / (total * 2));
+        buffer[size++] = (byte)('0' + hundredths / 100);
+        buffer[size++] = '.';
+        buffer[size++] = (byte)('0' + hundredths / 10 % 10);
+        buffer[size++] = (byte)('0' + hundredths % 10);
+    }
+
+    private void appendInt(int value) {
+        if(value < 0){
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for(int v = value / 10; v > 0; v /= 10)
+            digits++;
+        for(int i = size + digits - 1; i >= size; --i){
+            buffer[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void addLineEnd() {
+        if(lineCount == lineEnds.length)
+            lineEnds = Arrays.copyOf(lineEnds, lineEnds.length * 2);
+        lineEnds[lineCount++] = size;
+    }
+
+    private void ensure(int bytes) {
+        if(size + bytes > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(size + bytes, buffer.length * 2));
+    }
+
+    private static final byte QUAL_BASE = 33;
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+    private static final byte[] VCF_HEADER = "##fileformat=VCFv4.0".getBytes();
+    private static final byte[][] VCF_INFO_HEADERS = {
+            "##INFO=<ID=MED,Number=1,Type=Integer,Description=\"Median quality of the most frequent nucleotide\">".getBytes(),
+            ("##INFO=<ID=P10,Number=1,Type=Integer," +
+                    "Description=\"10th percentile of the qualities of the most frequent nucleotide\">").getBytes(),
+            ("##INFO=<ID=P90,Number=1,Type=Integer," +
+                    "Description=\"90th percentile of the qualities of the most frequent nucleotide\">").getBytes(),
+            ("##INFO=<ID=Q20,Number=1,Type=Float," +
+                    "Description=\"Fraction of the most frequent nucleotide with quality of at least 20\">").getBytes(),
+            ("##INFO=<ID=Q30,Number=1,Type=Float," +
+                    "Description=\"Fraction of the most frequent nucleotide with quality of at least 30\">").getBytes()
+    };
+    private static final byte[] INFO_MEDIAN = "MED".getBytes();
+    private static final byte[] INFO_P10 = "P10".getBytes();
+    private static final byte[] INFO_P90 = "P90".getBytes();
+    private static final byte[] INFO_Q20 = "Q20".getBytes();
+    private static final byte[] INFO_Q30 = "Q30".getBytes();
+    private static final byte[] VCF_COLUMNS = "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO".getBytes();
+
+    private static final ThreadLocal<RegionFormatter> FORMATTERS = new ThreadLocal<RegionFormatter>() {
+        @Override
+        protected RegionFormatter initialValue() {
+            return new RegionFormatter();
+        }
+    };
+
+    private byte[] buffer = new byte[1 << 16];
+    private int size = 0;
+    private int[] lineEnds = new int[1024];
+    private int lineCount = 0;
+    /**
+     * Start of the INFO field of the VCF record being appended
+     */
+    private int infoStart = 0;
+}
@@ -0,0 +1,73 @@
+import java.util.*;
+
+/**
+ * Plans BAM queries for BED regions: overlapping regions and regions separated by at most a given gap are
+ * coalesced into one query, so reads in the shared part are fetched and decoded once. The reads of a merged
+ * query are fanned out to every original region, output stays one file per region.
+ */
+public class RegionQueryPlanner {
+
+    /**
+     * @param maxGap regions separated by at most this number of bases are merged, 0 merges only overlapping
+     *               and adjacent regions, a negative value disables merging
+     */
+    public RegionQueryPlanner(int maxGap) {
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Group regions into queries
+     * @param regions BED regions
+     * @return groups of regions, each group lies on one contig and is covered by one query. Contigs keep
+     * their BED order, groups and regions inside a contig are sorted by start
+     */
+    public List<List<BEDRecord>> plan(final List<BEDRecord> regions) {
+        Map<String, List<BEDRecord>> byContig = new LinkedHashMap<String, List<BEDRecord>>();
+        for(BEDRecord record : regions){
+            List<BEDRecord> contig = byContig.get(record.getContigName());
+            if(contig == null){
+                contig = new ArrayList<BEDRecord>();
+                byContig.put(record.getContigName(), contig);
+            }
+            contig.add(record);
+        }
+
+        List<List<BEDRecord>> queries = new ArrayList<List<BEDRecord>>();
+        for(List<BEDRecord> contig : byContig.values())
+            queries.addAll(planContig(contig));
+        return queries;
+    }
+
+    private List<List<BEDRecord>> planContig(final List<BEDRecord> regions) {
+        List<List<BEDRecord>> queries = new ArrayList<List<BEDRecord>>();
+        if(maxGap < 0){
+            for(BEDRecord record : regions)
+                queries.add(Collections.singletonList(record));
+            return queries;
+        }
+
+        List<BEDRecord> sorted = new ArrayList<BEDRecord>(regions);
+        Collections.sort(sorted, new Comparator<BEDRecord>() {
+            @Override
+            public int compare(BEDRecord o1, BEDRecord o2) {
+                int s1 = o1.getStartIndex(), s2 = o2.getStartIndex();
+                return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+            }
+        });
+
+        List<BEDRecord> current = null;
+        long currentStop = 0;
+        for(BEDRecord record : sorted){
+            if(current == null || record.getStartIndex() > currentStop + maxGap + 1){
+                current = new ArrayList<BEDRecord>();
+                queries.add(current);
+                currentStop = record.getStopIndex();
+            }
+            current.add(record);
+            currentStop = Math.max(currentStop, record.getStopIndex());
+        }
+        return queries;
+    }
+
+    private final int maxGap;
+}
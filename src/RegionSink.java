@@ -0,0 +1,27 @@
+/**
+ * Destination of the accumulated qualities of the regions of a run, see RegionExtractor.Output. Implementations
+ * are safe to share between threads.
+ */
+public interface RegionSink {
+    /**
+     * Write accumulated qualities of a region
+     * @param hg reference genome
+     * @param bedIndex index of the region in the BED file, windows of a tiled region share the index of the region
+     * @param accumulator accumulated qualities, its region is the region written
+     * @param reads number of reads accumulated
+     * @throws Exception if the output cannot be written
+     */
+    void write(MappedReference hg, int bedIndex, QualityAccumulator accumulator, long reads) throws Exception;
+
+    /**
+     * Report a region without reads
+     * @throws Exception if the output cannot be written
+     */
+    void skip(BEDRecord region) throws Exception;
+
+    /**
+     * Finish the output, called once after the last region, also if the run failed
+     * @throws Exception if the output cannot be finished
+     */
+    void close() throws Exception;
+}
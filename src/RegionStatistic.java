@@ -0,0 +1,67 @@
+import net.sf.samtools.SAMRecord;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Per-position statistic of one region, fed every read a QualityAccumulator accumulates and reported in the INFO
+ * field of the VCF output. Not thread-safe, one instance per accumulator, see Factory.
+ */
+public interface RegionStatistic {
+
+    /**
+     * Creates the statistic of every region, registered with ExtractionOptions.addStatistic
+     */
+    public static interface Factory {
+        /**
+         * @return name of the statistic, as given to --statistics
+         */
+        String getName();
+
+        /**
+         * @return ##INFO lines of the VCF header declaring the fields of the statistic
+         */
+        List<String> getInfoHeaders();
+
+        /**
+         * @param accumulator accumulator of the region the statistic is fed by
+         */
+        RegionStatistic create(QualityAccumulator accumulator);
+
+        /**
+         * @param readGroups number of read groups of the BAM file, at least 1
+         * @return approximate memory held by the statistic of a region per position of the region
+         */
+        long getBytesPerPosition(int readGroups);
+    }
+
+    /**
+     * Add an aligned read, called after its qualities were added to the accumulator
+     * @param record the read
+     * @param bases aligned bases, see CigarWalker
+     * @param qualities aligned qualities
+     * @param from start index in the aligned arrays
+     * @param to start index in the region
+     * @param size number of positions overlapping the region
+     */
+    void add(SAMRecord record, byte[] bases, byte[] qualities, int from, int to, int size);
+
+    /**
+     * Append the INFO fields of the position, see RegionFormatter.appendInfoKey
+     * @param pos position relative to the region start
+     * @param code code of the most frequent nucleotide, the one reported as QUAL, -1 if the position has no bases
+     */
+    void appendInfo(int pos, int code, RegionFormatter formatter);
+
+    /**
+     * Write the state of the statistic, see add(DataInput)
+     */
+    void write(DataOutput out) throws IOException;
+
+    /**
+     * Add a state written by write, e.g. by another shard of the same region
+     */
+    void add(DataInput in) throws IOException;
+}
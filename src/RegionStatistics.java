@@ -0,0 +1,452 @@
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMReadGroupRecord;
+import net.sf.samtools.SAMRecord;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Built-in statistics, selected by name with --statistics:
+ * depth - number of accumulated bases and deletions (DP);
+ * strand - mean quality and count of the most frequent nucleotide on the forward and reverse strand (SBQ, SBC);
+ * read-group - mean quality of the most frequent nucleotide per read group (RGQ), group IDs are percent-encoded;
+ * indel - fractions of the depth with a deletion (DEL) or an insertion after the position (INS).
+ */
+public final class RegionStatistics {
+
+    private RegionStatistics() {
+    }
+
+    /**
+     * @param name statistic name
+     * @return factory of the built-in statistic
+     * @throws IllegalArgumentException if there is no such statistic
+     */
+    public static RegionStatistic.Factory forName(String name) {
+        RegionStatistic.Factory factory = FACTORIES.get(name);
+        if(factory == null)
+            throw new IllegalArgumentException("Unknown statistic " + name + ", expected one of " + FACTORIES.keySet());
+        return factory;
+    }
+
+    /**
+     * @param names comma separated statistic names
+     * @return factories of the built-in statistics, in the given order
+     * @throws IllegalArgumentException if a statistic is unknown
+     */
+    public static List<RegionStatistic.Factory> forNames(String names) {
+        List<RegionStatistic.Factory> factories = new ArrayList<RegionStatistic.Factory>();
+        for(String name : names.split(",")){
+            if(!name.trim().isEmpty())
+                factories.add(forName(name.trim()));
+        }
+        return factories;
+    }
+
+    /**
+     * @return total count of the accumulated nucleotides and deletions in the position
+     */
+    static int depth(final QualityAccumulator accumulator, int pos) {
+        int depth = 0;
+        for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code)
+            depth += accumulator.getCount(code, pos);
+        return depth;
+    }
+
+    private static class Depth implements RegionStatistic {
+        Depth(final QualityAccumulator accumulator) {
+            this.accumulator = accumulator;
+        }
+
+        @Override
+        public void add(SAMRecord record, byte[] bases, byte[] qualities, int from, int to, int size) {
+            //read from the counts of the accumulator
+        }
+
+        @Override
+        public void appendInfo(int pos, int code, RegionFormatter formatter) {
+            formatter.appendInfoKey(DP);
+            formatter.appendInfoInt(depth(accumulator, pos));
+        }
+
+        @Override
+        public void write(DataOutput out) {
+        }
+
+        @Override
+        public void add(DataInput in) {
+        }
+
+        private static final byte[] DP = "DP".getBytes();
+        private final QualityAccumulator accumulator;
+    }
+
+    private static class Strand implements RegionStatistic {
+        Strand(final QualityAccumulator accumulator) {
+            this.accumulator = accumulator;
+            int nucleotides = QualityAccumulator.NUCLEOTIDES.length;
+            this.sums = new int[2 * nucleotides][accumulator.getLength()];
+            this.counts = new int[2 * nucleotides][accumulator.getLength()];
+        }
+
+        @Override
+        public void add(SAMRecord record, byte[] bases, byte[] qualities, int from, int to, int size) {
+            int offset = record.getReadNegativeStrandFlag() ? QualityAccumulator.NUCLEOTIDES.length : 0;
+            for(int k = 0; k < size; ++k){
+                int code = accumulator.accumulatedCode(bases[from + k], qualities[from + k]);
+                if(code < 0)
+                    continue;
+                sums[offset + code][to + k] += qualities[from + k];
+                counts[offset + code][to + k]++;
+            }
+        }
+
+        @Override
+        public void appendInfo(int pos, int code, RegionFormatter formatter) {
+            if(code < 0)
+                return;
+            int reverse = code + QualityAccumulator.NUCLEOTIDES.length;
+            formatter.appendInfoKey(SBQ);
+            appendMean(sums[code][pos], counts[code][pos], formatter);
+            formatter.appendInfoText(",");
+            appendMean(sums[reverse][pos], counts[reverse][pos], formatter);
+            formatter.appendInfoKey(SBC);
+            formatter.appendInfoInt(counts[code][pos]);
+            formatter.appendInfoText(",");
+            formatter.appendInfoInt(counts[reverse][pos]);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            writeArrays(sums, counts, out);
+        }
+
+        @Override
+        public void add(DataInput in) throws IOException {
+            addArrays(sums, counts, in);
+        }
+
+        private static final byte[] SBQ = "SBQ".getBytes();
+        private static final byte[] SBC = "SBC".getBytes();
+        private final QualityAccumulator accumulator;
+        /**
+         * Forward strand nucleotides followed by reverse strand ones
+         */
+        private final int[][] sums;
+        private final int[][] counts;
+    }
+
+    private static class ReadGroup implements RegionStatistic {
+        ReadGroup(final QualityAccumulator accumulator) {
+            this.accumulator = accumulator;
+        }
+
+        @Override
+        public void add(SAMRecord record, byte[] bases, byte[] qualities, int from, int to, int size) {
+            SAMReadGroupRecord readGroup = record.getReadGroup();
+            int[][] group = group(readGroup != null ? readGroup.getId() : NO_READ_GROUP);
+            for(int k = 0; k < size; ++k){
+                int code = accumulator.accumulatedCode(bases[from + k], qualities[from + k]);
+                if(code < 0)
+                    continue;
+                group[code][to + k] += qualities[from + k];
+                group[QualityAccumulator.NUCLEOTIDES.length + code][to + k]++;
+            }
+        }
+
+        @Override
+        public void appendInfo(int pos, int code, RegionFormatter formatter) {
+            if(code < 0)
+                return;
+            if(sorted == null){
+                //groups in the order of their names, not of their first reads, which depends on tiles and shards
+                sorted = new ArrayList<Integer>(indices.values());
+                Collections.sort(sorted, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return names.get(o1).compareTo(names.get(o2));
+                    }
+                });
+            }
+            boolean first = true;
+            for(int i : sorted){
+                int count = groups.get(i)[QualityAccumulator.NUCLEOTIDES.length + code][pos];
+                if(count == 0)
+                    continue;
+                if(first)
+                    formatter.appendInfoKey(RGQ);
+                else
+                    formatter.appendInfoText(",");
+                first = false;
+                formatter.appendInfoText(escapedNames.get(i));
+                formatter.appendInfoText(":");
+                formatter.appendInfoInt(groups.get(i)[code][pos] / count);
+            }
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(names.size());
+            for(int i = 0; i < names.size(); ++i){
+                out.writeUTF(names.get(i));
+                int[][] group = groups.get(i);
+                int nucleotides = QualityAccumulator.NUCLEOTIDES.length;
+                writeArrays(Arrays.copyOfRange(group, 0, nucleotides),
+                        Arrays.copyOfRange(group, nucleotides, 2 * nucleotides), out);
+            }
+        }
+
+        @Override
+        public void add(DataInput in) throws IOException {
+            int count = in.readInt();
+            for(int i = 0; i < count; ++i){
+                int[][] group = group(in.readUTF());
+                int nucleotides = QualityAccumulator.NUCLEOTIDES.length;
+                addArrays(Arrays.copyOfRange(group, 0, nucleotides),
+                        Arrays.copyOfRange(group, nucleotides, 2 * nucleotides), in);
+            }
+        }
+
+        /**
+         * @return sums of the nucleotides followed by their counts, created on the first read of the group
+         */
+        private int[][] group(String name) {
+            Integer index = indices.get(name);
+            if(index == null){
+                index = names.size();
+                indices.put(name, index);
+                names.add(name);
+                escapedNames.add(escape(name));
+                sorted = null;
+                groups.add(new int[2 * QualityAccumulator.NUCLEOTIDES.length][accumulator.getLength()]);
+            }
+            return groups.get(index);
+        }
+
+        private static final byte[] RGQ = "RGQ".getBytes();
+        private static final String NO_READ_GROUP = "none";
+        private final QualityAccumulator accumulator;
+        private final Map<String, Integer> indices = new HashMap<String, Integer>();
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> escapedNames = new ArrayList<String>();
+        private final List<int[][]> groups = new ArrayList<int[][]>();
+        private List<Integer> sorted = null;
+    }
+
+    private static class Indel implements RegionStatistic {
+        Indel(final QualityAccumulator accumulator) {
+            this.accumulator = accumulator;
+            this.insertions = new int[accumulator.getLength()];
+        }
+
+        @Override
+        public void add(SAMRecord record, byte[] bases, byte[] qualities, int from, int to, int size) {
+            //aligned arrays hold no inserted bases, find the insertions in the CIGAR
+            Cigar cigar = record.getCigar();
+            int refOffset = 0;
+            for(int i = 0; i < cigar.numCigarElements(); ++i){
+                CigarElement element = cigar.getCigarElement(i);
+                switch (element.getOperator()){
+                    case I:
+                        //counted in the reference position preceding the insertion
+                        int k = refOffset - 1 - from;
+                        if(k >= 0 && k < size)
+                            insertions[to + k]++;
+                        break;
+                    case M:
+                    case EQ:
+                    case X:
+                    case D:
+                    case N:
+                        refOffset += element.getLength();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void appendInfo(int pos, int code, RegionFormatter formatter) {
+            int depth = depth(accumulator, pos);
+            if(depth == 0)
+                return;
+            formatter.appendInfoKey(DEL);
+            formatter.appendInfoFraction(accumulator.getCount(DEL_CODE, pos), depth);
+            formatter.appendInfoKey(INS);
+            formatter.appendInfoFraction(Math.min(insertions[pos], depth), depth);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            for(int count : insertions)
+                out.writeInt(count);
+        }
+
+        @Override
+        public void add(DataInput in) throws IOException {
+            for(int pos = 0; pos < insertions.length; ++pos)
+                insertions[pos] += in.readInt();
+        }
+
+        private static final byte[] DEL = "DEL".getBytes();
+        private static final byte[] INS = "INS".getBytes();
+        private static final int DEL_CODE = QualityAccumulator.codeOf(CigarWalker.DEL_BASE);
+        private final QualityAccumulator accumulator;
+        private final int[] insertions;
+    }
+
+    /**
+     * @return the text with the characters that separate INFO fields and values, '%', whitespace and control
+     * characters percent-encoded as UTF-8 bytes, the way VCF 4.3 encodes special characters
+     */
+    static String escape(String text) {
+        StringBuilder escaped = null;
+        for(int i = 0; i < text.length(); ++i){
+            char c = text.charAt(i);
+            if(c > ' ' && c < 0x7F && ESCAPED.indexOf(c) < 0){
+                if(escaped != null)
+                    escaped.append(c);
+                continue;
+            }
+            if(escaped == null)
+                escaped = new StringBuilder(text.substring(0, i));
+            int end = Character.isHighSurrogate(c) && i + 1 < text.length() ? i + 2 : i + 1;
+            byte[] bytes;
+            try{
+                bytes = text.substring(i, end).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e){
+                throw new IllegalStateException(e);
+            }
+            for(byte b : bytes)
+                escaped.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            i = end - 1;
+        }
+        return escaped != null ? escaped.toString() : text;
+    }
+
+    private static void appendMean(int sum, int count, RegionFormatter formatter) {
+        if(count == 0)
+            formatter.appendInfoText(".");
+        else
+            formatter.appendInfoInt(sum / count);
+    }
+
+    private static void writeArrays(final int[][] sums, final int[][] counts, DataOutput out) throws IOException {
+        for(int code = 0; code < sums.length; ++code){
+            for(int pos = 0; pos < sums[code].length; ++pos){
+                out.writeInt(sums[code][pos]);
+                out.writeInt(counts[code][pos]);
+            }
+        }
+    }
+
+    private static void addArrays(final int[][] sums, final int[][] counts, DataInput in) throws IOException {
+        for(int code = 0; code < sums.length; ++code){
+            for(int pos = 0; pos < sums[code].length; ++pos){
+                sums[code][pos] += in.readInt();
+                counts[code][pos] += in.readInt();
+            }
+        }
+    }
+
+    private static abstract class NamedFactory implements RegionStatistic.Factory {
+        NamedFactory(String name, String... infoHeaders) {
+            this.name = name;
+            this.infoHeaders = Collections.unmodifiableList(Arrays.asList(infoHeaders));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public List<String> getInfoHeaders() {
+            return infoHeaders;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        private final String name;
+        private final List<String> infoHeaders;
+    }
+
+    private static final String ESCAPED = ";=,:%";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final Map<String, RegionStatistic.Factory> FACTORIES = new LinkedHashMap<String, RegionStatistic.Factory>();
+    static {
+        RegionStatistic.Factory[] factories = {
+                new NamedFactory("depth",
+                        "##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Number of accumulated bases and deletions\">") {
+                    @Override
+                    public RegionStatistic create(QualityAccumulator accumulator) {
+                        return new Depth(accumulator);
+                    }
+
+                    @Override
+                    public long getBytesPerPosition(int readGroups) {
+                        return 0;
+                    }
+                },
+                new NamedFactory("strand",
+                        "##INFO=<ID=SBQ,Number=2,Type=Integer," +
+                                "Description=\"Mean quality of the most frequent nucleotide on the forward and reverse strand\">",
+                        "##INFO=<ID=SBC,Number=2,Type=Integer," +
+                                "Description=\"Count of the most frequent nucleotide on the forward and reverse strand\">") {
+                    @Override
+                    public RegionStatistic create(QualityAccumulator accumulator) {
+                        return new Strand(accumulator);
+                    }
+
+                    @Override
+                    public long getBytesPerPosition(int readGroups) {
+                        return 2 * 2 * 4 * QualityAccumulator.NUCLEOTIDES.length;
+                    }
+                },
+                new NamedFactory("read-group",
+                        "##INFO=<ID=RGQ,Number=.,Type=String,Description=\"Mean quality of the most frequent nucleotide " +
+                                "per read group, as group:quality with percent-encoded group IDs\">") {
+                    @Override
+                    public RegionStatistic create(QualityAccumulator accumulator) {
+                        return new ReadGroup(accumulator);
+                    }
+
+                    @Override
+                    public long getBytesPerPosition(int readGroups) {
+                        return 2 * 4L * QualityAccumulator.NUCLEOTIDES.length * readGroups;
+                    }
+                },
+                new NamedFactory("indel",
+                        "##INFO=<ID=DEL,Number=1,Type=Float,Description=\"Fraction of the accumulated bases that are deletions\">",
+                        "##INFO=<ID=INS,Number=1,Type=Float,Description=\"Fraction of the accumulated bases followed by an insertion\">") {
+                    @Override
+                    public RegionStatistic create(QualityAccumulator accumulator) {
+                        return new Indel(accumulator);
+                    }
+
+                    @Override
+                    public long getBytesPerPosition(int readGroups) {
+                        return 4;
+                    }
+                }
+        };
+        for(RegionStatistic.Factory factory : factories)
+            FACTORIES.put(factory.getName(), factory);
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timers of the processing phases and per-region counters of one run, written as a JSON report next to the
+ * outputs. Phase times are kept per thread, so the hot path does not contend on shared counters, and are
+ * summed over all threads in the report. Safe to share between threads.
+ */
+public class RunMetrics {
+
+    public static enum Phase {
+        INDEX,
+        QUERY,
+        CIGAR_WALK,
+        ACCUMULATE,
+        REFERENCE,
+        WRITE
+    }
+
+    /**
+     * Add time spent by the calling thread in the phase
+     */
+    public void addTime(Phase phase, long nanos) {
+        threadTimes.get()[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * @return time spent so far by the calling thread in the phase
+     */
+    public long getThreadTime(Phase phase) {
+        return threadTimes.get()[phase.ordinal()];
+    }
+
+    /**
+     * Record a BAM query
+     * @param query queried interval
+     * @param regions number of regions served by the query
+     * @param readsFetched reads returned by the query
+     * @param readsFiltered reads rejected by the read filter
+     * @param bytesRead compressed bytes read from the BAM file
+     * @param nanos time of the query including the processing of its reads
+     */
+    public synchronized void addQuery(String query, int regions, long readsFetched, long readsFiltered, long bytesRead, long nanos) {
+        queries.add(String.format(Locale.US, "{\"query\": \"%s\", \"regions\": %d, \"readsFetched\": %d, " +
+                "\"readsFiltered\": %d, \"bytesRead\": %d, \"seconds\": %.6f}",
+                escape(query), regions, readsFetched, readsFiltered, bytesRead, nanos / 1e9));
+        totalReadsFetched += readsFetched;
+        totalReadsFiltered += readsFiltered;
+        totalBytesRead += bytesRead;
+    }
+
+    /**
+     * Record a finished region
+     * @param region BED region
+     * @param query BAM query that fetched the reads of the region, null if the region was restored from a checkpoint
+     * @param readsFetched reads overlapping the region that passed the read filter
+     * @param readsSkipped reads overlapping the region that added no qualities, e.g. unaligned or outside of the BAM
+     * byte range
+     * @param readsDownsampled reads dropped by the depth cap, counted among the skipped ones
+     * @param basesAccumulated bases added to the region
+     */
+    public synchronized void addRegion(final BEDRecord region, String query, long readsFetched, long readsSkipped,
+                                       long readsDownsampled, long basesAccumulated) {
+        regions.add(String.format(Locale.US, "{\"region\": \"%s:%d-%d\", \"query\": %s, \"readsFetched\": %d, " +
+                "\"readsSkipped\": %d, \"readsDownsampled\": %d, \"basesAccumulated\": %d}",
+                escape(region.getContigName()), region.getStartIndex(), region.getStopIndex(),
+                query == null ? "null" : "\"" + escape(query) + "\"", readsFetched, readsSkipped, readsDownsampled, basesAccumulated));
+        if(query == null)
+            restoredRegions++;
+        totalReadsSkipped += readsSkipped;
+        totalReadsDownsampled += readsDownsampled;
+        totalBasesAccumulated += basesAccumulated;
+    }
+
+    /**
+     * @return bases added to the regions recorded so far
+     */
+    public synchronized long getBasesAccumulated() {
+        return totalBasesAccumulated;
+    }
+
+    /**
+     * Write the JSON report, call when all threads have finished
+     * @param file report file
+     * @param threads number of worker threads of the run
+     * @throws IOException if the report cannot be written
+     */
+    public synchronized void write(final File file, int threads) throws IOException {
+        long[] phases = new long[Phase.values().length];
+        synchronized (allThreadTimes){
+            for(long[] times : allThreadTimes){
+                for(int i = 0; i < phases.length; ++i)
+                    phases[i] += times[i];
+            }
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try{
+            out.println("{");
+            out.println(String.format(Locale.US, "  \"elapsedSeconds\": %.6f,", (System.nanoTime() - created) / 1e9));
+            out.println("  \"threads\": " + threads + ",");
+            out.println("  \"phaseSeconds\": {");
+            for(Phase phase : Phase.values()){
+                out.println(String.format(Locale.US, "    \"%s\": %.6f%s", phase.name().toLowerCase(), phases[phase.ordinal()] / 1e9,
+                        phase.ordinal() < phases.length - 1 ? "," : ""));
+            }
+            out.println("  },");
+            out.println("  \"totals\": {\"regions\": " + regions.size() + ", \"restoredRegions\": " + restoredRegions +
+                    ", \"queries\": " + queries.size() + ", \"readsFetched\": " + totalReadsFetched +
+                    ", \"readsFiltered\": " + totalReadsFiltered + ", \"readsSkipped\": " + totalReadsSkipped +
+                    ", \"readsDownsampled\": " + totalReadsDownsampled + ", \"basesAccumulated\": " + totalBasesAccumulated +
+                    ", \"bytesRead\": " + totalBytesRead + "},");
+            printList(out, "queries", queries, true);
+            printList(out, "regions", regions, false);
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void printList(PrintWriter out, String name, final List<String> items, boolean more) {
+        out.println("  \"" + name + "\": [");
+        for(int i = 0; i < items.size(); ++i)
+            out.println("    " + items.get(i) + (i < items.size() - 1 ? "," : ""));
+        out.println("  ]" + (more ? "," : ""));
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private final long created = System.nanoTime();
+    private final List<long[]> allThreadTimes = new ArrayList<long[]>();
+    private final ThreadLocal<long[]> threadTimes = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            long[] times = new long[Phase.values().length];
+            synchronized (allThreadTimes){
+                allThreadTimes.add(times);
+            }
+            return times;
+        }
+    };
+    private final List<String> queries = new ArrayList<String>();
+    private final List<String> regions = new ArrayList<String>();
+    private int restoredRegions = 0;
+    private long totalReadsFetched = 0;
+    private long totalReadsFiltered = 0;
+    private long totalReadsSkipped = 0;
+    private long totalReadsDownsampled = 0;
+    private long totalBasesAccumulated = 0;
+    private long totalBytesRead = 0;
+}
@@ -0,0 +1,421 @@
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * End-to-end scaling benchmark and regression suite that needs no data but what it generates. Every scale gets
+ * its reference, BAM and BED files from SyntheticDataGenerator, then the whole pipeline, BAM indexing and
+ * extraction, is timed for VCF and FASTQ output. A case fails if its output differs from the golden output or
+ * if its throughput or peak heap regressed beyond the threshold of the baseline file.
+ *
+ * Golden outputs are kept in golden/scale/format, by default under TestData, and compared file by file and
+ * line by line, see compareOutputs. They do not depend on the machine and are committed for the small scales.
+ * They hold one file per region written with the default output: extraction options that change the output
+ * files, e.g. --output or --statistics, need their own golden folder. Baselines are comparable only on the
+ * same machine with the same extraction options and are not committed. Golden outputs and baselines missing
+ * for a case are recorded as it runs.
+ */
+public class ScalingBenchmark {
+
+    /**
+     * Usage: ScalingBenchmark folder [--scales=a,b] [--iterations=N] [--threshold=F] [--baseline=file] [--golden=folder]
+     * [--update] [extraction options]. Exits with 1 if a case failed
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: ScalingBenchmark folder [--scales=" + join(SCALES.keySet()) + "] [--iterations=N] " +
+                    "[--threshold=F] [--baseline=file] [--golden=folder] [--update] [extraction options, e.g. --threads=N]");
+            return;
+        }
+        File folder = new File(args[0]);
+        File baseline = new File(folder, BASELINE_FILE_NAME);
+        File golden = new File(GOLDEN_FOLDER);
+        Collection<String> scales = SCALES.keySet();
+        int iterations = 3;
+        double threshold = 0.25;
+        boolean update = false;
+        List<String> extraction = new ArrayList<String>();
+        for(int i = 1; i < args.length; ++i){
+            if(args[i].startsWith("--scales="))
+                scales = Arrays.asList(args[i].substring("--scales=".length()).split(","));
+            else if(args[i].startsWith("--iterations="))
+                iterations = Integer.parseInt(args[i].substring("--iterations=".length()));
+            else if(args[i].startsWith("--threshold="))
+                threshold = Double.parseDouble(args[i].substring("--threshold=".length()));
+            else if(args[i].startsWith("--baseline="))
+                baseline = new File(args[i].substring("--baseline=".length()));
+            else if(args[i].startsWith("--golden="))
+                golden = new File(args[i].substring("--golden=".length()));
+            else if(args[i].equals("--update"))
+                update = true;
+            else
+                extraction.add(args[i]);
+        }
+        ScalingBenchmark benchmark = new ScalingBenchmark(folder, baseline, extraction.toArray(new String[extraction.size()]))
+                .setIterations(iterations).setThreshold(threshold).setGolden(golden).setUpdate(update);
+        for(String scale : scales){
+            String[] settings = SCALES.get(scale);
+            if(settings == null)
+                throw new IllegalArgumentException("Unknown scale " + scale + ", expected one of " + join(SCALES.keySet()));
+            benchmark.addScale(scale, settings);
+        }
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    /**
+     * @param folder folder of the generated data and outputs, one subfolder per scale
+     * @param baseline baseline file, created if missing
+     * @param extractionArgs extraction options of every run, see ExtractionOptions.parse
+     */
+    public ScalingBenchmark(final File folder, final File baseline, final String[] extractionArgs) {
+        this.folder = folder;
+        this.baseline = baseline;
+        this.extractionArgs = extractionArgs.clone();
+    }
+
+    /**
+     * @param iterations measured runs of every case after one warmup run, the fastest one is reported as the
+     * least disturbed by other load of the machine
+     */
+    public ScalingBenchmark setIterations(int iterations) {
+        this.iterations = Math.max(1, iterations);
+        return this;
+    }
+
+    /**
+     * @param threshold allowed relative loss of throughput and growth of peak heap, e.g. 0.25
+     */
+    public ScalingBenchmark setThreshold(double threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param golden folder of the golden outputs, one golden/scale/format folder per case
+     */
+    public ScalingBenchmark setGolden(final File golden) {
+        this.golden = golden;
+        return this;
+    }
+
+    /**
+     * @param update true to replace the golden outputs and baselines of all cases with the measured ones instead
+     * of comparing
+     */
+    public ScalingBenchmark setUpdate(boolean update) {
+        this.update = update;
+        return this;
+    }
+
+    /**
+     * Add a scale, e.g. one of the built-in ones
+     * @param name scale name, also the name of its data subfolder
+     * @param settings SyntheticDataGenerator settings of the scale
+     */
+    public ScalingBenchmark addScale(String name, String... settings) {
+        scales.put(name, settings.clone());
+        return this;
+    }
+
+    /**
+     * Run all cases, print the report and save the golden outputs and baselines of new cases
+     * @return true if no case failed
+     * @throws Exception if data cannot be generated or the golden outputs or the baseline cannot be read or written
+     */
+    public boolean run() throws Exception {
+        Logger logger = Logger.getLogger(ScalingBenchmark.class);
+        Properties baselines = new Properties();
+        if(baseline.exists()){
+            InputStream in = new FileInputStream(baseline);
+            try{
+                baselines.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String settings = join(Arrays.asList(extractionArgs));
+        boolean passed = true, changed = false;
+        System.out.println(String.format(Locale.US, "%-14s %10s %12s %14s %10s  %s",
+                "case", "seconds", "reads/s", "bases/s", "heap MB", "verdict"));
+        Level level = Logger.getRootLogger().getLevel();
+        for(Map.Entry<String, String[]> scale : scales.entrySet()){
+            File data = new File(folder, scale.getKey());
+            Logger.getRootLogger().setLevel(Level.WARN);
+            Map<QualityExtractor.OutputFormat, Result> results =
+                    new EnumMap<QualityExtractor.OutputFormat, Result>(QualityExtractor.OutputFormat.class);
+            try{
+                SyntheticDataGenerator generator = new SyntheticDataGenerator();
+                for(String setting : scale.getValue())
+                    generator.set(setting);
+                long reads = generator.generate(data);
+                for(QualityExtractor.OutputFormat format : QualityExtractor.OutputFormat.values())
+                    results.put(format, measure(data, format, reads));
+            } finally {
+                Logger.getRootLogger().setLevel(level);
+            }
+            for(Map.Entry<QualityExtractor.OutputFormat, Result> entry : results.entrySet()){
+                String format = entry.getKey().name().toLowerCase(), name = scale.getKey() + "." + format;
+                Result result = entry.getValue();
+                File expected = new File(new File(golden, scale.getKey()), format);
+                String difference = null, regression = null;
+                boolean recorded = false;
+                if(update || !expected.isDirectory()){
+                    copyOutput(result.output, expected);
+                    recorded = true;
+                } else {
+                    difference = compareOutputs(expected, result.output);
+                }
+                if(update || baselines.getProperty(name + ".readsPerSecond") == null){
+                    result.store(name, settings, baselines);
+                    changed = true;
+                    recorded = true;
+                } else {
+                    if(!settings.equals(baselines.getProperty(name + ".settings")))
+                        logger.warn("Baseline of " + name + " was measured with options '" + baselines.getProperty(name + ".settings") +
+                                "', not '" + settings + "'");
+                    regression = compare(result, name, baselines);
+                }
+                String verdict = recorded ? "recorded" : "ok";
+                if(difference != null || regression != null){
+                    passed = false;
+                    verdict = "FAILED: " + (difference != null ? difference : regression);
+                }
+                System.out.println(String.format(Locale.US, "%-14s %10.3f %12.0f %14.0f %10.1f  %s",
+                        name, result.seconds, result.readsPerSecond, result.basesPerSecond, result.peakHeapBytes / 1048576.0, verdict));
+            }
+        }
+        if(changed){
+            OutputStream out = new FileOutputStream(baseline);
+            try{
+                baselines.store(out, "ScalingBenchmark baselines");
+            } finally {
+                out.close();
+            }
+            logger.info("Baselines saved to " + baseline.getAbsolutePath());
+        }
+        return passed;
+    }
+
+    /**
+     * Index the BAM file and extract the qualities of the scale, one warmup and iterations measured runs
+     */
+    private Result measure(final File data, QualityExtractor.OutputFormat format, long reads) throws Exception {
+        File bam = SyntheticDataGenerator.getBamFile(data);
+        File bai = new File(bam.getAbsolutePath() + ".bai");
+        File output = new File(data, "output-" + format.name().toLowerCase());
+        double[] seconds = new double[iterations];
+        long peakHeap = 0, bases = 0;
+        for(int i = -1; i < iterations; ++i){
+            clear(output);
+            if(bai.exists() && !bai.delete())
+                throw new IOException("Cannot delete " + bai.getAbsolutePath());
+            ExtractionOptions options = ExtractionOptions.parse(extractionArgs, 0).setCheckpoint(false).setMetrics(new RunMetrics());
+            System.gc();
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+                if(pool.getType() == MemoryType.HEAP)
+                    pool.resetPeakUsage();
+            }
+            long start = System.nanoTime();
+            QualityExtractor.createBamIndex(bam, bai);
+            QualityExtractor.extractQualities(bam, SyntheticDataGenerator.getBedFile(data),
+                    SyntheticDataGenerator.getReferenceFile(data).getAbsolutePath(), format, output.getAbsolutePath(), options);
+            long nanos = System.nanoTime() - start;
+            if(i < 0)
+                continue; //warmup
+            seconds[i] = nanos / 1e9;
+            //sum of the peaks of the pools, an upper bound of the peak of the whole heap
+            long heap = 0;
+            for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+                if(pool.getType() == MemoryType.HEAP)
+                    heap += pool.getPeakUsage().getUsed();
+            }
+            peakHeap = Math.max(peakHeap, heap);
+            bases = options.getMetrics().getBasesAccumulated();
+        }
+        Arrays.sort(seconds);
+        return new Result(seconds[0], reads / seconds[0], bases / seconds[0], peakHeap, output);
+    }
+
+    /**
+     * @return regressions of the case, null if it has none
+     */
+    private String compare(final Result result, String name, final Properties baselines) {
+        List<String> regressions = new ArrayList<String>();
+        double readsPerSecond = Double.parseDouble(baselines.getProperty(name + ".readsPerSecond"));
+        double basesPerSecond = Double.parseDouble(baselines.getProperty(name + ".basesPerSecond"));
+        long peakHeapBytes = Long.parseLong(baselines.getProperty(name + ".peakHeapBytes"));
+        if(result.readsPerSecond < readsPerSecond * (1 - threshold))
+            regressions.add(String.format(Locale.US, "reads/s %.0f < %.0f", result.readsPerSecond, readsPerSecond));
+        if(result.basesPerSecond < basesPerSecond * (1 - threshold))
+            regressions.add(String.format(Locale.US, "bases/s %.0f < %.0f", result.basesPerSecond, basesPerSecond));
+        if(result.peakHeapBytes > peakHeapBytes * (1 + threshold))
+            regressions.add(String.format(Locale.US, "heap %.1f MB > %.1f MB", result.peakHeapBytes / 1048576.0,
+                    peakHeapBytes / 1048576.0));
+        return regressions.isEmpty() ? null : join(regressions);
+    }
+
+    /**
+     * Compare the output files with the golden ones line by line, so that line separators do not matter. Metrics
+     * are not compared, gzipped files are compared uncompressed
+     * @param expected golden output folder
+     * @param actual output folder
+     * @return missing and extra files or the first differing line, null if the outputs are the same
+     * @throws IOException if a file cannot be read
+     */
+    static String compareOutputs(final File expected, final File actual) throws IOException {
+        SortedSet<String> expectedNames = outputFiles(expected), actualNames = outputFiles(actual);
+        List<String> differences = new ArrayList<String>();
+        for(String name : expectedNames){
+            if(!actualNames.contains(name))
+                differences.add("missing " + name);
+        }
+        for(String name : actualNames){
+            if(!expectedNames.contains(name))
+                differences.add("extra " + name);
+        }
+        if(!differences.isEmpty())
+            return join(differences);
+        for(String name : expectedNames){
+            BufferedReader golden = openLines(new File(expected, name)), output = openLines(new File(actual, name));
+            try{
+                for(int line = 1; ; ++line){
+                    String expectedLine = golden.readLine(), actualLine = output.readLine();
+                    if(expectedLine == null && actualLine == null)
+                        break;
+                    if(expectedLine == null || !expectedLine.equals(actualLine))
+                        return name + " differs at line " + line + ": expected " + quote(expectedLine) + ", found " + quote(actualLine);
+                }
+            } finally {
+                golden.close();
+                output.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return names of the output files in the folder, metrics excluded
+     */
+    private static SortedSet<String> outputFiles(final File folder) {
+        SortedSet<String> names = new TreeSet<String>();
+        File[] files = folder.listFiles();
+        for(File file : files != null ? files : new File[0]){
+            if(file.isFile() && !file.getName().equals(RegionExtractor.METRICS_FILE_NAME))
+                names.add(file.getName());
+        }
+        return names;
+    }
+
+    private static BufferedReader openLines(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if(file.getName().endsWith(".gz"))
+            in = new GZIPInputStream(in);
+        //any bytes are read as characters, binary files like indexes are compared as well
+        return new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+    }
+
+    private static String quote(String line) {
+        if(line == null)
+            return "end of file";
+        return "'" + (line.length() > 80 ? line.substring(0, 80) + "..." : line) + "'";
+    }
+
+    /**
+     * Replace the golden output with the output files
+     */
+    private static void copyOutput(final File output, final File golden) throws IOException {
+        clear(golden);
+        byte[] buffer = new byte[1 << 16];
+        for(String name : outputFiles(output)){
+            InputStream in = new FileInputStream(new File(output, name));
+            try{
+                OutputStream out = new FileOutputStream(new File(golden, name));
+                try{
+                    int n;
+                    while((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static void clear(final File output) throws IOException {
+        if(!output.exists() && !output.mkdirs())
+            throw new IOException("Cannot create " + output.getAbsolutePath());
+        for(File file : output.listFiles()){
+            if(file.isFile() && !file.delete())
+                throw new IOException("Cannot delete " + file.getAbsolutePath());
+        }
+    }
+
+    private static String join(final Collection<String> items) {
+        StringBuilder s = new StringBuilder();
+        for(String item : items)
+            s.append(s.length() > 0 ? ", " : "").append(item);
+        return s.toString();
+    }
+
+    /**
+     * Measurements of one case
+     */
+    private static class Result {
+        Result(double seconds, double readsPerSecond, double basesPerSecond, long peakHeapBytes, final File output) {
+            this.seconds = seconds;
+            this.readsPerSecond = readsPerSecond;
+            this.basesPerSecond = basesPerSecond;
+            this.peakHeapBytes = peakHeapBytes;
+            this.output = output;
+        }
+
+        void store(String name, String settings, final Properties baselines) {
+            baselines.setProperty(name + ".settings", settings);
+            baselines.setProperty(name + ".readsPerSecond", String.format(Locale.US, "%.1f", readsPerSecond));
+            baselines.setProperty(name + ".basesPerSecond", String.format(Locale.US, "%.1f", basesPerSecond));
+            baselines.setProperty(name + ".peakHeapBytes", Long.toString(peakHeapBytes));
+        }
+
+        final double seconds;
+        final double readsPerSecond;
+        final double basesPerSecond;
+        final long peakHeapBytes;
+        /**
+         * Output folder of the last run
+         */
+        final File output;
+    }
+
+    /**
+     * Built-in scales: a few shallow regions, the generator defaults, deep coverage, many short regions and few
+     * long regions. Golden outputs of tiny and deep are committed
+     */
+    static final Map<String, String[]> SCALES = new LinkedHashMap<String, String[]>();
+    static {
+        SCALES.put("tiny", new String[]{"--depth=5", "--regions=3", "--contig-length=10000"});
+        SCALES.put("base", new String[]{});
+        SCALES.put("deep", new String[]{"--depth=2000", "--regions=10"});
+        SCALES.put("wide", new String[]{"--depth=20", "--regions=2000", "--region-length=150", "--contig-length=5000000"});
+        SCALES.put("long", new String[]{"--depth=30", "--regions=2", "--region-length=200000", "--contig-length=1000000"});
+    }
+
+    static final String BASELINE_FILE_NAME = "baseline.properties";
+    static final String GOLDEN_FOLDER = "TestData/golden";
+
+    private final File folder;
+    private final File baseline;
+    private final String[] extractionArgs;
+    private final Map<String, String[]> scales = new LinkedHashMap<String, String[]>();
+    private int iterations = 3;
+    private double threshold = 0.25;
+    private File golden = new File(GOLDEN_FOLDER);
+    private boolean update = false;
+}
@@ -0,0 +1,34 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sums and counts of all regions in one quality store, see RegionExtractor.Output.STORE
+ */
+public class StoreSink implements RegionSink {
+    /**
+     * @param file store file to create
+     * @throws IOException if the file cannot be created
+     */
+    public StoreSink(final File file) throws IOException {
+        this.writer = new QualityStore.Writer(file);
+    }
+
+    @Override
+    public void write(MappedReference hg, int bedIndex, final QualityAccumulator accumulator, long reads) throws IOException {
+        writer.write(bedIndex, accumulator, reads);
+    }
+
+    /**
+     * Regions without reads are not stored
+     */
+    @Override
+    public void skip(final BEDRecord region) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private final QualityStore.Writer writer;
+}
@@ -0,0 +1,232 @@
+import net.sf.samtools.*;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator of test inputs: reference FASTA with .fai index, coordinate-sorted BAM and BED file.
+ * Reads are sampled around the BED regions with the configured depth and read length; mismatches, insertions,
+ * deletions and soft clips are introduced at random. The same seed always produces the same files.
+ */
+public class SyntheticDataGenerator {
+
+    /**
+     * Usage: SyntheticDataGenerator folder [--seed=N] [--depth=N] [--read-length=N] [--indel-rate=F]
+     * [--regions=N] [--region-length=N] [--contig-length=N]
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.out.println("Usage: SyntheticDataGenerator folder [--seed=N] [--depth=N] [--read-length=N] " +
+                    "[--indel-rate=F] [--regions=N] [--region-length=N] [--contig-length=N]");
+            return;
+        }
+        SyntheticDataGenerator generator = new SyntheticDataGenerator();
+        for(int i = 1; i < args.length; ++i)
+            generator.set(args[i]);
+        generator.generate(new File(args[0]));
+    }
+
+    /**
+     * Apply one --name=value setting
+     * @param arg setting
+     * @return this generator
+     */
+    public SyntheticDataGenerator set(String arg) {
+        int eq = arg.indexOf('=');
+        if(!arg.startsWith("--") || eq < 0)
+            throw new IllegalArgumentException("Unrecognized setting " + arg);
+        String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+        if(name.equals("seed"))
+            seed = Long.parseLong(value);
+        else if(name.equals("depth"))
+            depth = Integer.parseInt(value);
+        else if(name.equals("read-length"))
+            readLength = Integer.parseInt(value);
+        else if(name.equals("indel-rate"))
+            indelRate = Double.parseDouble(value);
+        else if(name.equals("regions"))
+            regionCount = Integer.parseInt(value);
+        else if(name.equals("region-length"))
+            regionLength = Integer.parseInt(value);
+        else if(name.equals("contig-length"))
+            contigLength = Integer.parseInt(value);
+        else
+            throw new IllegalArgumentException("Unknown setting " + name);
+        return this;
+    }
+
+    /**
+     * Write reference.fa, reference.fa.fai, reads.bam and regions.bed to the folder
+     * @param folder output folder, created if missing
+     * @return number of generated reads
+     * @throws IOException if files cannot be written
+     */
+    public long generate(final File folder) throws IOException {
+        Logger logger = Logger.getLogger(SyntheticDataGenerator.class);
+        if(!folder.exists() && !folder.mkdirs())
+            throw new IOException("Cannot create " + folder.getAbsolutePath());
+        if((long)regionCount * (regionLength + 2 * readLength) > contigLength)
+            throw new IllegalArgumentException("Contig is too short for " + regionCount + " regions");
+
+        Random random = new Random(seed);
+        byte[] reference = new byte[contigLength];
+        for(int i = 0; i < contigLength; ++i)
+            reference[i] = BASES[random.nextInt(4)];
+        writeReference(getReferenceFile(folder), reference);
+
+        List<BEDRecord> regions = new ArrayList<BEDRecord>();
+        int spacing = contigLength / regionCount;
+        for(int i = 0; i < regionCount; ++i){
+            int start = i * spacing + readLength + 1 + random.nextInt(spacing - regionLength - 2 * readLength + 1);
+            regions.add(new BEDRecord(CONTIG, start, start + regionLength - 1));
+        }
+        writeBed(getBedFile(folder), regions);
+
+        long reads = writeReads(getBamFile(folder), reference, regions, random);
+        logger.info("Generated " + reads + " reads over " + regionCount + " regions in " + folder.getAbsolutePath());
+        return reads;
+    }
+
+    public static File getReferenceFile(final File folder) {
+        return new File(folder, "reference.fa");
+    }
+
+    public static File getBamFile(final File folder) {
+        return new File(folder, "reads.bam");
+    }
+
+    public static File getBedFile(final File folder) {
+        return new File(folder, "regions.bed");
+    }
+
+    private void writeReference(final File file, final byte[] reference) throws IOException {
+        String header = ">" + CONTIG + "\n";
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try{
+            out.write(header.getBytes());
+            for(int i = 0; i < reference.length; i += LINE_BASES){
+                out.write(reference, i, Math.min(LINE_BASES, reference.length - i));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        PrintWriter index = new PrintWriter(new FileWriter(file.getAbsolutePath() + ".fai"));
+        index.println(CONTIG + "\t" + reference.length + "\t" + header.length() + "\t" + LINE_BASES + "\t" + (LINE_BASES + 1));
+        index.close();
+    }
+
+    private static void writeBed(final File file, final List<BEDRecord> regions) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        for(BEDRecord region : regions)
+            out.println(region.getContigName() + "\t" + region.getStartIndex() + "\t" + region.getStopIndex());
+        out.close();
+    }
+
+    private long writeReads(final File file, final byte[] reference, final List<BEDRecord> regions, final Random random) {
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        dictionary.addSequence(new SAMSequenceRecord(CONTIG, reference.length));
+        header.setSequenceDictionary(dictionary);
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord(READ_GROUP);
+        readGroup.setSample("synthetic");
+        readGroup.setPlatform("IONTORRENT");
+        header.addReadGroup(readGroup);
+
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, false, file);
+        long count = 0;
+        try{
+            for(BEDRecord region : regions){
+                int from = region.getStartIndex() - readLength + 1, to = region.getStopIndex();
+                long reads = (long)depth * (to - from + 1) / readLength;
+                for(long r = 0; r < reads; ++r){
+                    int start = from + random.nextInt(to - from + 1);
+                    writer.addAlignment(createRead(header, "read" + count++, start, reference, random));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return count;
+    }
+
+    private SAMRecord createRead(final SAMFileHeader header, String name, int start, final byte[] reference, final Random random) {
+        List<CigarElement> cigar = new ArrayList<CigarElement>();
+        ByteArrayOutputStream bases = new ByteArrayOutputStream(readLength + 16);
+        int refPos = start - 1;
+        int clip = random.nextInt(10) == 0 ? 1 + random.nextInt(5) : 0;
+        if(clip > 0){
+            for(int i = 0; i < clip; ++i)
+                bases.write(BASES[random.nextInt(4)]);
+            cigar.add(new CigarElement(clip, CigarOperator.S));
+        }
+        int matched = 0;
+        while(bases.size() < readLength && refPos < reference.length){
+            if(matched > 0 && random.nextDouble() < indelRate && bases.size() + 3 < readLength){
+                cigar.add(new CigarElement(matched, CigarOperator.M));
+                matched = 0;
+                int length = 1 + random.nextInt(3);
+                if(random.nextBoolean()){
+                    for(int i = 0; i < length; ++i)
+                        bases.write(BASES[random.nextInt(4)]);
+                    cigar.add(new CigarElement(length, CigarOperator.I));
+                } else {
+                    refPos += length;
+                    cigar.add(new CigarElement(length, CigarOperator.D));
+                }
+                continue;
+            }
+            if(refPos >= reference.length)
+                break;
+            bases.write(random.nextInt(100) == 0 ? BASES[random.nextInt(4)] : reference[refPos]);
+            refPos++;
+            matched++;
+        }
+        if(matched > 0)
+            cigar.add(new CigarElement(matched, CigarOperator.M));
+        else if(!cigar.isEmpty() && cigar.get(cigar.size() - 1).getOperator() != CigarOperator.M)
+            cigar.remove(cigar.size() - 1); //never end with an indel
+
+        byte[] readBases = bases.toByteArray();
+        int length = 0;
+        for(CigarElement element : cigar)
+            if(element.getOperator().consumesReadBases())
+                length += element.getLength();
+        byte[] trimmed = new byte[length];
+        System.arraycopy(readBases, 0, trimmed, 0, length);
+        byte[] qualities = new byte[length];
+        for(int i = 0; i < length; ++i)
+            qualities[i] = (byte)(MIN_QUALITY + random.nextInt(MAX_QUALITY - MIN_QUALITY + 1));
+
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReferenceName(CONTIG);
+        record.setAlignmentStart(start);
+        record.setCigar(new Cigar(cigar));
+        record.setReadBases(trimmed);
+        record.setBaseQualities(qualities);
+        record.setMappingQuality(random.nextInt(61));
+        record.setReadNegativeStrandFlag(random.nextBoolean());
+        record.setAttribute(SAMTag.RG.name(), READ_GROUP);
+        return record;
+    }
+
+    public static final String CONTIG = "chrS";
+    private static final String READ_GROUP = "SYN";
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    private static final int LINE_BASES = 60;
+    private static final int MIN_QUALITY = 5;
+    private static final int MAX_QUALITY = 40;
+
+    private long seed = 1;
+    private int depth = 100;
+    private int readLength = 150;
+    private double indelRate = 0.01;
+    private int regionCount = 100;
+    private int regionLength = 200;
+    private int contigLength = 2000000;
+}
@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Output file of a BED region too long to be accumulated at once. The region is split into windows of at most
+ * tile size positions, which are accumulated and written one after another, so the memory held for the region
+ * does not depend on its length. The file has the same bytes as if the region was written at once: VCF records
+ * of the windows are appended, FASTQ sequence and quality strings are written to their offsets in the 5 records,
+ * whose lengths are known in advance. The file is written under a temporary name, see moveTo. Windows have to be
+ * written in order, by one thread at a time.
+ */
+public class TiledRegionWriter {
+
+    /**
+     * @param region BED region to split
+     * @param tileSize maximal number of positions of a window
+     * @param format output format
+     * @param file temporary file to write
+     */
+    public TiledRegionWriter(final BEDRecord region, int tileSize, QualityExtractor.OutputFormat format, final File file) {
+        this.region = region;
+        this.format = format;
+        this.file = file;
+        List<BEDRecord> windows = new ArrayList<BEDRecord>();
+        for(long start = region.getStartIndex(); start <= region.getStopIndex(); start += tileSize)
+            windows.add(new BEDRecord(region.getContigName(), (int)start,
+                    (int)Math.min(region.getStopIndex(), start + tileSize - 1)));
+        this.windows = Collections.unmodifiableList(windows);
+    }
+
+    /**
+     * @return windows covering the region, in order
+     */
+    public List<BEDRecord> getWindows() {
+        return windows;
+    }
+
+    public BEDRecord getRegion() {
+        return region;
+    }
+
+    /**
+     * Write the next window, the file is closed after the last one
+     * @param accumulator accumulated qualities of the window
+     * @param ref reference bases of the window
+     * @param reads number of reads accumulated in the window
+     * @throws IOException if the file cannot be written
+     */
+    public void write(final QualityAccumulator accumulator, final ByteBuffer ref, long reads) throws IOException {
+        BEDRecord window = accumulator.getRegion();
+        if(written >= windows.size() || window.getStartIndex() != windows.get(written).getStartIndex())
+            throw new IllegalStateException("Window " + window.getStartIndex() + "-" + window.getStopIndex() +
+                    " of " + region.getContigName() + ":" + region.getStartIndex() + "-" + region.getStopIndex() + " is out of order");
+        if(channel == null)
+            open();
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        switch (format){
+            case VCF:
+                if(written == 0)
+                    formatter.appendVcfHeader(accumulator.getHistogram() != null, accumulator.getStatisticFactories());
+                formatter.appendVcf(accumulator, ref);
+                write(ByteBuffer.wrap(formatter.getBytes(), 0, formatter.getSize()), position);
+                position += formatter.getSize();
+                break;
+            case FASTQ:
+                int offset = window.getStartIndex() - region.getStartIndex();
+                //the quality string ends one position before the region
+                int positions = Math.min(window.getStopIndex(), region.getStopIndex() - 1) - window.getStartIndex() + 1;
+                for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+                    write(ref.duplicate(), code * fastqRecordSize + fastqSequenceOffset + offset);
+                    formatter.clear();
+                    formatter.appendFastqQualities(accumulator, code, positions);
+                    write(ByteBuffer.wrap(formatter.getBytes(), 0, formatter.getSize()),
+                            code * fastqRecordSize + fastqQualityOffset + offset);
+                }
+                break;
+        }
+        this.reads += reads;
+        if(++written == windows.size())
+            close();
+    }
+
+    /**
+     * @return true if all windows were written
+     */
+    public boolean isComplete() {
+        return written == windows.size();
+    }
+
+    /**
+     * @return sum of the reads of the windows written so far, reads crossing windows are counted in each of them
+     */
+    public long getReads() {
+        return reads;
+    }
+
+    /**
+     * Replace the target with the complete file
+     * @throws IOException if the file cannot be renamed
+     */
+    public void moveTo(final File target) throws IOException {
+        if(target.exists() && !target.delete())
+            throw new IOException("Cannot replace " + target.getName());
+        if(!file.renameTo(target))
+            throw new IOException("Cannot rename " + file.getName() + " to " + target.getName());
+    }
+
+    /**
+     * Close and remove the file, e.g. if the region has no reads or failed
+     */
+    public void delete() {
+        try{
+            close();
+        } catch (IOException e){
+            //removed anyway
+        }
+        file.delete();
+    }
+
+    private void open() throws IOException {
+        out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        channel = out.getChannel();
+        if(format != QualityExtractor.OutputFormat.FASTQ)
+            return;
+        //fixed parts of the records, the windows fill in sequence and qualities
+        RegionFormatter formatter = RegionFormatter.forCurrentThread();
+        byte[] lineSeparator = RegionFormatter.getLineSeparator();
+        int length = region.getStopIndex() - region.getStartIndex() + 1;
+        int positions = Math.max(region.getStopIndex() - region.getStartIndex(), 0);
+        for(int code = 0; code < QualityAccumulator.NUCLEOTIDES.length; ++code){
+            formatter.clear();
+            formatter.appendFastqHeader(region, code);
+            if(code == 0){
+                fastqSequenceOffset = formatter.getSize();
+                fastqQualityOffset = fastqSequenceOffset + length + 2 * lineSeparator.length + 1;
+                fastqRecordSize = fastqQualityOffset + positions + 1;
+            }
+            long recordStart = code * fastqRecordSize;
+            write(ByteBuffer.wrap(formatter.getBytes(), 0, formatter.getSize()), recordStart);
+            ByteBuffer separator = ByteBuffer.allocate(2 * lineSeparator.length + 1);
+            separator.put(lineSeparator).put((byte)'+').put(lineSeparator).flip();
+            write(separator, recordStart + fastqSequenceOffset + length);
+            write(ByteBuffer.wrap(new byte[]{'\n'}), recordStart + fastqRecordSize - 1);
+        }
+    }
+
+    private void write(final ByteBuffer bytes, long position) throws IOException {
+        while(bytes.hasRemaining())
+            position += channel.write(bytes, position);
+    }
+
+    private void close() throws IOException {
+        if(out == null)
+            return;
+        try{
+            out.close();
+        } finally {
+            out = null;
+            channel = null;
+        }
+    }
+
+    private final BEDRecord region;
+    private final QualityExtractor.OutputFormat format;
+    private final File file;
+    private final List<BEDRecord> windows;
+    private RandomAccessFile out = null;
+    private FileChannel channel = null;
+    private int written = 0;
+    private long reads = 0;
+    /**
+     * End of the VCF records written so far
+     */
+    private long position = 0;
+    private long fastqSequenceOffset = 0;
+    private long fastqQualityOffset = 0;
+    private long fastqRecordSize = 0;
+}